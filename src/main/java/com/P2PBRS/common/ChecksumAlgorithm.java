@@ -0,0 +1,168 @@
+package com.P2PBRS.common;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * Chunk checksums, named in protocol headers as "algorithm:hex" (e.g.
+ * "crc32c:1a2b3c4d"), so the receiver verifies with whatever the sender chose. A bare
+ * hex value is CRC-32, as sent by peers that predate the tag.
+ *
+ * CRC-32C is the default (p2pbrs.checksum): like CRC-32 it is a JVM intrinsic, and on
+ * x86 and ARM it runs on the dedicated CRC instructions. xxh64 is a fast 64-bit
+ * non-cryptographic hash; sha256 makes a chunk's checksum collision resistant, for
+ * content addressing.
+ */
+public enum ChecksumAlgorithm {
+    CRC32("crc32", 4) {
+        @Override
+        public long value(ByteBuffer data) {
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(data.duplicate());
+            return crc.getValue();
+        }
+    },
+    CRC32C("crc32c", 4) {
+        @Override
+        public long value(ByteBuffer data) {
+            CRC32C crc = new CRC32C();
+            crc.update(data.duplicate());
+            return crc.getValue();
+        }
+    },
+    XXHASH64("xxh64", 8) {
+        @Override
+        public long value(ByteBuffer data) {
+            return XxHash64.hash(data);
+        }
+    },
+    SHA256("sha256", 32) {
+        @Override
+        public byte[] digest(ByteBuffer data) {
+            MessageDigest sha = SHA256_DIGEST.get();
+            sha.update(data.duplicate());
+            return sha.digest(); // also resets it for the next call on this thread
+        }
+
+        @Override
+        public long value(ByteBuffer data) {
+            return ByteBuffer.wrap(digest(data)).getLong();
+        }
+    };
+
+    public static final ChecksumAlgorithm DEFAULT = forName(Config.getString("p2pbrs.checksum", "crc32c"));
+
+    private static final ThreadLocal<MessageDigest> SHA256_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE ships SHA-256
+        }
+    });
+
+    public final String id; // as written in headers
+    public final int length; // digest bytes
+
+    ChecksumAlgorithm(String id, int length) {
+        this.id = id;
+        this.length = length;
+    }
+
+    /** Checksum as a number; the first 8 bytes of the digest for sha256. */
+    public abstract long value(ByteBuffer data);
+
+    public long value(byte[] data) {
+        return value(ByteBuffer.wrap(data));
+    }
+
+    /** Digest of the buffer from its position to its limit; the buffer is left unchanged. */
+    public byte[] digest(ByteBuffer data) {
+        return toBytes(value(data), length);
+    }
+
+    public byte[] digest(byte[] data) {
+        return digest(ByteBuffer.wrap(data));
+    }
+
+    /** "id:hex" of the data. */
+    public String tag(ByteBuffer data) {
+        return format(digest(data));
+    }
+
+    public String tag(byte[] data) {
+        return tag(ByteBuffer.wrap(data));
+    }
+
+    /** "id:hex" of a digest computed elsewhere (e.g. a CRC the caller already has). */
+    public String format(byte[] digest) {
+        return id + ":" + hex(digest);
+    }
+
+    /** As {@link #format(byte[])}, for the algorithms of at most 8 bytes. */
+    public String format(long value) {
+        return format(toBytes(value, Math.min(length, 8)));
+    }
+
+    /** crc32 | crc32c | xxh64 | sha256 */
+    public static ChecksumAlgorithm forName(String name) {
+        for (ChecksumAlgorithm a : values()) {
+            if (a.id.equalsIgnoreCase(name) || a.name().equalsIgnoreCase(name))
+                return a;
+        }
+        throw new IllegalArgumentException("Unknown checksum algorithm: " + name + " (crc32, crc32c, xxh64 or sha256)");
+    }
+
+    /** Algorithm of a tag; a bare hex value is CRC-32. */
+    public static ChecksumAlgorithm of(String tag) {
+        int colon = tag.indexOf(':');
+        return colon < 0 ? CRC32 : forName(tag.substring(0, colon));
+    }
+
+    /** Digest carried by a tag. */
+    public static byte[] digestOf(String tag) {
+        ChecksumAlgorithm alg = of(tag);
+        String hex = tag.substring(tag.indexOf(':') + 1);
+        if (hex.isEmpty() || hex.length() > alg.length * 2)
+            throw new IllegalArgumentException("Bad " + alg.id + " checksum: " + tag);
+        byte[] digest = new byte[alg.length];
+        // Right-aligned: CRC values are written without leading zeros
+        for (int i = hex.length() - 1, j = digest.length - 1; i >= 0; i -= 2, j--) {
+            int lo = Character.digit(hex.charAt(i), 16);
+            int hi = i > 0 ? Character.digit(hex.charAt(i - 1), 16) : 0;
+            if (lo < 0 || hi < 0)
+                throw new IllegalArgumentException("Bad " + alg.id + " checksum: " + tag);
+            digest[j] = (byte) (hi << 4 | lo);
+        }
+        return digest;
+    }
+
+    /** Does the data match the tag, with the tag's algorithm? */
+    public static boolean verify(String tag, byte[] data) {
+        return MessageDigest.isEqual(of(tag).digest(data), digestOf(tag));
+    }
+
+    /** First (up to) 8 bytes of a digest as a number. */
+    public static long toLong(byte[] digest) {
+        long v = 0;
+        for (int i = 0; i < Math.min(8, digest.length); i++)
+            v = v << 8 | (digest[i] & 0xFF);
+        return v;
+    }
+
+    private static byte[] toBytes(long value, int length) {
+        byte[] b = new byte[length];
+        for (int i = length - 1; i >= 0; i--, value >>>= 8)
+            b[i] = (byte) value;
+        return b;
+    }
+
+    /** Lower-case hex of the bytes. */
+    public static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
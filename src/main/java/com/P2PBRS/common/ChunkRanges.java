@@ -0,0 +1,102 @@
+package com.P2PBRS.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact text encoding for lists of chunk IDs.
+ *
+ * Tokens are comma separated and decoded in order:
+ *   7        single chunk
+ *   0-9      every chunk from 0 to 9
+ *   1-97/4   every 4th chunk from 1 to 97 (round-robin placement)
+ */
+public final class ChunkRanges {
+
+    private ChunkRanges() { }
+
+    public static String encode(List<Integer> ids) {
+        return String.join(",", encodeTokens(ids));
+    }
+
+    /** Encode as individual tokens so callers can split them across datagrams. */
+    public static List<String> encodeTokens(List<Integer> ids) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < ids.size()) {
+            int start = ids.get(i);
+            int j = i;
+            if (i + 1 < ids.size()) {
+                int step = ids.get(i + 1) - start;
+                if (step > 0) {
+                    while (j + 1 < ids.size() && ids.get(j + 1) - ids.get(j) == step)
+                        j++;
+                    int runLength = j - i + 1;
+                    // Strided runs only pay off from 3 elements, plain ranges from 2
+                    if (step == 1 && runLength >= 2) {
+                        tokens.add(start + "-" + ids.get(j));
+                        i = j + 1;
+                        continue;
+                    } else if (step > 1 && runLength >= 3) {
+                        tokens.add(start + "-" + ids.get(j) + "/" + step);
+                        i = j + 1;
+                        continue;
+                    }
+                }
+            }
+            tokens.add(String.valueOf(start));
+            i++;
+        }
+        return tokens;
+    }
+
+    public static List<Integer> decode(String encoded) {
+        List<Integer> ids = new ArrayList<>();
+        if (encoded == null || encoded.isBlank())
+            return ids;
+
+        for (String token : encoded.split(",")) {
+            token = token.trim();
+            if (token.isEmpty())
+                continue;
+
+            int step = 1;
+            int slash = token.indexOf('/');
+            if (slash >= 0) {
+                step = Integer.parseInt(token.substring(slash + 1));
+                token = token.substring(0, slash);
+            }
+            if (step <= 0)
+                throw new IllegalArgumentException("Invalid step in chunk range: " + token);
+
+            int dash = token.indexOf('-');
+            if (dash < 0) {
+                ids.add(Integer.parseInt(token));
+            } else {
+                int from = Integer.parseInt(token.substring(0, dash));
+                int to = Integer.parseInt(token.substring(dash + 1));
+                for (int id = from; id <= to; id += step)
+                    ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /** Greedily pack tokens into comma-joined groups no longer than maxLength each. */
+    public static List<String> split(List<String> tokens, int maxLength) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            if (sb.length() > 0 && sb.length() + 1 + token.length() > maxLength) {
+                parts.add(sb.toString());
+                sb.setLength(0);
+            }
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(token);
+        }
+        if (sb.length() > 0 || parts.isEmpty())
+            parts.add(sb.toString());
+        return parts;
+    }
+}
@@ -0,0 +1,56 @@
+package com.P2PBRS.common;
+
+/**
+ * Tunables read from JVM system properties (-Dp2pbrs.some.key=value), falling back
+ * to the given default when a property is missing or malformed.
+ */
+public final class Config {
+
+    private Config() { }
+
+    public static int getInt(String key, int def) {
+        String v = System.getProperty(key);
+        if (v == null)
+            return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + v);
+            return def;
+        }
+    }
+
+    public static long getLong(String key, long def) {
+        String v = System.getProperty(key);
+        if (v == null)
+            return def;
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + v);
+            return def;
+        }
+    }
+
+    public static double getDouble(String key, double def) {
+        String v = System.getProperty(key);
+        if (v == null)
+            return def;
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + v);
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        String v = System.getProperty(key);
+        return v == null ? def : Boolean.parseBoolean(v.trim());
+    }
+
+    public static String getString(String key, String def) {
+        String v = System.getProperty(key);
+        return v == null || v.isBlank() ? def : v.trim();
+    }
+}
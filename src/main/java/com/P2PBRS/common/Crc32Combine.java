@@ -0,0 +1,66 @@
+package com.P2PBRS.common;
+
+/**
+ * CRC-32 of a concatenation from the CRCs of its parts (zlib's crc32_combine), so a
+ * whole-file checksum can be built from per-chunk checksums without a second pass
+ * over the data.
+ *
+ * Appending len2 zero bytes to the first part is a linear operator over GF(2); it is
+ * applied as 32x32 bit matrices, squared repeatedly for each bit of len2.
+ */
+public final class Crc32Combine {
+    private static final long POLY = 0xEDB88320L; // reflected CRC-32 polynomial, as java.util.zip.CRC32
+
+    private Crc32Combine() {
+    }
+
+    /** CRC-32 of A followed by B, given crc(A), crc(B) and the length of B. */
+    public static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0)
+            return crc1;
+
+        long[] even = new long[32]; // operator for 2^n zero bits, n even
+        long[] odd = new long[32]; // n odd
+
+        // Operator for one zero bit
+        odd[0] = POLY;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd); // two zero bits
+        square(odd, even); // four zero bits
+
+        // Apply len2 zero bytes to crc1 (the first squaring gives one zero byte)
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0)
+                crc1 = times(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0)
+                break;
+
+            square(odd, even);
+            if ((len2 & 1) != 0)
+                crc1 = times(odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return (crc1 ^ crc2) & 0xFFFFFFFFL;
+    }
+
+    private static long times(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0)
+                sum ^= mat[i];
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++)
+            square[n] = times(mat, mat[n]);
+    }
+}
@@ -0,0 +1,193 @@
+package com.P2PBRS.common;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * LZ4 block format (no frame), compressor and decompressor.
+ *
+ * Greedy single-pass matcher: a 4-byte hash indexes the last position each sequence
+ * was seen at, matches are at least 4 bytes and at most 64 KB back. Like the reference
+ * implementation it steps faster the longer it goes without a match. Each sequence is
+ * a token (literal length | match length), the literals, a 2-byte offset and the
+ * match length extension. The block ends with literals only: the last match starts
+ * at least 12 bytes before the end and the last 5 bytes are always literals.
+ */
+public final class Lz4Block {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 14;
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private Lz4Block() {
+    }
+
+    /** Worst-case compressed size of len bytes. */
+    public static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    /** Compress src[off, off+len) into dst at dstOff; returns the compressed length. */
+    public static int compress(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int[] table = new int[1 << HASH_LOG];
+        int end = off + len;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        int anchor = off;
+        int ip = off;
+        int op = dstOff;
+
+        if (len >= MF_LIMIT) {
+            Arrays.fill(table, -1);
+            int misses = 0;
+            ip++;
+            while (ip < mfLimit) {
+                int h = hash(readInt(src, ip));
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != readInt(src, ip)) {
+                    ip += 1 + (misses++ >> 6); // skip faster through data that does not match
+                    continue;
+                }
+                misses = 0;
+
+                // Extend backwards over literals, then forwards
+                while (ip > anchor && ref > off && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH + commonBytes(src, ref + MIN_MATCH, ip + MIN_MATCH, matchLimit);
+
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen - MIN_MATCH, dst, op);
+                ip += matchLen;
+                anchor = ip;
+                if (ip < mfLimit)
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+
+        // Trailing literals
+        int literals = end - anchor;
+        int tokenPos = op++;
+        if (literals >= 15) {
+            dst[tokenPos] = (byte) 0xF0;
+            op = writeLength(literals - 15, dst, op);
+        } else {
+            dst[tokenPos] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    /** Decompress a block into exactly rawLen bytes. */
+    public static byte[] decompress(byte[] src, int off, int len, int rawLen) throws IOException {
+        byte[] dst = new byte[rawLen];
+        int ip = off;
+        int end = off + len;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end)
+                    break; // last sequence has no match
+
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int ref = op - offset;
+                if (offset == 0 || ref < 0)
+                    throw new IOException("Corrupt LZ4 block: bad offset " + offset);
+                int matchLen = token & 0x0F;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if (op + matchLen > rawLen)
+                    throw new IOException("Corrupt LZ4 block: output overrun");
+                // Overlapping copies repeat the last offset bytes, so copy byte by byte when close
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, op, matchLen);
+                    op += matchLen;
+                } else {
+                    for (int i = 0; i < matchLen; i++)
+                        dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ4 block: truncated", e);
+        }
+        if (op != rawLen)
+            throw new IOException("Corrupt LZ4 block: " + op + " bytes instead of " + rawLen);
+        return dst;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchExtra,
+            byte[] dst, int op) {
+        int tokenPos = op++;
+        int token = (Math.min(literals, 15) << 4) | Math.min(matchExtra, 15);
+        dst[tokenPos] = (byte) token;
+        if (literals >= 15)
+            op = writeLength(literals - 15, dst, op);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        if (matchExtra >= 15)
+            op = writeLength(matchExtra - 15, dst, op);
+        return op;
+    }
+
+    private static int writeLength(int n, byte[] dst, int op) {
+        while (n >= 255) {
+            dst[op++] = (byte) 255;
+            n -= 255;
+        }
+        dst[op++] = (byte) n;
+        return op;
+    }
+
+    // Length of the common run of src[ref..] and src[ip..], with ip stopping at limit; 8 bytes a step
+    private static int commonBytes(byte[] src, int ref, int ip, int limit) {
+        int start = ip;
+        while (ip <= limit - 8) {
+            long diff = (long) LONG.get(src, ip) ^ (long) LONG.get(src, ref);
+            if (diff != 0)
+                return ip - start + (Long.numberOfTrailingZeros(diff) >>> 3);
+            ip += 8;
+            ref += 8;
+        }
+        while (ip < limit && src[ip] == src[ref]) {
+            ip++;
+            ref++;
+        }
+        return ip - start;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (int) INT.get(b, i);
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,220 @@
+package com.P2PBRS.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-shape Merkle tree over (file, chunk, crc) entries, shared by storage peers
+ * (what is on disk) and the server (what it believes each peer holds).
+ *
+ * Shape: root -> 16 groups -> 16 leaves each (256 leaves). An entry always lands in
+ * the same leaf (by file and chunk, not crc), and a leaf hash is the XOR of its entry
+ * hashes, so adding or removing an entry is O(1). Two trees with the same root hold
+ * the same entries; otherwise comparing 16 group hashes, then 16 leaf hashes per
+ * differing group, pins the difference down to a few leaves.
+ */
+public class MerkleInventory {
+    public static final int FANOUT = 16;
+    public static final int LEAVES = FANOUT * FANOUT;
+
+    // crc value for entries whose checksum is not known yet (server side)
+    public static final long UNKNOWN_CRC = -1;
+
+    private final long[] leafHashes = new long[LEAVES];
+    private final List<Map<String, Long>> leafEntries = new ArrayList<>(LEAVES); // "file:chunk" -> crc
+
+    public static final class Entry {
+        public final String fileName;
+        public final int chunkId;
+        public final long crc;
+
+        public Entry(String fileName, int chunkId, long crc) {
+            this.fileName = fileName;
+            this.chunkId = chunkId;
+            this.crc = crc;
+        }
+
+        /** file:chunk:crcHex, parsed back by {@link #parse(String)}. */
+        public String encode() {
+            return fileName + ":" + chunkId + ":" + (crc == UNKNOWN_CRC ? "?" : Long.toHexString(crc));
+        }
+
+        public static Entry parse(String token) {
+            // File names may contain ':', so split from the right
+            int c2 = token.lastIndexOf(':');
+            int c1 = token.lastIndexOf(':', c2 - 1);
+            if (c1 <= 0 || c2 <= c1)
+                throw new IllegalArgumentException("Malformed inventory entry: " + token);
+            String crc = token.substring(c2 + 1);
+            return new Entry(token.substring(0, c1), Integer.parseInt(token.substring(c1 + 1, c2)),
+                    "?".equals(crc) ? UNKNOWN_CRC : Long.parseLong(crc, 16));
+        }
+    }
+
+    public MerkleInventory() {
+        for (int i = 0; i < LEAVES; i++) {
+            leafEntries.add(new HashMap<>());
+        }
+    }
+
+    public static int leafOf(String fileName, int chunkId) {
+        return (int) (mix(fnv(fileName) + chunkId) & (LEAVES - 1));
+    }
+
+    /** Add or replace an entry. */
+    public synchronized void put(String fileName, int chunkId, long crc) {
+        int leaf = leafOf(fileName, chunkId);
+        Long old = leafEntries.get(leaf).put(fileName + ":" + chunkId, crc);
+        if (old != null) {
+            leafHashes[leaf] ^= entryHash(fileName, chunkId, old);
+        }
+        leafHashes[leaf] ^= entryHash(fileName, chunkId, crc);
+    }
+
+    /** Add only if absent; keeps a known crc from being overwritten by UNKNOWN_CRC. */
+    public synchronized void putIfAbsent(String fileName, int chunkId, long crc) {
+        if (!leafEntries.get(leafOf(fileName, chunkId)).containsKey(fileName + ":" + chunkId)) {
+            put(fileName, chunkId, crc);
+        }
+    }
+
+    public synchronized boolean remove(String fileName, int chunkId) {
+        int leaf = leafOf(fileName, chunkId);
+        Long old = leafEntries.get(leaf).remove(fileName + ":" + chunkId);
+        if (old == null)
+            return false;
+        leafHashes[leaf] ^= entryHash(fileName, chunkId, old);
+        return true;
+    }
+
+    public synchronized boolean contains(String fileName, int chunkId) {
+        return leafEntries.get(leafOf(fileName, chunkId)).containsKey(fileName + ":" + chunkId);
+    }
+
+    public synchronized int size() {
+        int n = 0;
+        for (Map<String, Long> m : leafEntries)
+            n += m.size();
+        return n;
+    }
+
+    public synchronized long root() {
+        long h = 0;
+        for (int g = 0; g < FANOUT; g++)
+            h = combine(h, groupHash(g));
+        return mix(h);
+    }
+
+    /** Hashes of the 16 groups under the root. */
+    public synchronized long[] groupHashes() {
+        long[] out = new long[FANOUT];
+        for (int g = 0; g < FANOUT; g++)
+            out[g] = groupHash(g);
+        return out;
+    }
+
+    /** Hashes of the 16 leaves in a group. */
+    public synchronized long[] leafHashes(int group) {
+        long[] out = new long[FANOUT];
+        System.arraycopy(leafHashes, group * FANOUT, out, 0, FANOUT);
+        return out;
+    }
+
+    public synchronized List<Entry> entries(int leaf) {
+        List<Entry> out = new ArrayList<>();
+        for (Map.Entry<String, Long> e : leafEntries.get(leaf).entrySet()) {
+            String key = e.getKey();
+            int sep = key.lastIndexOf(':');
+            out.add(new Entry(key.substring(0, sep), Integer.parseInt(key.substring(sep + 1)), e.getValue()));
+        }
+        return out;
+    }
+
+    /** Replace a leaf's entries wholesale (server side, after the peer sent the leaf). */
+    public synchronized void replaceLeaf(int leaf, List<Entry> entries) {
+        leafEntries.get(leaf).clear();
+        leafHashes[leaf] = 0;
+        for (Entry e : entries) {
+            put(e.fileName, e.chunkId, e.crc);
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < LEAVES; i++) {
+            leafEntries.get(i).clear();
+            leafHashes[i] = 0;
+        }
+    }
+
+    /** Indices (0..15) where the two hash arrays differ. */
+    public static List<Integer> diff(long[] mine, long[] theirs) {
+        List<Integer> out = new ArrayList<>();
+        for (int i = 0; i < FANOUT; i++) {
+            if (mine[i] != theirs[i])
+                out.add(i);
+        }
+        return out;
+    }
+
+    public static String encodeHashes(long[] hashes) {
+        StringBuilder sb = new StringBuilder(hashes.length * 17);
+        for (int i = 0; i < hashes.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(Long.toHexString(hashes[i]));
+        }
+        return sb.toString();
+    }
+
+    public static long[] decodeHashes(String s) {
+        String[] parts = s.split(",");
+        if (parts.length != FANOUT)
+            throw new IllegalArgumentException("Expected " + FANOUT + " hashes, got " + parts.length);
+        long[] out = new long[FANOUT];
+        for (int i = 0; i < FANOUT; i++)
+            out[i] = Long.parseUnsignedLong(parts[i], 16);
+        return out;
+    }
+
+    public static String hex(long hash) {
+        return Long.toHexString(hash);
+    }
+
+    public static long parseHex(String s) {
+        return Long.parseUnsignedLong(s, 16);
+    }
+
+    private long groupHash(int g) {
+        long h = 0;
+        for (int i = g * FANOUT; i < (g + 1) * FANOUT; i++)
+            h = combine(h, leafHashes[i]);
+        return mix(h);
+    }
+
+    // Order-sensitive so children can't be swapped
+    private static long combine(long acc, long child) {
+        return acc * 0x100000001B3L + mix(child);
+    }
+
+    private static long entryHash(String fileName, int chunkId, long crc) {
+        return mix(fnv(fileName) ^ mix(chunkId + 0x9E3779B97F4A7C15L) ^ mix(crc * 0xC2B2AE3D27D4EB4FL));
+    }
+
+    private static long fnv(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,50 @@
+package com.P2PBRS.common;
+
+/**
+ * Classic token bucket: tokens refill continuously at ratePerSec up to capacity.
+ */
+public class TokenBucket {
+    private final double ratePerSec;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(double ratePerSec, double capacity) {
+        this.ratePerSec = ratePerSec;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public double getRatePerSec() {
+        return ratePerSec;
+    }
+
+    /** Take n tokens if available right now. Requests above capacity succeed once the bucket is full. */
+    public synchronized boolean tryAcquire(double n) {
+        refill();
+        double needed = Math.min(n, capacity);
+        if (tokens < needed)
+            return false;
+        tokens -= n;
+        return true;
+    }
+
+    public synchronized boolean canAcquire(double n) {
+        refill();
+        return tokens >= Math.min(n, capacity);
+    }
+
+    /** How long until canAcquire(n) holds, 0 if it does now. */
+    public synchronized long nanosUntil(double n) {
+        refill();
+        double missing = Math.min(n, capacity) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / ratePerSec * 1e9);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / 1e9 * ratePerSec);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,82 @@
+package com.P2PBRS.common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * XXH64 (seed 0): four 64-bit lanes over 32-byte stripes, then the tail in 8, 4 and
+ * 1-byte steps and a final avalanche. Reads little-endian words straight out of the
+ * buffer (arrays are wrapped, not copied).
+ */
+public final class XxHash64 {
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+    // Little-endian words at any index of a heap or direct buffer, whatever its byte order
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private XxHash64() {
+    }
+
+    public static long hash(byte[] b, int off, int len) {
+        return hash(ByteBuffer.wrap(b, off, len));
+    }
+
+    /** Hash of the buffer from its position to its limit; the buffer is left unchanged. */
+    public static long hash(ByteBuffer b) {
+        int len = b.remaining();
+        int p = b.position();
+        int end = b.limit();
+        long h;
+        if (len >= 32) {
+            long v1 = P1 + P2, v2 = P2, v3 = 0, v4 = -P1;
+            int limit = end - 32;
+            do {
+                v1 = round(v1, (long) LONG.get(b, p));
+                v2 = round(v2, (long) LONG.get(b, p + 8));
+                v3 = round(v3, (long) LONG.get(b, p + 16));
+                v4 = round(v4, (long) LONG.get(b, p + 24));
+                p += 32;
+            } while (p <= limit);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = P5;
+        }
+        h += len;
+
+        for (; p + 8 <= end; p += 8)
+            h = Long.rotateLeft(h ^ round(0, (long) LONG.get(b, p)), 27) * P1 + P4;
+        if (p + 4 <= end) {
+            h = Long.rotateLeft(h ^ (((int) INT.get(b, p) & 0xFFFFFFFFL) * P1), 23) * P2 + P3;
+            p += 4;
+        }
+        for (; p < end; p++)
+            h = Long.rotateLeft(h ^ ((b.get(p) & 0xFFL) * P5), 11) * P1;
+        return avalanche(h);
+    }
+
+    private static long round(long acc, long input) {
+        return Long.rotateLeft(acc + input * P2, 31) * P1;
+    }
+
+    private static long merge(long h, long v) {
+        return (h ^ round(0, v)) * P1 + P4;
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        return h ^ (h >>> 32);
+    }
+}
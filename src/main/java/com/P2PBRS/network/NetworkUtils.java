@@ -0,0 +1,88 @@
+package com.P2PBRS.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shared constants and length-prefixed framing used by the TCP side channels.
+ *
+ * A frame is a 4-byte big-endian length followed by that many bytes. A frame of
+ * length 0 marks the end of a stream.
+ */
+public final class NetworkUtils {
+
+    // Control datagrams above this size are moved to the TCP control channel
+    public static final int MAX_DATAGRAM_PAYLOAD = 1200;
+
+    // Receive buffer large enough for any UDP datagram
+    public static final int MAX_UDP_RECEIVE = 65535;
+
+    // Body frames written by the stream helpers
+    public static final int STREAM_FRAME_SIZE = 16 * 1024;
+
+    // Upper bound accepted for a single frame so a corrupt length cannot exhaust the heap
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private NetworkUtils() { }
+
+    public static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+        writeFrame(out, data, 0, data.length);
+    }
+
+    public static void writeFrame(DataOutputStream out, byte[] data, int off, int len) throws IOException {
+        out.writeInt(len);
+        out.write(data, off, len);
+    }
+
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+        out.flush();
+    }
+
+    /** Returns the next frame, or null when the end-of-stream frame is read. */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == 0)
+            return null;
+        if (len < 0 || len > MAX_FRAME_SIZE)
+            throw new IOException("Invalid frame length: " + len);
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return data;
+    }
+
+    /** Write a text payload as a sequence of frames followed by the end marker. */
+    public static void writeTextStream(DataOutputStream out, String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        for (int off = 0; off < data.length; off += STREAM_FRAME_SIZE) {
+            writeFrame(out, data, off, Math.min(STREAM_FRAME_SIZE, data.length - off));
+        }
+        writeEnd(out);
+    }
+
+    /** Read frames until the end marker and decode them as one text payload. */
+    public static String readTextStream(DataInputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] frame;
+        while ((frame = readFrame(in)) != null) {
+            buf.write(frame);
+        }
+        return buf.toString(StandardCharsets.UTF_8);
+    }
+
+    public static void writeLine(DataOutputStream out, String line) throws IOException {
+        writeFrame(out, line.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    public static String readLine(DataInputStream in) throws IOException {
+        byte[] frame = readFrame(in);
+        if (frame == null)
+            throw new EOFException("Expected a frame but got end of stream");
+        return new String(frame, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,162 @@
+package com.P2PBRS.peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.P2PBRS.common.ChecksumAlgorithm;
+import com.P2PBRS.common.Config;
+
+/**
+ * The owner's record of the last successful backup of a file: chunk boundaries,
+ * SHA-256 (HMAC-SHA256 with p2pbrs.encrypt, see {@link ChunkCipher}) and CRC of every
+ * chunk, the chunk id and peer it was stored under, and a version counter. Kept in .p2pbrs/manifests so it survives restarts; a re-backup
+ * diffs the file against it and only uploads chunks whose hash is new.
+ *
+ * Binary layout: "P2PM", format, file name, size, file CRC, chunking, chunk size,
+ * version, peer names, then per chunk: offset, length, crc, sha256, chunk id, peer index.
+ */
+public class BackupManifest {
+	private static final Path DIR = Paths.get(Config.getString("p2pbrs.manifest.dir", ".p2pbrs/manifests"));
+	private static final int MAGIC = 0x5032504D; // "P2PM"
+	private static final int FORMAT = 1;
+	private static final int HASH_BYTES = 32;
+
+	public static final byte FIXED = 0;
+	public static final byte CDC = 1;
+
+	public final String fileName;
+	public final long fileSize;
+	public final long fileCrc;
+	public final byte chunking;
+	public final int chunkSize; // fixed size, or FastCDC average
+	public final int version;
+	public final List<Entry> entries;
+
+	public static final class Entry {
+		public final long offset;
+		public final int length;
+		public final long crc;
+		public final byte[] sha256;
+		public final int chunkId;
+		public final String peer;
+
+		public Entry(long offset, int length, long crc, byte[] sha256, int chunkId, String peer) {
+			this.offset = offset;
+			this.length = length;
+			this.crc = crc;
+			this.sha256 = sha256;
+			this.chunkId = chunkId;
+			this.peer = peer;
+		}
+	}
+
+	public BackupManifest(String fileName, long fileSize, long fileCrc, byte chunking, int chunkSize, int version,
+			List<Entry> entries) {
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+		this.fileCrc = fileCrc;
+		this.chunking = chunking;
+		this.chunkSize = chunkSize;
+		this.version = version;
+		this.entries = entries;
+	}
+
+	/** Chunk ids of this version by hex SHA-256, for diffing the next one. */
+	public Map<String, Entry> byHash() {
+		Map<String, Entry> map = new HashMap<>();
+		for (Entry e : entries)
+			map.putIfAbsent(ChecksumAlgorithm.hex(e.sha256), e);
+		return map;
+	}
+
+	private static Path path(String fileName) {
+		return DIR.resolve(fileName + ".mf");
+	}
+
+	/** The stored manifest of fileName, or null if it was never backed up (or the record is unreadable). */
+	public static BackupManifest load(String fileName) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path(fileName))))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT)
+				throw new IOException("not a manifest");
+			String name = in.readUTF();
+			long size = in.readLong();
+			long fileCrc = in.readInt() & 0xFFFFFFFFL;
+			byte chunking = in.readByte();
+			int chunkSize = in.readInt();
+			int version = in.readInt();
+			String[] peers = new String[in.readShort()];
+			for (int i = 0; i < peers.length; i++)
+				peers[i] = in.readUTF();
+			int count = in.readInt();
+			List<Entry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				long offset = in.readLong();
+				int length = in.readInt();
+				long crc = in.readInt() & 0xFFFFFFFFL;
+				byte[] sha = new byte[HASH_BYTES];
+				in.readFully(sha);
+				int chunkId = in.readInt();
+				short peer = in.readShort();
+				entries.add(new Entry(offset, length, crc, sha, chunkId, peer < 0 ? null : peers[peer]));
+			}
+			return new BackupManifest(name, size, fileCrc, chunking, chunkSize, version, entries);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			System.err.println("Ignoring unreadable manifest for " + fileName + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/** Write atomically: a crash leaves either the old manifest or the new one. */
+	public void save() throws IOException {
+		Files.createDirectories(DIR);
+		Path target = path(fileName);
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+
+		List<String> peers = new ArrayList<>();
+		Map<String, Integer> peerIndex = new HashMap<>();
+		for (Entry e : entries) {
+			if (e.peer != null && !peerIndex.containsKey(e.peer)) {
+				peerIndex.put(e.peer, peers.size());
+				peers.add(e.peer);
+			}
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeUTF(fileName);
+			out.writeLong(fileSize);
+			out.writeInt((int) fileCrc);
+			out.writeByte(chunking);
+			out.writeInt(chunkSize);
+			out.writeInt(version);
+			out.writeShort(peers.size());
+			for (String p : peers)
+				out.writeUTF(p);
+			out.writeInt(entries.size());
+			for (Entry e : entries) {
+				out.writeLong(e.offset);
+				out.writeInt(e.length);
+				out.writeInt((int) e.crc);
+				out.write(e.sha256, 0, HASH_BYTES);
+				out.writeInt(e.chunkId);
+				out.writeShort(e.peer == null ? -1 : peerIndex.get(e.peer));
+			}
+		}
+		Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,252 @@
+package com.P2PBRS.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.P2PBRS.common.Config;
+
+/**
+ * Optional client-side encryption of chunks (p2pbrs.encrypt), so storage peers only
+ * ever hold ciphertext.
+ *
+ * Each file has its own AES-256 key, derived with HKDF-SHA256 from the owner's master
+ * key (p2pbrs.encrypt.keyFile, 32 random bytes created on first use) and the file
+ * name. Chunks are sealed with AES-GCM after compression, as an envelope: "P2PE"
+ * magic, format, a random 96-bit nonce, then the ciphertext and the 128-bit GCM tag.
+ * The chunk id is authenticated along with the data, so a peer cannot hand back one
+ * chunk of the file in place of another. Restore opens sealed chunks and passes any
+ * others through, so files backed up before encryption was turned on still restore.
+ *
+ * What the server sees of the plaintext is keyed as well: chunk hashes in a backup
+ * manifest are HMAC-SHA256 under a second per-file HKDF key, and the file checksum in
+ * BACKUP_DONE is a tag of its CRC-32 under that key. Dedup against earlier versions of
+ * the same file works as before, but the server cannot confirm a guess at the contents.
+ *
+ * The master key never leaves the owner; lose it and the encrypted backups are lost.
+ */
+public final class ChunkCipher {
+	public static final boolean ENABLED = Config.getBoolean("p2pbrs.encrypt", false);
+
+	static final int MAGIC = 0x50325045; // "P2PE"
+	private static final byte FORMAT = 1;
+	private static final int NONCE_BYTES = 12;
+	private static final int TAG_BYTES = 16;
+	private static final int HEADER_BYTES = 4 + 1 + NONCE_BYTES;
+	private static final Path KEY_FILE = Paths.get(Config.getString("p2pbrs.encrypt.keyFile", ".p2pbrs/master.key"));
+	private static final byte[] HKDF_SALT = "p2pbrs chunk keys".getBytes(StandardCharsets.UTF_8);
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e); // every JRE ships AES-GCM
+		}
+	});
+	private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance("HmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e); // every JRE ships HmacSHA256
+		}
+	});
+	private static final byte[] FILE_CHECKSUM_LABEL = "file crc".getBytes(StandardCharsets.UTF_8);
+	private static final Map<String, ChunkCipher> FILES = new ConcurrentHashMap<>();
+	private static byte[] masterKey; // loaded once
+
+	private final SecretKeySpec key;
+	private final SecretKeySpec macKey; // chunk hashes and the file checksum the server sees
+
+	private ChunkCipher(SecretKeySpec key, SecretKeySpec macKey) {
+		this.key = key;
+		this.macKey = macKey;
+	}
+
+	/** The cipher for a file's chunks; creates the master key if there is none yet. */
+	public static ChunkCipher forFile(String fileName) throws IOException {
+		return forFile(fileName, true);
+	}
+
+	private static ChunkCipher forFile(String fileName, boolean create) throws IOException {
+		ChunkCipher cipher = FILES.get(fileName);
+		if (cipher == null) {
+			byte[] master = masterKey(create);
+			byte[] fileKey = hkdf(master, ("file " + fileName).getBytes(StandardCharsets.UTF_8));
+			byte[] macKey = hkdf(master, ("mac " + fileName).getBytes(StandardCharsets.UTF_8));
+			cipher = new ChunkCipher(new SecretKeySpec(fileKey, "AES"), new SecretKeySpec(macKey, "HmacSHA256"));
+			FILES.put(fileName, cipher);
+		}
+		return cipher;
+	}
+
+	/** HMAC-SHA256 of a chunk's plaintext (position to limit), used in place of its SHA-256. */
+	public byte[] chunkHash(ByteBuffer plain) {
+		Mac mac = mac();
+		mac.update(plain.duplicate());
+		return mac.doFinal();
+	}
+
+	/** The file checksum to give the server: its CRC-32 as is, or a keyed tag of it when encrypting. */
+	public static long announcedChecksum(String fileName, long crc) throws IOException {
+		return ENABLED ? forFile(fileName).fileChecksum(crc) : crc;
+	}
+
+	/** Whether a restored file's CRC-32 matches the checksum the server kept, in either form. */
+	public static boolean checksumMatches(String fileName, long crc, long announced) {
+		if (crc == announced)
+			return true;
+		try {
+			return forFile(fileName, false).fileChecksum(crc) == announced;
+		} catch (IOException e) {
+			return false; // no master key, so it was never announced keyed
+		}
+	}
+
+	// 32 bits, like the CRC it stands in for
+	private long fileChecksum(long crc) {
+		Mac mac = mac();
+		mac.update(FILE_CHECKSUM_LABEL);
+		mac.update(ByteBuffer.allocate(8).putLong(crc).array());
+		return ByteBuffer.wrap(mac.doFinal()).getInt() & 0xFFFFFFFFL;
+	}
+
+	private Mac mac() {
+		Mac mac = HMAC.get();
+		try {
+			mac.init(macKey);
+		} catch (InvalidKeyException e) {
+			throw new IllegalStateException(e);
+		}
+		return mac;
+	}
+
+	/** Seal a chunk's bytes (from position to limit; the buffer is left unchanged). */
+	public byte[] seal(int chunkId, ByteBuffer plain) {
+		byte[] nonce = new byte[NONCE_BYTES];
+		RANDOM.nextBytes(nonce);
+		byte[] out = new byte[HEADER_BYTES + plain.remaining() + TAG_BYTES];
+		ByteBuffer.wrap(out).putInt(MAGIC).put(FORMAT).put(nonce);
+		try {
+			Cipher gcm = GCM.get();
+			gcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+			gcm.updateAAD(aad(chunkId));
+			gcm.doFinal(plain.duplicate(), ByteBuffer.wrap(out, HEADER_BYTES, out.length - HEADER_BYTES));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Cannot encrypt chunk " + chunkId, e);
+		}
+		return out;
+	}
+
+	/**
+	 * The plaintext of a stored chunk of a file: decrypted if it was sealed (with the
+	 * master key, which must exist), otherwise as stored.
+	 */
+	public static byte[] open(String fileName, int chunkId, byte[] stored) throws IOException {
+		if (!sealed(stored))
+			return stored;
+		if (stored[4] != FORMAT)
+			throw new IOException("Unknown encryption format " + stored[4] + " in chunk " + chunkId);
+		try {
+			Cipher gcm = GCM.get();
+			gcm.init(Cipher.DECRYPT_MODE, forFile(fileName, false).key,
+					new GCMParameterSpec(TAG_BYTES * 8, stored, 5, NONCE_BYTES));
+			gcm.updateAAD(aad(chunkId));
+			return gcm.doFinal(stored, HEADER_BYTES, stored.length - HEADER_BYTES);
+		} catch (AEADBadTagException e) {
+			// Wrong key, or the chunk was altered or moved
+			throw new IOException("Checksum mismatch: chunk " + chunkId + " of " + fileName + " fails authentication");
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot decrypt chunk " + chunkId + ": " + e.getMessage(), e);
+		}
+	}
+
+	static boolean sealed(byte[] stored) {
+		return stored.length >= HEADER_BYTES + TAG_BYTES && ByteBuffer.wrap(stored).getInt() == MAGIC;
+	}
+
+	private static byte[] aad(int chunkId) {
+		return ByteBuffer.allocate(4).putInt(chunkId).array();
+	}
+
+	private static synchronized byte[] masterKey(boolean create) throws IOException {
+		if (masterKey != null)
+			return masterKey;
+		try {
+			masterKey = readMasterKey();
+		} catch (NoSuchFileException e) {
+			if (!create)
+				throw new IOException("Chunk is encrypted but there is no master key at " + KEY_FILE);
+			masterKey = createMasterKey();
+		}
+		return masterKey;
+	}
+
+	private static byte[] createMasterKey() throws IOException {
+		byte[] key = new byte[32];
+		RANDOM.nextBytes(key);
+		Path dir = KEY_FILE.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		// Written in full under another name and then linked into place, so the key file
+		// is never seen empty or half written. The link fails if the key file exists, so
+		// owner processes racing here all end up with the one key that won. Owner-only
+		// from the start, where the file system has POSIX permissions.
+		Path tmp;
+		try {
+			tmp = Files.createTempFile(dir, "master.key", ".tmp",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			tmp = Files.createTempFile(dir, "master.key", ".tmp");
+		}
+		try {
+			Files.write(tmp, key, StandardOpenOption.WRITE);
+			Files.createLink(KEY_FILE, tmp);
+		} catch (FileAlreadyExistsException e) {
+			return readMasterKey(); // another owner process got there first
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		System.out.println("Created master key " + KEY_FILE + "; keep a copy, encrypted backups cannot be restored without it");
+		return key;
+	}
+
+	private static byte[] readMasterKey() throws IOException {
+		byte[] key = Files.readAllBytes(KEY_FILE);
+		if (key.length != 32)
+			throw new IOException("Master key " + KEY_FILE + " must be 32 bytes, not " + key.length);
+		return key;
+	}
+
+	// HKDF-SHA256 (RFC 5869), one 32-byte block of output
+	private static byte[] hkdf(byte[] ikm, byte[] info) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(HKDF_SALT, "HmacSHA256"));
+			byte[] prk = mac.doFinal(ikm);
+			mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+			mac.update(info);
+			mac.update((byte) 1);
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e); // every JRE ships HmacSHA256
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.P2PBRS.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.P2PBRS.common.Config;
+import com.P2PBRS.common.Lz4Block;
+
+/**
+ * Optional per-chunk compression on the owner.
+ *
+ * An encoded chunk is stored as an envelope: "P2PC" magic, codec, raw length and raw
+ * CRC, then the payload. Storage peers treat it as opaque bytes (their CRC covers the
+ * envelope); restore unwraps it and checks the raw CRC. Chunks that do not shrink are
+ * stored raw, so the zero-copy upload path still applies to them. A raw chunk that
+ * happens to start with this magic or {@link ChunkCipher}'s is wrapped with codec NONE
+ * so decoding is never ambiguous.
+ *
+ * Before compressing a whole chunk, three small slices of it are compressed; if they
+ * do not save MIN_SAVING the chunk is assumed incompressible (media, archives,
+ * encrypted data) and skipped.
+ */
+public final class ChunkCodec {
+	public static final byte NONE = 0;
+	public static final byte LZ4 = 1;
+	public static final byte DEFLATE = 2;
+
+	private static final int MAGIC = 0x50325043; // "P2PC"
+	private static final int HEADER_BYTES = 13; // magic, codec, raw length, raw crc
+	private static final int SAMPLE_BYTES = 4096; // per slice
+	private static final double MIN_SAVING = Config.getDouble("p2pbrs.compress.minSaving", 0.10);
+	private static final int DEFLATE_LEVEL = Config.getInt("p2pbrs.compress.deflateLevel", Deflater.DEFAULT_COMPRESSION);
+
+	private final byte codec;
+
+	private ChunkCodec(byte codec) {
+		this.codec = codec;
+	}
+
+	/** none | lz4 | deflate */
+	public static ChunkCodec forName(String name) {
+		switch (name.toLowerCase()) {
+		case "none":
+			return new ChunkCodec(NONE);
+		case "lz4":
+			return new ChunkCodec(LZ4);
+		case "deflate":
+			return new ChunkCodec(DEFLATE);
+		default:
+			throw new IllegalArgumentException("Unknown codec: " + name + " (none, lz4 or deflate)");
+		}
+	}
+
+	public byte codec() {
+		return codec;
+	}
+
+	/**
+	 * The bytes to store for a chunk, or null to store it raw. raw is read from its
+	 * position to its limit and left unchanged.
+	 */
+	public byte[] encode(ByteBuffer raw, long rawCrc) {
+		int length = raw.remaining();
+		boolean magic = length >= 4
+				&& (raw.getInt(raw.position()) == MAGIC || raw.getInt(raw.position()) == ChunkCipher.MAGIC);
+		if (codec == NONE || length < 64 || !sampleCompresses(raw)) {
+			return magic ? stored(rawCrc, bytes(raw)) : null;
+		}
+
+		byte[] src = bytes(raw);
+		byte[] out = new byte[HEADER_BYTES + Lz4Block.maxCompressedLength(length)];
+		int n = compress(codec, src, length, out, HEADER_BYTES);
+		if (n > length * (1 - MIN_SAVING)) {
+			return magic ? stored(rawCrc, src) : null;
+		}
+		writeHeader(out, codec, length, rawCrc);
+		byte[] stored = new byte[HEADER_BYTES + n];
+		System.arraycopy(out, 0, stored, 0, stored.length);
+		return stored;
+	}
+
+	/** The chunk's original bytes: unwrapped if it is an envelope, otherwise as stored. */
+	public static byte[] decode(byte[] stored) throws IOException {
+		if (stored.length < HEADER_BYTES || ByteBuffer.wrap(stored).getInt() != MAGIC)
+			return stored;
+		ByteBuffer h = ByteBuffer.wrap(stored);
+		h.getInt();
+		byte codec = h.get();
+		int rawLength = h.getInt();
+		long rawCrc = h.getInt() & 0xFFFFFFFFL;
+		int n = stored.length - HEADER_BYTES;
+		if (rawLength < 0 || rawLength > PeerTransport.MAX_FRAME_BYTES)
+			throw new IOException("Corrupt chunk envelope: raw length " + rawLength);
+
+		byte[] raw;
+		switch (codec) {
+		case NONE:
+			raw = new byte[n];
+			System.arraycopy(stored, HEADER_BYTES, raw, 0, n);
+			break;
+		case LZ4:
+			raw = Lz4Block.decompress(stored, HEADER_BYTES, n, rawLength);
+			break;
+		case DEFLATE:
+			raw = inflate(stored, HEADER_BYTES, n, rawLength);
+			break;
+		default:
+			throw new IOException("Unknown chunk codec " + codec);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+		if (raw.length != rawLength || crc.getValue() != rawCrc)
+			throw new IOException("Checksum mismatch after decoding chunk");
+		return raw;
+	}
+
+	// Compress the start, middle and end of the chunk; cheap next to compressing all of it
+	private boolean sampleCompresses(ByteBuffer raw) {
+		int length = raw.remaining();
+		if (length <= 3 * SAMPLE_BYTES)
+			return true;
+		byte[] sample = new byte[3 * SAMPLE_BYTES];
+		int[] starts = { 0, length / 2 - SAMPLE_BYTES / 2, length - SAMPLE_BYTES };
+		for (int i = 0; i < starts.length; i++) {
+			ByteBuffer slice = raw.duplicate();
+			slice.position(raw.position() + starts[i]);
+			slice.get(sample, i * SAMPLE_BYTES, SAMPLE_BYTES);
+		}
+		byte[] out = new byte[Lz4Block.maxCompressedLength(sample.length)];
+		return compress(codec, sample, sample.length, out, 0) <= sample.length * (1 - MIN_SAVING);
+	}
+
+	private static int compress(byte codec, byte[] src, int length, byte[] dst, int dstOff) {
+		if (codec == LZ4)
+			return Lz4Block.compress(src, 0, length, dst, dstOff);
+		Deflater deflater = new Deflater(DEFLATE_LEVEL, true);
+		try {
+			deflater.setInput(src, 0, length);
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished() && dstOff + n < dst.length)
+				n += deflater.deflate(dst, dstOff + n, dst.length - dstOff - n);
+			return deflater.finished() ? n : Integer.MAX_VALUE;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] src, int off, int len, int rawLength) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(src, off, len);
+			byte[] raw = new byte[rawLength];
+			int n = 0;
+			while (n < rawLength && !inflater.finished()) {
+				int k = inflater.inflate(raw, n, rawLength - n);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += k;
+			}
+			if (n != rawLength)
+				throw new IOException("Corrupt deflate chunk: " + n + " bytes instead of " + rawLength);
+			return raw;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt deflate chunk: " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	// Envelope with codec NONE
+	private static byte[] stored(long rawCrc, byte[] raw) {
+		byte[] out = new byte[HEADER_BYTES + raw.length];
+		writeHeader(out, NONE, raw.length, rawCrc);
+		System.arraycopy(raw, 0, out, HEADER_BYTES, raw.length);
+		return out;
+	}
+
+	private static void writeHeader(byte[] out, byte codec, int rawLength, long rawCrc) {
+		ByteBuffer.wrap(out).putInt(MAGIC).put(codec).putInt(rawLength).putInt((int) rawCrc);
+	}
+
+	private static byte[] bytes(ByteBuffer raw) {
+		byte[] b = new byte[raw.remaining()];
+		raw.duplicate().get(b);
+		return b;
+	}
+}
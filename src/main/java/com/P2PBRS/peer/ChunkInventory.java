@@ -0,0 +1,311 @@
+package com.P2PBRS.peer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.P2PBRS.common.ChecksumAlgorithm;
+import com.P2PBRS.common.ChunkRanges;
+import com.P2PBRS.common.Config;
+import com.P2PBRS.common.MerkleInventory;
+import com.P2PBRS.network.NetworkUtils;
+
+/**
+ * A storage peer's view of what is actually in storage_<name>: a Merkle tree of
+ * (file, chunk, crc) kept current on every write and by a periodic disk rescan
+ * (catches manual deletions and edits). Its root rides along with each heartbeat;
+ * when the server's view differs, {@link #startSync} walks only the differing
+ * subtrees.
+ *
+ * The per-chunk value is CRC-32C of the stored bytes, whatever algorithm the chunk
+ * arrived with; it only has to agree between this peer's writes and its rescans.
+ */
+public class ChunkInventory {
+	private static final long RESCAN_MS = Config.getLong("p2pbrs.inventory.rescanMs", 60_000);
+
+	private final Path storageDir;
+	private final MerkleInventory tree = new MerkleInventory();
+	private final Map<String, long[]> fileStamps = new HashMap<>(); // "file:chunk" -> {size, mtime}
+	private final AtomicBoolean syncing = new AtomicBoolean();
+
+	public ChunkInventory(Path storageDir) {
+		this.storageDir = storageDir;
+	}
+
+	public long root() {
+		return tree.root();
+	}
+
+	public int size() {
+		return tree.size();
+	}
+
+	/** Entries of one leaf, used by the sync walk and by the bulk report. */
+	public List<MerkleInventory.Entry> entries(int leaf) {
+		return tree.entries(leaf);
+	}
+
+	/** Record a chunk that was just written and verified. */
+	public void recordStored(String fileName, int chunkId, long crc) {
+		tree.put(fileName, chunkId, crc);
+		synchronized (fileStamps) {
+			fileStamps.put(fileName + ":" + chunkId, stamp(chunkPath(fileName, chunkId)));
+		}
+	}
+
+	/**
+	 * Bring the tree in line with the disk. Unchanged files (same size and mtime) are
+	 * not re-read, so a rescan of an unchanged store only lists directories. A chunk or
+	 * directory that cannot be read counts as missing; the rest of the scan goes on.
+	 */
+	public void rescan() {
+		int added = 0, removed = 0, changed = 0, unreadable = 0;
+		Map<String, long[]> seen = new HashMap<>();
+		Set<String> before;
+		synchronized (fileStamps) {
+			before = new HashSet<>(fileStamps.keySet());
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(storageDir, Files::isDirectory)) {
+			for (Path fileDir : files) {
+				String fileName = fileDir.getFileName().toString();
+				try (DirectoryStream<Path> chunks = Files.newDirectoryStream(fileDir, "chunk*")) {
+					for (Path chunk : chunks) {
+						int chunkId;
+						try {
+							chunkId = Integer.parseInt(chunk.getFileName().toString().substring(5));
+						} catch (NumberFormatException e) {
+							continue;
+						}
+						String key = fileName + ":" + chunkId;
+						long[] stamp = stamp(chunk);
+						if (stamp[0] < 0)
+							continue; // deleted since the listing
+
+						long[] known;
+						synchronized (fileStamps) {
+							known = fileStamps.get(key);
+						}
+						if (known != null && known[0] == stamp[0] && known[1] == stamp[1] && tree.contains(fileName, chunkId)) {
+							seen.put(key, stamp);
+							continue;
+						}
+
+						long crc;
+						try {
+							crc = crcOf(chunk);
+						} catch (IOException e) {
+							unreadable++; // not seen, so dropped below like a deleted chunk
+							continue;
+						}
+						if (tree.contains(fileName, chunkId))
+							changed++;
+						else
+							added++;
+						tree.put(fileName, chunkId, crc);
+						seen.put(key, stamp);
+					}
+				} catch (IOException | DirectoryIteratorException e) {
+					// Removed or unreadable mid-scan: whatever was not listed counts as missing
+					System.err.println("Inventory rescan: cannot list " + fileDir + ": " + e.getMessage());
+				}
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			System.err.println("Inventory rescan failed: " + e.getMessage());
+			return;
+		}
+
+		// Only entries known before the scan can be missing; chunks stored meanwhile are kept
+		synchronized (fileStamps) {
+			for (String key : before) {
+				if (!seen.containsKey(key)) {
+					int sep = key.lastIndexOf(':');
+					tree.remove(key.substring(0, sep), Integer.parseInt(key.substring(sep + 1)));
+					fileStamps.remove(key);
+					removed++;
+				}
+			}
+			fileStamps.putAll(seen);
+		}
+
+		if (added + removed + changed > 0) {
+			System.out.println("Inventory rescan: " + tree.size() + " chunks (+" + added + " -" + removed + " ~" + changed
+					+ ")" + (unreadable > 0 ? "; " + unreadable + " unreadable" : ""));
+		}
+	}
+
+	public void startRescans() {
+		Thread t = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(RESCAN_MS);
+					rescan();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "Inventory-Rescan");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Send the whole inventory over the server's TCP control channel in one report,
+	 * e.g. right after registering, so the server rebuilds its chunk index at once
+	 * instead of walking all 256 leaves over UDP.
+	 */
+	public void startReport(UDPClient client, PeerNode self) {
+		runExclusive("Inventory-Report", () -> {
+			long start = System.currentTimeMillis();
+			List<String> lines = reportLines();
+			String reply = client.sendInventoryReport(self.getName(), self.getUdpPort(), lines);
+			System.out.println("Inventory report of " + lines.size() + " chunks: " + reply + " ("
+					+ (System.currentTimeMillis() - start) + " ms)");
+		});
+	}
+
+	// One "file chunk size crcHex" line per stored chunk
+	private List<String> reportLines() {
+		List<String> lines = new ArrayList<>();
+		for (int leaf = 0; leaf < MerkleInventory.LEAVES; leaf++) {
+			for (MerkleInventory.Entry e : tree.entries(leaf)) {
+				long[] stamp;
+				synchronized (fileStamps) {
+					stamp = fileStamps.get(e.fileName + ":" + e.chunkId);
+				}
+				long size = stamp == null ? -1 : stamp[0];
+				lines.add(e.fileName + " " + e.chunkId + " " + size + " " + Long.toHexString(e.crc));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Reconcile with the server in the background. Compares the 16 group hashes,
+	 * then the leaf hashes of differing groups, then sends the entries of
+	 * differing leaves only.
+	 */
+	public void startSync(UDPClient client, String peerName) {
+		runExclusive("Inventory-Sync", () -> sync(client, peerName));
+	}
+
+	private interface Task {
+		void run() throws Exception;
+	}
+
+	// At most one report or walk at a time
+	private void runExclusive(String name, Task task) {
+		if (!syncing.compareAndSet(false, true))
+			return;
+		Thread t = new Thread(() -> {
+			try {
+				task.run();
+			} catch (Exception e) {
+				System.err.println(name + " failed: " + e.getMessage());
+			} finally {
+				syncing.set(false);
+			}
+		}, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void sync(UDPClient client, String peerName) throws Exception {
+		long start = System.currentTimeMillis();
+		int packets = 0, sentEntries = 0;
+
+		String reply = client.sendInventorySync(PeerMain.nextRequest(), peerName, "-",
+				MerkleInventory.encodeHashes(tree.groupHashes()));
+		packets++;
+		List<Integer> leaves = new ArrayList<>();
+		for (int group : parseDiff(reply)) {
+			reply = client.sendInventorySync(PeerMain.nextRequest(), peerName, String.valueOf(group),
+					MerkleInventory.encodeHashes(tree.leafHashes(group)));
+			packets++;
+			leaves.addAll(parseDiff(reply));
+		}
+
+		for (int leaf : leaves) {
+			List<String> tokens = new ArrayList<>();
+			for (MerkleInventory.Entry e : tree.entries(leaf)) {
+				tokens.add(e.encode());
+			}
+			sentEntries += tokens.size();
+
+			List<String> parts = splitEntries(tokens, NetworkUtils.MAX_DATAGRAM_PAYLOAD - 80);
+			for (int i = 0; i < parts.size(); i++) {
+				String payload = parts.get(i);
+				reply = client.sendInventoryLeaf(PeerMain.nextRequest(), peerName, leaf, (i + 1) + "/" + parts.size(),
+						payload);
+				packets++;
+				if (reply.contains("ERROR")) {
+					throw new IOException("Server rejected leaf " + leaf + ": " + reply);
+				}
+			}
+		}
+
+		System.out.println("Inventory sync: " + leaves.size() + " leaves differed, " + sentEntries + " entries sent in "
+				+ packets + " requests (" + (System.currentTimeMillis() - start) + " ms)");
+	}
+
+	// Space separated entries, split to stay within one datagram each
+	private static List<String> splitEntries(List<String> tokens, int maxLength) {
+		List<String> parts = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		for (String token : tokens) {
+			if (sb.length() > 0 && sb.length() + 1 + token.length() > maxLength) {
+				parts.add(sb.toString());
+				sb.setLength(0);
+			}
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(token);
+		}
+		if (sb.length() > 0 || parts.isEmpty())
+			parts.add(sb.toString());
+		return parts;
+	}
+
+	// INVENTORY_DIFF RQ# none|ranges
+	private static List<Integer> parseDiff(String reply) throws IOException {
+		String[] c = reply.split("\\s+");
+		if (c.length < 3 || !"INVENTORY_DIFF".equals(c[0]) || "ERROR".equals(c[2]))
+			throw new IOException("Unexpected reply: " + reply);
+		return "none".equals(c[2]) ? new ArrayList<>() : ChunkRanges.decode(c[2]);
+	}
+
+	private Path chunkPath(String fileName, int chunkId) {
+		return storageDir.resolve(fileName).resolve("chunk" + chunkId);
+	}
+
+	private static long[] stamp(Path p) {
+		try {
+			return new long[] { Files.size(p), Files.getLastModifiedTime(p).toMillis() };
+		} catch (IOException e) {
+			return new long[] { -1, -1 };
+		}
+	}
+
+	private static long crcOf(Path p) throws IOException {
+		return fingerprint(Files.readAllBytes(p));
+	}
+
+	static long fingerprint(byte[] data) {
+		return ChecksumAlgorithm.CRC32C.value(data);
+	}
+
+	/** As {@link #fingerprint(byte[])}, reusing a CRC-32C the data was just verified against. */
+	static long fingerprint(String verifiedChecksum, byte[] data) {
+		if (ChecksumAlgorithm.of(verifiedChecksum) == ChecksumAlgorithm.CRC32C)
+			return ChecksumAlgorithm.toLong(ChecksumAlgorithm.digestOf(verifiedChecksum));
+		return fingerprint(data);
+	}
+}
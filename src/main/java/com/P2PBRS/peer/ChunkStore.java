@@ -0,0 +1,51 @@
+package com.P2PBRS.peer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.P2PBRS.common.ChecksumAlgorithm;
+
+/**
+ * Chunk files of a storage peer (storage_<name>/<file>/chunk<id>), shared by the
+ * line-based TCP handlers and the framed {@link PeerTransport}.
+ */
+public class ChunkStore {
+	private final Path storageDir;
+	private final PeerNode self;
+	private final ChunkInventory inventory;
+
+	public ChunkStore(Path storageDir, PeerNode self, ChunkInventory inventory) {
+		this.storageDir = storageDir;
+		this.self = self;
+		this.inventory = inventory;
+	}
+
+	public Path chunkPath(String fileName, int chunkId) {
+		return storageDir.resolve(fileName).resolve("chunk" + chunkId);
+	}
+
+	/**
+	 * Verify a chunk against the sender's checksum tag ({@link ChecksumAlgorithm}) and
+	 * store it. Returns false (and stores nothing) on a mismatch.
+	 */
+	public boolean store(String fileName, int chunkId, byte[] data, String checksum) throws IOException {
+		if (!ChecksumAlgorithm.verify(checksum, data)) {
+			System.err.println("Checksum mismatch for " + fileName + " chunk " + chunkId + ": expected " + checksum
+					+ ", actual " + ChecksumAlgorithm.of(checksum).tag(data));
+			return false;
+		}
+		Path chunkFile = chunkPath(fileName, chunkId);
+		Files.createDirectories(chunkFile.getParent());
+		Files.write(chunkFile, data);
+		inventory.recordStored(fileName, chunkId, ChunkInventory.fingerprint(checksum, data));
+		self.setNumberChunksStored(self.getNumberChunksStored() + 1); // Update number of chunks stored
+		return true;
+	}
+
+	/** The chunk's bytes, or null if this peer does not hold it. */
+	public byte[] read(String fileName, int chunkId) throws IOException {
+		Path chunkFile = chunkPath(fileName, chunkId);
+		return Files.exists(chunkFile) ? Files.readAllBytes(chunkFile) : null;
+	}
+}
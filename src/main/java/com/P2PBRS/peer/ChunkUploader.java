@@ -0,0 +1,462 @@
+package com.P2PBRS.peer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import com.P2PBRS.common.ChecksumAlgorithm;
+import com.P2PBRS.common.Config;
+import com.P2PBRS.common.Crc32Combine;
+
+/**
+ * Pipelined chunk upload for the backup command.
+ *
+ * The calling thread is the reader stage: it maps each chunk's region of the file, in
+ * order, and passes it to the prepare stage, a fork/join pool (p2pbrs.prepare.threads,
+ * one thread per core by default). There each chunk's CRC and SHA-256 are computed on
+ * the mapped buffer (both go into the owner's manifest) and the chunk is handed to the
+ * lane of the peer it is placed on, so chunks reach their lanes in whatever order they
+ * are ready; the whole-file CRC is combined from the chunk CRCs in file order at the
+ * end. Each lane keeps up to WINDOW stores in flight over the pooled
+ * {@link PeerTransport} connections to its peer, so all peers are fed at once. Stores,
+ * acks and retries run on a separate send pool, since a send blocks on the socket and
+ * the traffic shaper; a slow peer never holds up the prepare stage. The
+ * bytes go from the file to the socket with transferTo and are never copied into the
+ * Java heap; a retry just sends the region again. Regions read but not yet acked are
+ * capped by MAX_BUFFERED_BYTES and the job's chunk limit, which bound the read-ahead and
+ * the prepare backlog, and count against the in-flight budget shared by all
+ * {@link TransferJobs}.
+ *
+ * With p2pbrs.compress set, the prepare stage also encodes each chunk ({@link ChunkCodec});
+ * chunks that shrink are sent from the heap, the rest still go zero-copy. With
+ * p2pbrs.encrypt, every chunk is then sealed ({@link ChunkCipher}) and sent from the
+ * heap. Hashes and CRCs in the manifest are of the raw data, so dedup does not depend
+ * on the codec or the key. Each store carries a checksum of what is sent, in the
+ * p2pbrs.checksum algorithm.
+ *
+ * With a {@link TransferCheckpoint}, every ack is recorded and chunks acked by an
+ * earlier attempt are read (their CRCs and hashes are still needed) but not sent.
+ * Interrupting the calling thread (cancelling the job) drops the chunks not yet sent
+ * and ends the upload with InterruptedException; stores already in flight still land.
+ */
+public class ChunkUploader {
+	private static final int WINDOW = Config.getInt("p2pbrs.upload.window", 8);
+	private static final long MAX_BUFFERED_BYTES = Config.getLong("p2pbrs.upload.maxBufferedBytes", 64L << 20);
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long RETRY_DELAY_MS = 500;
+	private static final ChunkCodec CODEC = ChunkCodec.forName(Config.getString("p2pbrs.compress", "none"));
+	private static final ChecksumAlgorithm CHECKSUM = ChecksumAlgorithm.DEFAULT;
+	private static final ForkJoinPool PREPARE_POOL = new ForkJoinPool(
+			Config.getInt("p2pbrs.prepare.threads", Runtime.getRuntime().availableProcessors()));
+	private static final ExecutorService SEND_POOL = Executors.newCachedThreadPool(PeerTransport.daemon("Chunk-Send"));
+
+	private final String fileName;
+	private final int chunkSize;
+	private final List<Lane> lanes = new ArrayList<>();
+	private final Semaphore buffered; // one permit per chunk read but not yet acked or failed
+	private final TransferJobs.Job job = TransferJobs.current(); // for progress, null outside a job
+	private final PeerTransport transport = PeerTransport.get();
+	private final ChunkCipher cipher; // null unless p2pbrs.encrypt
+	private FileChannel file; // open for the duration of upload()
+	private TransferCheckpoint checkpoint; // optional
+	private volatile boolean aborted;
+
+	public static final class Target {
+		final String name;
+		final String ip;
+		final int port;
+
+		public Target(String name, String ip, int port) {
+			this.name = name;
+			this.ip = ip;
+			this.port = port;
+		}
+	}
+
+	public static final class Result {
+		public final int chunks;
+		public final long bytes; // raw bytes sent
+		public final long sentBytes; // after compression
+		public final int resumed; // chunks already stored by an earlier attempt, not sent again
+		public final long millis;
+		public final long fileCrc; // CRC-32 of the whole file, combined from the chunk CRCs (fixed-size uploads)
+		public final long[] crcs; // per chunk id (fixed-size uploads)
+		public final byte[][] sha256; // per chunk id (fixed-size uploads)
+		public final List<Integer> failed;
+
+		Result(int chunks, long bytes, long sentBytes, int resumed, long millis, long fileCrc, long[] crcs,
+				byte[][] sha256, List<Integer> failed) {
+			this.chunks = chunks;
+			this.bytes = bytes;
+			this.sentBytes = sentBytes;
+			this.resumed = resumed;
+			this.millis = millis;
+			this.fileCrc = fileCrc;
+			this.crcs = crcs;
+			this.sha256 = sha256;
+			this.failed = failed;
+		}
+
+		public boolean ok() {
+			return failed.isEmpty();
+		}
+
+		public double mbPerSec() {
+			return millis == 0 ? 0 : bytes / 1048576.0 / (millis / 1000.0);
+		}
+	}
+
+	/** A chunk at an explicit place in the file, for a given peer (content-defined plans). */
+	public static final class Region {
+		final int chunkId;
+		final long position;
+		final int length;
+		final long crc;
+		final int peer; // index into the uploader's peer list
+
+		public Region(int chunkId, long position, int length, long crc, int peer) {
+			this.chunkId = chunkId;
+			this.position = position;
+			this.length = length;
+			this.crc = crc;
+			this.peer = peer;
+		}
+	}
+
+	private static final class Chunk {
+		final int id;
+		final long position;
+		final int length;
+		final String checksum; // tag of what is sent: the file region, or data
+		final byte[] data; // encoded chunk, null to send the region as is
+		final CompletableFuture<Void> acked = new CompletableFuture<>();
+		int attempts;
+
+		Chunk(int id, long position, int length, String checksum, byte[] data) {
+			this.id = id;
+			this.position = position;
+			this.length = length;
+			this.checksum = checksum;
+			this.data = data;
+		}
+
+		int sentLength() {
+			return data != null ? data.length : length;
+		}
+	}
+
+	public ChunkUploader(String fileName, int chunkSize, List<Target> peers) throws IOException {
+		this.fileName = fileName;
+		this.chunkSize = chunkSize;
+		this.cipher = ChunkCipher.ENABLED ? ChunkCipher.forFile(fileName) : null;
+		this.buffered = new Semaphore((int) Math.max(1, Math.min(TransferJobs.CHUNKS_PER_JOB, MAX_BUFFERED_BYTES / chunkSize)));
+		for (Target t : peers) {
+			lanes.add(new Lane(t));
+		}
+	}
+
+	/** Skip chunks the checkpoint already has and record the ones acked from now on. */
+	public ChunkUploader resume(TransferCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+		return this;
+	}
+
+	private boolean alreadyStored(int chunkId) {
+		return checkpoint != null && checkpoint.has(chunkId);
+	}
+
+	/** Upload the file; chunk i goes to peers[i % peers.size()], as in the server's plan. */
+	public Result upload(Path path) throws IOException, InterruptedException {
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			file = fc;
+			// Keep the file open until every region has been sent
+			return uploadSequential(fc.size(), (position, length) -> fc.map(FileChannel.MapMode.READ_ONLY, position, length));
+		}
+	}
+
+	/**
+	 * Upload size bytes of a stream that has no file behind it (directory packs), in
+	 * the same order and placement; chunks are read into the heap.
+	 */
+	public Result upload(InputStream in, long size) throws IOException, InterruptedException {
+		return uploadSequential(size, (position, length) -> {
+			byte[] data = in.readNBytes(length);
+			if (data.length != length)
+				throw new IOException("Stream ended at " + (position + data.length) + " of " + size + " bytes");
+			return ByteBuffer.wrap(data);
+		});
+	}
+
+	// Where the reader stage gets chunk bytes from: a mapped file region, or a heap buffer
+	private interface Source {
+		ByteBuffer read(long position, int length) throws IOException;
+	}
+
+	private Result uploadSequential(long size, Source source) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		int count = (int) ((size + chunkSize - 1) / chunkSize);
+		long[] crcs = new long[count];
+		byte[][] hashes = new byte[count][];
+		Chunk[] chunks = new Chunk[count]; // null where an earlier attempt already stored it
+		Map<Integer, CompletableFuture<Void>> done = new LinkedHashMap<>();
+		int chunkId = 0;
+		List<Integer> failed;
+		try {
+			for (long position = 0; position < size; position += chunkSize) {
+				int length = (int) Math.min(chunkSize, size - position);
+				ByteBuffer region = read(source, position, length);
+				int id = chunkId++;
+				long at = position;
+				// Hash and encode on the pool; each chunk goes to its lane as soon as it is ready
+				done.put(id, submit(id % lanes.size(), length, () -> {
+					crcs[id] = ChecksumAlgorithm.CRC32.value(region);
+					hashes[id] = cipher != null ? cipher.chunkHash(region) : ChecksumAlgorithm.SHA256.digest(region);
+					if (alreadyStored(id)) {
+						if (job != null)
+							job.skip(length);
+						return null;
+					}
+					return chunks[id] = encode(id, at, region, crcs[id], hashes[id]);
+				}));
+			}
+			failed = awaitAll(done);
+		} catch (InterruptedException | IOException | RuntimeException e) {
+			abort();
+			throw e;
+		}
+		long fileCrc = 0;
+		long bytes = 0;
+		long sent = 0;
+		int resumed = 0;
+		for (int i = 0; i < count; i++) {
+			int length = (int) Math.min(chunkSize, size - (long) i * chunkSize);
+			fileCrc = Crc32Combine.combine(fileCrc, crcs[i], length); // in file order, whatever order they were hashed in
+			if (chunks[i] != null) {
+				bytes += length;
+				sent += chunks[i].sentLength();
+			} else if (!failed.contains(i)) {
+				resumed++;
+			}
+		}
+		return new Result(count, bytes, sent, resumed, System.currentTimeMillis() - start, fileCrc, crcs, hashes,
+				failed);
+	}
+
+	/** Upload only the given regions of the file, each to its own peer. */
+	public Result upload(Path path, List<Region> regions) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		Chunk[] chunks = new Chunk[regions.size()];
+		Map<Integer, CompletableFuture<Void>> done = new LinkedHashMap<>();
+		long bytes = 0;
+		int resumed = 0;
+		List<Integer> failed;
+
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			file = fc;
+			try {
+				for (int i = 0; i < regions.size(); i++) {
+					Region r = regions.get(i);
+					if (alreadyStored(r.chunkId)) {
+						if (job != null)
+							job.skip(r.length);
+						resumed++;
+						continue;
+					}
+					ByteBuffer region = read((position, length) -> fc.map(FileChannel.MapMode.READ_ONLY, position, length),
+							r.position, r.length);
+					int index = i;
+					done.put(r.chunkId, submit(r.peer, r.length, () -> chunks[index] = encode(r.chunkId, r.position, region, r.crc, null)));
+					bytes += r.length;
+				}
+				failed = awaitAll(done);
+			} catch (InterruptedException | IOException | RuntimeException e) {
+				abort();
+				throw e;
+			}
+		}
+		long sent = 0;
+		for (Chunk c : chunks)
+			sent += c == null ? 0 : c.sentLength();
+		return new Result(done.size(), bytes, sent, resumed, System.currentTimeMillis() - start, 0, null, null, failed);
+	}
+
+	// Back-pressure: wait until an earlier chunk of this upload, then of any job, is acked,
+	// then read the chunk. Its permits go back once it is acked or failed (submit), or
+	// here if it cannot be read.
+	private ByteBuffer read(Source source, long position, int length) throws IOException, InterruptedException {
+		buffered.acquire();
+		try {
+			TransferJobs.reserve(length);
+		} catch (InterruptedException e) {
+			buffered.release();
+			throw e;
+		}
+		try {
+			return source.read(position, length);
+		} catch (IOException | RuntimeException e) {
+			TransferJobs.release(length);
+			buffered.release();
+			throw e;
+		}
+	}
+
+	// Prepare a chunk on the pool, hand it to its lane on the send pool, and complete once
+	// it is acked (at once if prepare returns null: nothing to send). Frees the read-ahead
+	// permit and the chunk's share of the jobs' in-flight budget either way.
+	private CompletableFuture<Void> submit(int lane, int length, Supplier<Chunk> prepare) {
+		CompletableFuture<Void> done = CompletableFuture.supplyAsync(prepare, PREPARE_POOL).thenComposeAsync(chunk -> {
+			if (chunk == null)
+				return CompletableFuture.completedFuture(null);
+			lanes.get(lane).offer(chunk);
+			return chunk.acked;
+		}, SEND_POOL);
+		done.whenComplete((v, e) -> {
+			TransferJobs.release(length);
+			buffered.release();
+		});
+		return done;
+	}
+
+	private static List<Integer> awaitAll(Map<Integer, CompletableFuture<Void>> done) throws InterruptedException {
+		List<Integer> failed = new ArrayList<>();
+		for (Map.Entry<Integer, CompletableFuture<Void>> e : done.entrySet()) {
+			try {
+				e.getValue().get();
+			} catch (ExecutionException | CancellationException ex) {
+				failed.add(e.getKey());
+			}
+		}
+		return failed;
+	}
+
+	// Stop sending: queued chunks fail now, chunks still being prepared fail when they
+	// reach their lane, and failed stores are not retried
+	private void abort() {
+		aborted = true;
+		for (Lane lane : lanes)
+			lane.drain();
+	}
+
+	/**
+	 * Run task(0) .. task(count - 1) on the prepare pool, in parallel, and wait for all of
+	 * them (hashing the chunks of an incremental backup before the server plans it).
+	 */
+	static void prepareAll(int count, IntConsumer task) {
+		PREPARE_POOL.submit(() -> IntStream.range(0, count).parallel().forEach(task)).join();
+	}
+
+	// Heap buffers have no file region to fall back on, so they are always sent as data.
+	// A raw chunk's CRC-32 or SHA-256 (sha256 may be null) doubles as its wire checksum.
+	private Chunk encode(int chunkId, long position, ByteBuffer raw, long rawCrc, byte[] sha256) {
+		int length = raw.remaining();
+		byte[] data = CODEC.encode(raw, rawCrc);
+		if (cipher != null)
+			data = cipher.seal(chunkId, data != null ? ByteBuffer.wrap(data) : raw); // compress, then encrypt
+		if (data != null)
+			return new Chunk(chunkId, position, length, CHECKSUM.tag(data), data);
+		String checksum = CHECKSUM == ChecksumAlgorithm.CRC32 ? CHECKSUM.format(rawCrc)
+				: CHECKSUM == ChecksumAlgorithm.SHA256 && sha256 != null ? CHECKSUM.format(sha256) : CHECKSUM.tag(raw);
+		return new Chunk(chunkId, position, length, checksum, raw.hasArray() ? raw.array() : null);
+	}
+
+	/** Chunks placed on one storage peer, sent as the window allows. */
+	private final class Lane {
+		final Target target;
+		final Queue<Chunk> queue = new ArrayDeque<>();
+		int inFlight;
+
+		Lane(Target target) {
+			this.target = target;
+		}
+
+		void offer(Chunk chunk) {
+			synchronized (this) {
+				queue.add(chunk);
+			}
+			if (aborted)
+				drain();
+			pump();
+		}
+
+		void drain() {
+			List<Chunk> dropped;
+			synchronized (this) {
+				dropped = new ArrayList<>(queue);
+				queue.clear();
+			}
+			for (Chunk chunk : dropped)
+				chunk.acked.cancel(false);
+		}
+
+		void pump() {
+			List<Chunk> toSend = new ArrayList<>();
+			synchronized (this) {
+				while (inFlight < WINDOW && !queue.isEmpty()) {
+					inFlight++;
+					toSend.add(queue.poll());
+				}
+			}
+			for (Chunk chunk : toSend) {
+				CompletableFuture<Void> stored = chunk.data != null
+						? transport.store(target.ip, target.port, fileName, chunk.id, chunk.data, chunk.checksum)
+						: transport.storeRegion(target.ip, target.port, fileName, chunk.id, file, chunk.position,
+								chunk.length, chunk.checksum);
+				stored.whenCompleteAsync((v, e) -> {
+					synchronized (this) {
+						inFlight--;
+					}
+					if (e == null) {
+						System.out.println("Received acknowledgment: CHUNK_OK " + chunk.id + " from " + target.name);
+						if (job != null)
+							job.progress(chunk.length);
+						if (checkpoint != null)
+							checkpoint.record(chunk.id);
+						chunk.acked.complete(null);
+					} else {
+						retry(chunk, e);
+					}
+					pump();
+				}, SEND_POOL);
+				System.out.println("Sent chunk " + chunk.id + " to " + target.name + " at " + target.ip + ":" + target.port);
+			}
+		}
+
+		void retry(Chunk chunk, Throwable cause) {
+			String reason = cause.getCause() != null ? cause.getCause().getMessage() : cause.getMessage();
+			chunk.attempts++;
+			if (aborted) {
+				chunk.acked.completeExceptionally(cause); // e.g. the file closed under a region store
+				return;
+			}
+			if (chunk.attempts >= MAX_ATTEMPTS) {
+				System.err.println("Giving up on chunk " + chunk.id + " for peer " + target.name + ": " + reason);
+				chunk.acked.completeExceptionally(cause);
+				return;
+			}
+			System.err.println("Retrying chunk " + chunk.id + " to " + target.name + " (attempt " + (chunk.attempts + 1)
+					+ "): " + reason);
+			CompletableFuture.runAsync(() -> offer(chunk),
+					CompletableFuture.delayedExecutor(RETRY_DELAY_MS * chunk.attempts, TimeUnit.MILLISECONDS, SEND_POOL));
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.P2PBRS.peer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A directory tree backed up as one logical file, "<dir>.pack": the contents of every
+ * regular file concatenated, then an index (path, offset, length, mtime, CRC and flags
+ * per file) and a fixed-size trailer pointing at the index.
+ *
+ * The pack goes through the normal chunk pipeline, so a tree of many small files costs
+ * one plan, one registry update and the pooled connections, not a round trip per file.
+ * A single file is restored by fetching the chunks that hold the trailer, the index
+ * and its own bytes.
+ *
+ * A file that cannot be opened, or vanishes or shrinks while it is packed, keeps its
+ * place in the layout (zero-filled) but is flagged DAMAGED in the index, with no CRC;
+ * restore reports it rather than writing the zeros out as the file.
+ */
+public class DirectoryPack {
+	private static final int TRAILER_MAGIC_V1 = 0x50325049; // "P2PI": entries without flags
+	private static final int TRAILER_MAGIC = 0x5032504A; // "P2PJ"
+	public static final int TRAILER_BYTES = 16; // index offset, index length, magic
+	private static final int ENTRY_FIXED_BYTES = 2 + 8 + 8 + 8 + 4 + 1; // path length, offset, length, mtime, crc, flags
+	private static final int DAMAGED = 1; // entry flag: the packed bytes are not the file's content
+
+	public static final class Entry {
+		public final String path; // relative, '/' separated
+		public final long offset;
+		public final long length;
+		public final long mtime;
+		long crc; // known once the file has been streamed
+		boolean damaged; // could not be read in full; crc is meaningless
+
+		Entry(String path, long offset, long length, long mtime, long crc, boolean damaged) {
+			this.path = path;
+			this.offset = offset;
+			this.length = length;
+			this.mtime = mtime;
+			this.crc = crc;
+			this.damaged = damaged;
+		}
+
+		public long crc() {
+			return crc;
+		}
+
+		public boolean damaged() {
+			return damaged;
+		}
+	}
+
+	private final Path root;
+	private final List<Entry> entries;
+	private final long dataBytes;
+	private final int indexBytes;
+
+	private DirectoryPack(Path root, List<Entry> entries, long dataBytes, int indexBytes) {
+		this.root = root;
+		this.entries = entries;
+		this.dataBytes = dataBytes;
+		this.indexBytes = indexBytes;
+	}
+
+	/** Lay out every regular file under root (sorted by path); sizes are taken now. */
+	public static DirectoryPack scan(Path root) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		long offset = 0;
+		int indexBytes = 4;
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(root)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		for (Path file : files) {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			String path = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+			entries.add(new Entry(path, offset, attrs.size(), attrs.lastModifiedTime().toMillis(), 0, false));
+			offset += attrs.size();
+			indexBytes += ENTRY_FIXED_BYTES + path.getBytes(StandardCharsets.UTF_8).length;
+		}
+		return new DirectoryPack(root, entries, offset, indexBytes);
+	}
+
+	public long size() {
+		return dataBytes + indexBytes + TRAILER_BYTES;
+	}
+
+	public int fileCount() {
+		return entries.size();
+	}
+
+	/** Newest mtime of any packed file, to tell whether the tree changed since a scan. */
+	public long newestMtime() {
+		long newest = 0;
+		for (Entry e : entries)
+			newest = Math.max(newest, e.mtime);
+		return newest;
+	}
+
+	/** Files that could not be read in full by the last open() stream; flagged DAMAGED in its index. */
+	public List<String> damaged() {
+		return entries.stream().filter(e -> e.damaged).map(e -> e.path).collect(Collectors.toList());
+	}
+
+	/**
+	 * The pack as a stream of exactly size() bytes. A file that grew since the scan is cut
+	 * off (the index CRC is of what was packed); one that shrank, vanished or cannot be
+	 * opened is zero-filled and flagged DAMAGED.
+	 */
+	public InputStream open() {
+		return new PackStream();
+	}
+
+	/** Index offset, index length and whether entries carry flags, from the last TRAILER_BYTES of a pack. */
+	public static long[] readTrailer(byte[] trailer) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(trailer);
+		long indexOffset = b.getLong();
+		int indexLength = b.getInt();
+		int magic = b.getInt();
+		if (trailer.length != TRAILER_BYTES || (magic != TRAILER_MAGIC && magic != TRAILER_MAGIC_V1)
+				|| indexOffset < 0 || indexLength < 4)
+			throw new IOException("Not a directory pack (bad trailer)");
+		return new long[] { indexOffset, indexLength, magic == TRAILER_MAGIC ? 1 : 0 };
+	}
+
+	public static List<Entry> readIndex(byte[] index, long[] trailer) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+		boolean flags = trailer[2] != 0;
+		int count = in.readInt();
+		List<Entry> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] path = new byte[in.readUnsignedShort()];
+			in.readFully(path);
+			entries.add(new Entry(new String(path, StandardCharsets.UTF_8), in.readLong(), in.readLong(), in.readLong(),
+					in.readInt() & 0xFFFFFFFFL, flags && (in.readByte() & DAMAGED) != 0));
+		}
+		return entries;
+	}
+
+	private byte[] indexAndTrailer() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(indexBytes + TRAILER_BYTES);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(entries.size());
+		for (Entry e : entries) {
+			byte[] path = e.path.getBytes(StandardCharsets.UTF_8);
+			out.writeShort(path.length);
+			out.write(path);
+			out.writeLong(e.offset);
+			out.writeLong(e.length);
+			out.writeLong(e.mtime);
+			out.writeInt(e.damaged ? 0 : (int) e.crc);
+			out.writeByte(e.damaged ? DAMAGED : 0);
+		}
+		out.writeLong(dataBytes);
+		out.writeInt(indexBytes);
+		out.writeInt(TRAILER_MAGIC);
+		return bytes.toByteArray();
+	}
+
+	// Files one after another, each opened only while it is being read, then the index
+	private final class PackStream extends InputStream {
+		private int next; // next entry to open
+		private Entry current;
+		private InputStream file;
+		private long left; // bytes of current still to deliver
+		private final CRC32 crc = new CRC32();
+		private byte[] tail; // index and trailer, once all files are done
+		private int tailPos;
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (current == null || left == 0) {
+				if (current != null)
+					finishEntry();
+				if (next == entries.size())
+					return readTail(b, off, len);
+				startEntry(entries.get(next++));
+			}
+
+			int n = (int) Math.min(len, left);
+			int got = file == null ? -1 : file.read(b, off, n);
+			if (got < 0) {
+				// Shrank (or vanished) since the scan: keep the layout, pad with zeros
+				if (file != null) {
+					System.err.println("Pack: " + current.path + " shrank while packing, marked damaged");
+					file.close();
+					file = null;
+				}
+				current.damaged = true;
+				got = n;
+				Arrays.fill(b, off, off + got, (byte) 0);
+			}
+			crc.update(b, off, got);
+			left -= got;
+			return got;
+		}
+
+		private void startEntry(Entry e) {
+			current = e;
+			left = e.length;
+			crc.reset();
+			e.damaged = false;
+			try {
+				file = e.length == 0 ? null : Files.newInputStream(root.resolve(e.path));
+			} catch (IOException ex) {
+				System.err.println("Pack: cannot read " + e.path + " (" + ex.getMessage() + "), marked damaged");
+				file = null;
+				e.damaged = true;
+			}
+		}
+
+		private void finishEntry() throws IOException {
+			current.crc = crc.getValue();
+			if (file != null)
+				file.close();
+			file = null;
+			current = null;
+		}
+
+		private int readTail(byte[] b, int off, int len) throws IOException {
+			if (tail == null)
+				tail = indexAndTrailer();
+			if (tailPos == tail.length)
+				return -1;
+			int n = Math.min(len, tail.length - tailPos);
+			System.arraycopy(tail, tailPos, b, off, n);
+			tailPos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (file != null)
+				file.close();
+		}
+	}
+}
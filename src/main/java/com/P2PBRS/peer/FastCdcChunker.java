@@ -0,0 +1,141 @@
+package com.P2PBRS.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content-defined chunking with FastCDC (Gear rolling hash, normalized chunking).
+ *
+ * A cut is placed where the Gear fingerprint of the last bytes matches a mask, so
+ * boundaries move with the content: inserting a byte near the start of a file only
+ * changes the chunk it falls in, not every chunk after it. The first minSize bytes of
+ * a chunk are skipped without hashing; before avgSize a harder mask is used and after
+ * it an easier one, which keeps chunk sizes close to the average.
+ */
+public class FastCdcChunker {
+	private static final long[] GEAR = new long[256];
+	private static final long MAP_WINDOW = 64L << 20; // files are mapped in windows of this size
+
+	static {
+		// Fixed seed: owners must cut identical content identically across runs
+		long seed = 0x2545F4914F6CDD1DL;
+		for (int i = 0; i < GEAR.length; i++) {
+			seed += 0x9E3779B97F4A7C15L;
+			long z = seed;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+
+	private final int minSize;
+	private final int avgSize;
+	private final int maxSize;
+	private final long maskS; // before avgSize: two bits harder than the average
+	private final long maskL; // after avgSize: two bits easier
+
+	public static final class Span {
+		public final long offset;
+		public final int length;
+
+		Span(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** Average chunk size avgSize, chunks between avgSize/4 and avgSize*4. */
+	public FastCdcChunker(int avgSize) {
+		this(Math.max(64, avgSize / 4), avgSize, avgSize * 4);
+	}
+
+	public FastCdcChunker(int minSize, int avgSize, int maxSize) {
+		if (minSize <= 0 || minSize > avgSize || avgSize > maxSize)
+			throw new IllegalArgumentException("Need 0 < min <= avg <= max");
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+		int bits = 31 - Integer.numberOfLeadingZeros(avgSize); // log2(avg)
+		maskS = topBits(bits + 2);
+		maskL = topBits(Math.max(1, bits - 2));
+	}
+
+	public int getAvgSize() {
+		return avgSize;
+	}
+
+	// The fingerprint is shifted left each byte, so its top bits cover the longest window
+	private static long topBits(int n) {
+		return -1L << (64 - n);
+	}
+
+	/** Length of the chunk starting at start; the data ends at end (end of file or of the buffer). */
+	public int cut(ByteBuffer buf, int start, int end) {
+		int n = end - start;
+		if (n <= minSize)
+			return n;
+		if (n > maxSize)
+			n = maxSize;
+		int normal = Math.min(avgSize, n);
+
+		long fp = 0;
+		int i = minSize;
+		for (; i < normal; i++) {
+			fp = (fp << 1) + GEAR[buf.get(start + i) & 0xFF];
+			if ((fp & maskS) == 0)
+				return i + 1;
+		}
+		for (; i < n; i++) {
+			fp = (fp << 1) + GEAR[buf.get(start + i) & 0xFF];
+			if ((fp & maskL) == 0)
+				return i + 1;
+		}
+		return n;
+	}
+
+	/** Chunk boundaries of a whole buffer. */
+	public List<Span> split(ByteBuffer buf) {
+		List<Span> spans = new ArrayList<>();
+		int end = buf.limit();
+		for (int off = 0; off < end;) {
+			int len = cut(buf, off, end);
+			spans.add(new Span(off, len));
+			off += len;
+		}
+		return spans;
+	}
+
+	/** Fixed-size boundaries, for files backed up without content-defined chunking. */
+	public static List<Span> fixed(long size, int chunkSize) {
+		List<Span> spans = new ArrayList<>();
+		for (long off = 0; off < size; off += chunkSize)
+			spans.add(new Span(off, (int) Math.min(chunkSize, size - off)));
+		return spans;
+	}
+
+	/** Chunk boundaries of a file, mapped window by window. */
+	public List<Span> split(FileChannel fc) throws IOException {
+		List<Span> spans = new ArrayList<>();
+		long size = fc.size();
+		long window = Math.max(MAP_WINDOW, 2L * maxSize);
+		long pos = 0;
+		while (pos < size) {
+			int length = (int) Math.min(size - pos, window);
+			boolean last = pos + length == size;
+			MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, pos, length);
+			int off = 0;
+			// Stop short of the window end unless it is the end of the file, so no cut is forced there
+			while (off < length && (last || length - off >= maxSize)) {
+				int len = cut(buf, off, length);
+				spans.add(new Span(pos + off, len));
+				off += len;
+			}
+			pos += off;
+		}
+		return spans;
+	}
+}
@@ -4,15 +4,33 @@ import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
+import com.P2PBRS.common.Config;
+import com.P2PBRS.common.MerkleInventory;
+
 public class HeartbeatSender extends Thread {
 
 	private final UDPClient client;
 	private final PeerNode self;
 	private volatile boolean running = true; // We need volatile to ensure threads see the same value
 
+	// One-way mode: the server only answers when we are behind (membership or config)
+	private final boolean oneWay = Config.getBoolean("p2pbrs.heartbeat.oneWay", true);
+	// Probe the server with a round trip after this many silent intervals
+	private final int silenceIntervals = Config.getInt("p2pbrs.heartbeat.serverSilenceIntervals", 6);
+
+	private volatile long intervalMs = Config.getLong("p2pbrs.heartbeat.intervalMs", 5000);
+	private volatile long membershipEpoch = -1; // unknown until the first HEARTBEAT_SYNC
+	private boolean serverLost;
+	private volatile ChunkInventory inventory; // storage peers only
+
 	public HeartbeatSender(UDPClient client, PeerNode self) {
 		this.client = client;
 		this.self = self;
+		client.setHeartbeatListener(this::onServerReply);
+	}
+
+	public void setInventory(ChunkInventory inventory) {
+		this.inventory = inventory;
 	}
 
 	// To stop the heartbeat
@@ -26,25 +44,28 @@ public class HeartbeatSender extends Thread {
 
 		while (running) {
 			try {
-				Thread.sleep(2500);
+				Thread.sleep(intervalMs);
 
 				int request = PeerMain.nextRequest();
-				// Send heartbeat
-				String reply = client.sendHeartbeat(request, self);
-
-				if (reply.contains("HEARTBEAT " + request + " ERROR Client not found")) {
-					System.out.println("Disconnected from server. Shutting HEARTBEAT down");
-					stopHeartbeat();
+				if (!oneWay) {
+					roundTrip(request);
+					continue;
 				}
 
-				// System.out.println("Heartbeat: " + request + "\n " + "Server answered: " +
-				// reply); OPTIONAL
+				ChunkInventory inv = inventory;
+				String root = inv == null ? "-" : MerkleInventory.hex(inv.root());
+				client.sendHeartbeatOneWay(request, self, membershipEpoch, intervalMs, root);
 
-				// Leave 5 seconds between heartbeats
-				Thread.sleep(2500);
+				// No reply is normal; long silence means the server may be gone
+				if (client.millisSinceServerContact() > silenceIntervals * intervalMs) {
+					roundTrip(PeerMain.nextRequest());
+				}
 
 			} catch (TimeoutException e) {
-				System.out.println("Timeout, no response from server");
+				if (!serverLost) {
+					System.out.println("Timeout, no response from server");
+					serverLost = true;
+				}
 			} catch (InterruptedException e) {
 				System.out.println("Interrupted Thread");
 				running = false; // We need to exit the loop
@@ -59,4 +80,49 @@ public class HeartbeatSender extends Thread {
 
 		System.out.println("HeartbeatSender stopped");
 	}
+
+	// Classic request/response heartbeat, also used as the liveness probe for the server
+	private void roundTrip(int request)
+			throws IOException, TimeoutException, ExecutionException, InterruptedException {
+		String reply = client.sendHeartbeat(request, self);
+		if (serverLost) {
+			System.out.println("Server is responding again");
+			serverLost = false;
+		}
+		if (reply.contains("HEARTBEAT " + request + " ERROR Client not found")) {
+			System.out.println("Disconnected from server. Shutting HEARTBEAT down");
+			stopHeartbeat();
+		}
+	}
+
+	// Replies to one-way heartbeats arrive here from the UDP receiver thread
+	private void onServerReply(String msg) {
+		String[] c = msg.split("\\s+");
+		if (msg.startsWith("HEARTBEAT_SYNC") && c.length >= 4) {
+			// HEARTBEAT_SYNC RQ# Membership_Epoch Interval_Ms
+			try {
+				membershipEpoch = Long.parseLong(c[2]);
+				long newInterval = Long.parseLong(c[3]);
+				if (newInterval > 0 && newInterval != intervalMs) {
+					System.out.println("Server set heartbeat interval to " + newInterval + " ms");
+					intervalMs = newInterval;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println("Malformed HEARTBEAT_SYNC: " + msg);
+			}
+		} else if (msg.startsWith("HEARTBEAT_INVENTORY")) {
+			// HEARTBEAT_INVENTORY RQ# Server_Root: the server's view of our chunks differs
+			ChunkInventory inv = inventory;
+			if (inv != null) {
+				if (c.length >= 3 && "0".equals(c[2])) {
+					inv.startReport(client, self); // server knows nothing about us: send it all at once
+				} else {
+					inv.startSync(client, self.getName());
+				}
+			}
+		} else if (msg.contains("ERROR Client not found")) {
+			System.out.println("Disconnected from server. Shutting HEARTBEAT down");
+			stopHeartbeat();
+		}
+	}
 }
@@ -0,0 +1,82 @@
+package com.P2PBRS.peer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntFunction;
+
+/**
+ * Byte-range reads over a backed-up file's fixed-size chunks, for restoring files out
+ * of a {@link DirectoryPack}. Chunks are fetched on demand, up to window positions
+ * ahead but not past the read-ahead limit; the last few chunks read are kept, since
+ * small files share chunks and the trailer and index are read back to back.
+ */
+class PackReader {
+	private final IntFunction<CompletableFuture<byte[]>> fetch; // by chunk position in the file
+	private final int chunkSize;
+	private final int window;
+	private final Map<Integer, CompletableFuture<byte[]>> pending = new HashMap<>();
+	private int readAheadLimit = -1; // last position worth fetching ahead
+	private final Map<Integer, byte[]> cache = new LinkedHashMap<>(8, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+			return size() > 4;
+		}
+	};
+
+	PackReader(IntFunction<CompletableFuture<byte[]>> fetch, int chunkSize, int window) {
+		this.fetch = fetch;
+		this.chunkSize = chunkSize;
+		this.window = window;
+	}
+
+	/** Allow read-ahead up to the chunk holding byte end - 1. */
+	void readAheadTo(long end) {
+		readAheadLimit = (int) ((end - 1) / chunkSize);
+	}
+
+	/** Decoded chunk at a position. */
+	byte[] chunk(int pos) throws IOException {
+		byte[] data = cache.get(pos);
+		if (data != null)
+			return data;
+		for (int p = pos; p < pos + window && (p == pos || p <= readAheadLimit); p++)
+			pending.computeIfAbsent(p, fetch::apply);
+		try {
+			data = ChunkCodec.decode(pending.remove(pos).get());
+		} catch (ExecutionException e) {
+			throw new IOException("Chunk at position " + pos + ": " + e.getCause().getMessage(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted fetching chunk at position " + pos);
+		}
+		cache.put(pos, data);
+		return data;
+	}
+
+	void copy(long offset, long length, OutputStream out) throws IOException {
+		while (length > 0) {
+			int pos = (int) (offset / chunkSize);
+			int from = (int) (offset % chunkSize);
+			byte[] data = chunk(pos);
+			if (from >= data.length)
+				throw new IOException("Chunk at position " + pos + " is short (" + data.length + " bytes)");
+			int n = (int) Math.min(length, data.length - from);
+			out.write(data, from, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	byte[] read(long offset, int length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+		copy(offset, length, out);
+		return out.toByteArray();
+	}
+}
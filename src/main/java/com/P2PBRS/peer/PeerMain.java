@@ -1,27 +1,46 @@
 package com.P2PBRS.peer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import com.P2PBRS.common.ChecksumAlgorithm;
+import com.P2PBRS.common.ChunkRanges;
+import com.P2PBRS.common.Config;
+import com.P2PBRS.common.Crc32Combine;
+
 import org.jline.reader.EndOfFileException;
 import org.jline.reader.LineReader;
 import org.jline.reader.LineReaderBuilder;
@@ -37,6 +56,14 @@ public class PeerMain {
 	private static final Map<String, Integer> storagePeerPorts = new ConcurrentHashMap<>(); // maps storage peer name ->
 																							// Port
 	private static final Map<String, Long> fileChecksums = new ConcurrentHashMap<>();
+	private static ChunkInventory inventory; // storage peers only
+	private static ChunkStore chunkStore; // storage peers only
+	private static final int RESTORE_WINDOW = Config.getInt("p2pbrs.restore.window", 8); // chunks fetched ahead
+	private static final long REPLICATE_TIMEOUT_MS = 15000;
+	// REPLICATE_REQ work; off the UDP receive thread, since repair sends can wait on the traffic shaper
+	private static final ExecutorService REPLICATE_POOL = Executors.newFixedThreadPool(
+			Config.getInt("p2pbrs.replicate.threads", 2), PeerTransport.daemon("Replicate"));
+	private static final String CHUNKING = Config.getString("p2pbrs.backup.chunking", "fixed"); // fixed | cdc
 
 	public static void main(String[] args) throws Exception {
 		if (args.length == 0 || !"register".equals(args[0])) {
@@ -69,13 +96,35 @@ public class PeerMain {
 		if ("STORAGE".equalsIgnoreCase(role) || "BOTH".equalsIgnoreCase(role)) {
 			storageDir = Path.of("storage_" + name);
 			Files.createDirectories(storageDir); // make sure folder exists
+
+			// Index what is already on disk before the server asks about it
+			inventory = new ChunkInventory(storageDir);
+			inventory.rescan();
+			inventory.startRescans();
+			chunkStore = new ChunkStore(storageDir, self, inventory);
 		}
 
 		if (storageDir != null) {
 			Path finalStorageDir = storageDir; // for lambda capture
 			client.setUnsolicitedHandler((msg, from) -> {
 				try {
-					if (msg.startsWith("STORE_REQ")) {
+					if (msg.startsWith("STORE_REQ_BATCH")) {
+						// Expected format: STORE_REQ_BATCH <RQ#> <FileName> <ChunkSize> <OwnerPeer> <Part/Total> <ChunkRanges>
+						String[] parts = msg.split("\\s+");
+						if (parts.length < 7) {
+							System.err.println("Malformed STORE_REQ_BATCH: " + msg);
+							return;
+						}
+
+						String fileName = parts[2];
+						int chunkSize = Integer.parseInt(parts[3]);
+						String ownerPeer = parts[4];
+						String part = parts[5];
+						List<Integer> chunkIds = ChunkRanges.decode(parts[6]);
+
+						System.out.println("STORE_REQ_BATCH (" + part + "): Ready for " + chunkIds.size() + " chunks of "
+								+ fileName + " (chunk size " + chunkSize + ") from " + ownerPeer + " -> " + parts[6]);
+					} else if (msg.startsWith("STORE_REQ")) {
 						// Expected format: STORE_REQ <RQ#> <FileName> <ChunkID> <OwnerPeer>
 						String[] parts = msg.split("\\s+");
 						System.out.println("DEBUG STORE_REQ: " + Arrays.toString(parts));
@@ -125,7 +174,7 @@ public class PeerMain {
 							System.out.println("Will replicate " + fileName + " chunk " + chunkId + " to " + targetPeer);
 						}
 						
-						processReplicateReq(client, msg, finalStorageDir);
+						REPLICATE_POOL.execute(() -> processReplicateReq(client, msg, finalStorageDir));
 					} else if (msg.startsWith("PEER_INFO")) {
 						// PEER_INFO <PeerName> <IP_Address> <TCP_Port>
 						String[] parts = msg.split("\\s+");
@@ -169,7 +218,7 @@ public class PeerMain {
 					System.out.println("TCP storage server listening on port " + tcpPort);
 					while (true) {
 						Socket socket = serverSocket.accept();
-						new Thread(() -> handleIncomingChunk(socket, finalStorageDir, self)).start();
+						new Thread(() -> handleIncomingChunk(socket)).start();
 					}
 				} catch (Exception e) {
 					System.err.println("TCP server failed: " + e.getMessage());
@@ -185,6 +234,11 @@ public class PeerMain {
 			System.exit(2);
 		}
 
+		// Tell the server everything we already hold so it can rebuild its chunk index
+		if (inventory != null && inventory.size() > 0) {
+			inventory.startReport(client, self);
+		}
+
 		// Register self in peer maps for replication
 		storagePeerIps.put(self.getName(), self.getIpAddress());
 		storagePeerPorts.put(self.getName(), self.getTcpPort());
@@ -192,7 +246,9 @@ public class PeerMain {
 				+ self.getIpAddress() + ":" + self.getTcpPort());
 
 		// Start Heartbeat after registering
-		new HeartbeatSender(client, self).start();
+		HeartbeatSender heartbeat = new HeartbeatSender(client, self);
+		heartbeat.setInventory(inventory);
+		heartbeat.start();
 		System.out.println("Heartbeat started");
 
 		// Interactive CLI
@@ -229,246 +285,65 @@ public class PeerMain {
 					printHelpInCli();
 					break;
 				case "backup":
-					// backup <FilePath> <ChunkSizeBytes>
+					// backup <FilePath|DirPath> <ChunkSizeBytes> [fixed|cdc]
 					if (toks.length < 3) {
-						System.out.println("usage: backup <FilePath> <ChunkSizeBytes>");
+						System.out.println("usage: backup <FilePath|DirPath> <ChunkSizeBytes> [fixed|cdc]");
 						break;
 					}
 					Path filePath = Path.of(toks[1]);
 					int chunkSize = Integer.parseInt(toks[2]);
-
-					if (!Files.exists(filePath) || !Files.isRegularFile(filePath)) {
+					String chunking = toks.length > 3 ? toks[3] : CHUNKING;
+					if (!Files.isDirectory(filePath) && !Files.isRegularFile(filePath)) {
 						System.out.println("ERROR: file not found: " + filePath);
 						break;
 					}
-
-					long fileSize = Files.size(filePath);
-					String fileName = filePath.getFileName().toString();
-
-					CRC32 crc = new CRC32();
-					try (FileInputStream fis = new FileInputStream(filePath.toFile())) {
-						byte[] buf = new byte[64 * 1024];
-						int n;
-						while ((n = fis.read(buf)) > 0)
-							crc.update(buf, 0, n);
-					}
-					long checksumValue = crc.getValue();
-					String checksumHex = Long.toHexString(checksumValue);
-
-					// Remember this checksum locally so we can verify the restored file later
-					fileChecksums.put(fileName, checksumValue);
-
-					resp = client.sendBackupReq(PeerMain.nextRequest(), fileName, fileSize, checksumHex, chunkSize);
-					System.out.println("Server Response: " + resp);
-
-					// Parse BACKUP_PLAN with connection details
-					List<String> assignedPeers = new ArrayList<>();
-					int planChunkSize = chunkSize;
-
-					if (resp.startsWith("BACKUP_PLAN")) {
-						System.out.println("BACKUP_PLAN parsing: " + resp);
-
-						int startBracket = resp.indexOf('[');
-						int endBracket = resp.indexOf(']');
-						if (startBracket >= 0 && endBracket > startBracket) {
-							String peersStr = resp.substring(startBracket + 1, endBracket);
-							System.out.println("  - Raw peer string: '" + peersStr + "'");
-
-							String[] peerEntries = peersStr.split(",");
-
-							for (String peerEntry : peerEntries) {
-								peerEntry = peerEntry.trim();
-								System.out.println("  - Parsing peer entry: '" + peerEntry + "'");
-
-								String[] parts = peerEntry.split(":");
-
-								if (parts.length == 3) {
-									// Format: PeerName:IP:TCPPort
-									String peerName = parts[0];
-									String peerIp = parts[1];
-									int peerTcpPort = Integer.parseInt(parts[2]);
-
-									assignedPeers.add(peerName);
-									storagePeerIps.put(peerName, peerIp);
-									storagePeerPorts.put(peerName, peerTcpPort);
-
-									System.out.println("  - Mapped " + peerName + " -> " + peerIp + ":" + peerTcpPort
-											+ " (from server)");
-								} else {
-									// Fallback for unexpected format
-									System.err.println("  - WARNING: Unexpected peer format: " + peerEntry);
-									String peerName = peerEntry;
-									assignedPeers.add(peerName);
-									// Don't set fallback - we want to see the error clearly
-								}
-							}
-						} else {
-							System.err.println("  - ERROR: Could not find peer list in brackets");
-						}
-
-						// Parse chunk size
-						String afterBracket = resp.substring(endBracket + 1).trim();
-						String[] tokens = afterBracket.split("\\s+");
-						if (tokens.length > 0) {
-							try {
-								planChunkSize = Integer.parseInt(tokens[tokens.length - 1]);
-								System.out.println("  - Chunk size: " + planChunkSize);
-							} catch (NumberFormatException e) {
-								System.err.println("Warning: Could not parse chunk size from BACKUP_PLAN");
-							}
-						}
-					}
-
-					// Validate we have connection info for all peers
-					for (String peerName : assignedPeers) {
-						if (!storagePeerIps.containsKey(peerName) || !storagePeerPorts.containsKey(peerName)) {
-							System.err.println("ERROR: Missing connection info for peer: " + peerName);
-							System.err.println("Cannot proceed with backup - no IP/port mapping");
-							return;
-						}
-					}
-
-					System.out.println("BACKUP_PLAN parsed:");
-					System.out.println("  - File: " + fileName);
-					System.out.println("  - Assigned peers: " + assignedPeers);
-					System.out.println("  - Chunk size: " + planChunkSize);
-
-					// Send ALL chunks to the assigned storage peer(s)
-					// For single peer assignment, send all chunks to that one peer
-					// For multiple peers, distribute chunks among them
-
-					try (FileInputStream fis = new FileInputStream(filePath.toFile())) {
-						byte[] buffer = new byte[planChunkSize];
-						int bytesRead;
-						int chunkId = 0;
-
-						while ((bytesRead = fis.read(buffer)) > 0) {
-							byte[] chunk = Arrays.copyOf(buffer, bytesRead);
-							System.out.println("Prepared chunk " + chunkId + " of size " + bytesRead);
-
-							// Determine which peer should get this chunk
-							String peerName = assignedPeers.get(chunkId % assignedPeers.size());
-							String peerIp = storagePeerIps.get(peerName);
-							int peerPort = storagePeerPorts.get(peerName);
-
-							boolean sent = false;
-							int attempts = 0;
-							while (!sent && attempts < 3) {
-								attempts++;
-								try (Socket tcpSocket = new Socket(peerIp, peerPort);
-										OutputStream out = tcpSocket.getOutputStream();
-										InputStream in = tcpSocket.getInputStream();
-										Scanner responseScanner = new Scanner(in, StandardCharsets.UTF_8.name())) {
-
-									// Calculate checksum for THIS CHUNK
-									CRC32 chunkCrc = new CRC32();
-									chunkCrc.update(chunk);
-									String chunkChecksumHex = Long.toHexString(chunkCrc.getValue());
-
-									// Send metadata header
-									String header = request + " " + fileName + " " + chunkId + " " + chunk.length + " "
-											+ chunkChecksumHex + "\n";
-									out.write(header.getBytes(StandardCharsets.UTF_8));
-									out.write(chunk);
-									out.flush();
-
-									System.out.println("Sent chunk " + chunkId + " to " + peerName + " at " + peerIp
-											+ ":" + peerPort);
-
-									// Wait for acknowledgment
-									tcpSocket.setSoTimeout(5000);
-									if (responseScanner.hasNextLine()) {
-										String ack = responseScanner.nextLine();
-										if (ack.startsWith("CHUNK_OK")) {
-											System.out.println("Received acknowledgment: " + ack);
-											sent = true;
-										} else {
-											System.err.println("Unexpected response: " + ack);
-										}
-									} else {
-										System.err.println("No acknowledgment received from " + peerName);
-									}
-
-								} catch (SocketTimeoutException e) {
-									System.err.println("Timeout waiting for acknowledgment from " + peerName);
-								} catch (Exception e) {
-									System.err.println("Failed to send chunk " + chunkId + " to " + peerName
-											+ " attempt " + attempts + ": " + e.getMessage());
-								}
-							}
-
-							if (!sent) {
-								System.err.println("Giving up on chunk " + chunkId + " for peer " + peerName);
-								break; // Stop the backup if a chunk fails
-							}
-
-							chunkId++;
-						}
-
-						System.out.println("Successfully sent " + chunkId + " chunks for file " + fileName);
-					}
-
-					resp = client.sendBackupDone(PeerMain.nextRequest(), fileName);
-					System.out.println("Server Response: " + resp);
+					String backupName = filePath.getFileName() + (Files.isDirectory(filePath) ? ".pack" : "");
+					TransferJobs.Job job = TransferJobs.submit("backup", toks[1], backupName,
+							j -> backup(client, self, filePath, chunkSize, chunking));
+					printQueued(job, backupName);
 					break;
 				case "restore":
+					// restore <FileName>, or restore <Dir>.pack [<PathInPack>]
 					if (toks.length < 2) {
-						System.out.println("usage: restore <FileName>");
+						System.out.println("usage: restore <FileName> | restore <Dir>.pack [<PathInPack>]");
 						break;
 					}
-					fileName = toks[1];
-					resp = client.sendRestoreReq(PeerMain.nextRequest(), fileName);
-					System.out.println("Server Response: " + resp);
-
-					if (resp.startsWith("RESTORE_PLAN")) {
-						System.out.println("Parsing restore plan");
-
-						// Parse: RESTORE_PLAN <RQ#> <FileName> [Peer1:IP:Port,Peer2:IP:Port,...] <ChunkSize> <TotalChunks> <FileChecksum>
-
-						int start = resp.indexOf("[");
-						int end = resp.indexOf("]");
-						if (start < 0 || end < 0) {
-							System.err.println("Malformed RESTORE_PLAN (missing brackets)");
-							break;
-						}
-
-						String peersStr = resp.substring(start + 1, end);
-						List<String> restorePeers = new ArrayList<>();
-
-						for (String peerEntry : peersStr.split(",")) {
-							String[] parts = peerEntry.trim().split(":");
-							if (parts.length == 3) {
-								storagePeerIps.put(parts[0], parts[1]);
-								storagePeerPorts.put(parts[0], Integer.parseInt(parts[2]));
-								restorePeers.add(String.join(":", parts)); // Store full format
-							} else {
-								System.err.println("Skipping malformed peer entry: " + peerEntry);
-							}
-						}
-
-						// Extract chunk size, total chunks, and checksum
-						String afterBracket = resp.substring(end + 1).trim();
-						String[] tokens = resp.substring(end + 1).trim().split("\\s+");
-
-						if (tokens.length < 3) {
-							System.err.println("Malformed RESTORE_PLAN (missing chunk size, total chunks, or checksum)");
-							break;
-						}
-
-						chunkSize = Integer.parseInt(tokens[0]);
-						int totalChunks = Integer.parseInt(tokens[1]);
-
-						String fileChecksum = tokens.length > 2 ? tokens[2] : null;
-
-						System.out.println("Restore details: " + chunkSize + " bytes/chunk, " + totalChunks + " total chunks, checksum "
-								+ fileChecksum);
-
-						restoreFileChunks(client, fileName, restorePeers, chunkSize, totalChunks, fileChecksum);
+					String fileName = toks[1];
+					String wanted = toks.length > 2 ? toks[2] : null;
+					job = TransferJobs.submit("restore", toks[1], fileName, j -> restore(client, fileName, wanted));
+					printQueued(job, fileName);
+					break;
+				case "jobs":
+					List<TransferJobs.Job> jobs = TransferJobs.all();
+					if (jobs.isEmpty()) {
+						System.out.println("No jobs");
+						break;
+					}
+					System.out.println("  id  kind    state       done       rate          ETA     target");
+					for (TransferJobs.Job j : jobs)
+						System.out.println(j.summary());
+					break;
+				case "status":
+				case "cancel":
+					// status <JobId> | cancel <JobId>
+					job = toks.length == 2 && toks[1].matches("\\d+") ? TransferJobs.get(Integer.parseInt(toks[1])) : null;
+					if (job == null) {
+						System.out.println(toks.length == 2 ? "No job " + toks[1] : "usage: " + cmd + " <JobId>");
+					} else if (cmd.equals("status")) {
+						System.out.println(job.details());
+					} else {
+						System.out.println(job.cancel() ? "Cancelling job " + job.id + " (" + job.kind + " " + job.target
+								+ "); the same command resumes it" : "Job " + job.id + " has already finished");
 					}
 					break;
 				case "deregister":
 				case "exit":
 				case "quit":
+					// Unfinished jobs keep their checkpoints; the same commands resume them next time
+					for (TransferJobs.Job j : TransferJobs.all()) {
+						if (j.cancel())
+							System.out.println("Cancelled job " + j.id + " (" + j.kind + " " + j.target + ")");
+					}
 					try {
 						resp = client.sendDeregister(PeerMain.nextRequest(), name);
 						System.out.println("[shutdown] Server Response: " + resp);
@@ -485,12 +360,12 @@ public class PeerMain {
 						break;
 					}
 
-					fileName = toks[1];
+					String replicateFile = toks[1];
 					int chunkId = Integer.parseInt(toks[2]);
 					String targetPeer = toks[3];
 
-					System.out.println("Test sending REPLICATE_REQ for " + fileName + " chunk " + chunkId + " to " + targetPeer);
-					sendReplicateReqSafe(client, fileName, chunkId, targetPeer);
+					System.out.println("Test sending REPLICATE_REQ for " + replicateFile + " chunk " + chunkId + " to " + targetPeer);
+					sendReplicateReqSafe(client, replicateFile, chunkId, targetPeer);
 					break;
 				default:
 					System.out.println("Unknown command: " + cmd);
@@ -505,37 +380,44 @@ public class PeerMain {
 	public static void helpStartup() {
 		System.out.println("Startup usage:\n"
 				+ "  register <Name> <OWNER|STORAGE|BOTH> <IP_Address> <UDP_Port> <TCP_Port> <Capacity Bytes> [<ServerHost>] [<ServerPort>] [<timeout ms>]\n"
-				+ "\n" + "Example:\n" + "  register Alice BOTH 192.168.1.10 5001 6001 104857600 localhost 5000 2000\n");
+				+ "\n" + "Example:\n" + "  register Alice BOTH 192.168.1.10 5001 6001 104857600 localhost 5000 2000\n"
+				+ "\n" + "Backup upload (JVM system properties):\n"
+				+ "  -Dp2pbrs.transport.connectionsPerPeer=2  pooled connections to each storage peer\n"
+				+ "  -Dp2pbrs.upload.window=8              unacknowledged chunks per storage peer\n"
+				+ "  -Dp2pbrs.upload.maxBufferedBytes=67108864  read-ahead limit across all peers\n"
+				+ "  -Dp2pbrs.backup.chunking=fixed        default chunking for backup (fixed|cdc)\n"
+				+ "  -Dp2pbrs.compress=none                per-chunk compression (none|lz4|deflate)\n"
+				+ "  -Dp2pbrs.manifest.dir=.p2pbrs/manifests  per-file manifests for incremental backups\n"
+				+ "\n" + "Background jobs (JVM system properties):\n"
+				+ "  -Dp2pbrs.jobs.concurrent=4            backups and restores running at once\n"
+				+ "  -Dp2pbrs.jobs.chunksInFlight=64       chunks each job keeps in flight\n"
+				+ "  -Dp2pbrs.jobs.maxInFlightBytes=268435456  chunk bytes in flight across all jobs\n");
 	}
 
 	private static void printHelpInCli() {
 		    System.out.println("Commands:\n" + 
-        "  backup <FilePath> <ChunkSizeBytes>   # announce backup to server\n" +
+        "  backup <FilePath> <ChunkSizeBytes> [fixed|cdc]  # back up a file (cdc: content-defined chunks, dedup)\n" +
+        "  backup <DirPath> <ChunkSizeBytes>    # back up a directory tree as <Dir>.pack\n" +
         "  restore <FileName>                   # restore file from backup\n" +
+        "  restore <Dir>.pack [<PathInPack>]    # restore a packed tree, or one file of it\n" +
+        "  jobs                                 # list backup and restore jobs\n" +
+        "  status <JobId>                       # progress, throughput and ETA of a job\n" +
+        "  cancel <JobId>                       # stop a job; the same command resumes it\n" +
         "  test-replicate <File> <Chunk> <Peer> # TEST: send replicate request\n" +
         "  deregister                           # de-register now and exit\n" +
         "  help                                 # show this\n" +
         "  exit | quit                          # exit (auto de-register)\n");
 	}
 
-	private static void handleIncomingChunk(Socket socket, Path storageDir, PeerNode self) {
+	private static void handleIncomingChunk(Socket socket) {
 		String clientInfo = socket.getInetAddress() + ":" + socket.getPort();
 		System.out.println("TCP connection accepted from " + clientInfo);
 
-		try (socket; InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
-
-			// Read header line manually (don't use Scanner - it buffers too much)
-			StringBuilder headerBuilder = new StringBuilder();
-			int b;
-			while ((b = in.read()) != -1) {
-				char c = (char) b;
-				headerBuilder.append(c);
-				if (c == '\n') {
-					break;
-				}
-			}
+		try (socket;
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream()) {
 
-			String header = headerBuilder.toString().trim();
+			String header = readHeaderLine(in);
 			System.out.println("Received header: " + header);
 
 			if (header.isEmpty()) {
@@ -543,6 +425,12 @@ public class PeerMain {
 				return;
 			}
 
+			if (PeerTransport.PREAMBLE.equals(header)) {
+				// Framed, multiplexed connection (PeerTransport); stays open for many requests
+				PeerTransport.serve(socket, in, out, chunkStore);
+				return;
+			}
+
 			if (header.startsWith("GET_CHUNK")) {
 				String[] parts = header.split("\\s+");
 				if (parts.length < 4) {
@@ -554,25 +442,23 @@ public class PeerMain {
 				String fileName = parts[2];
 				int chunkId = Integer.parseInt(parts[3]);
 
-				Path chunkPath = storageDir.resolve(fileName).resolve("chunk" + chunkId);
-				if (!Files.exists(chunkPath)) {
+				byte[] chunkData = chunkStore.read(fileName, chunkId);
+				if (chunkData == null) {
 					String err = String.format("CHUNK_DATA %d %s %d ERROR\n", rq, fileName, chunkId);
 					out.write(err.getBytes(StandardCharsets.UTF_8));
 					out.flush();
-					System.err.println("Requested chunk not found: " + chunkPath);
+					System.err.println("Requested chunk not found: " + chunkStore.chunkPath(fileName, chunkId));
 					return;
 				}
 
-				byte[] chunkData = Files.readAllBytes(chunkPath);
-
-				// Compute CRC for this chunk
-				CRC32 crc = new CRC32();
-				crc.update(chunkData);
-				long crcVal = crc.getValue();
+				// Checksum in the algorithm asked for (GET_CHUNK RQ# File_Name Chunk_ID [Algorithm]),
+				// plain CRC-32 hex if none
+				String checksum = parts.length > 4 ? ChecksumAlgorithm.forName(parts[4]).tag(chunkData)
+						: Long.toHexString(ChecksumAlgorithm.CRC32.value(chunkData));
 
-				// Send: CHUNK_DATA RQ# File_Name Chunk_ID Checksum
-				String respHeader = String.format("CHUNK_DATA %d %s %d %s\n", rq, fileName, chunkId,
-						Long.toHexString(crcVal));
+				// Send: CHUNK_DATA RQ# File_Name Chunk_ID Checksum (restore traffic, as over PeerTransport)
+				PeerTransport.shape(TrafficShaper.TrafficClass.RESTORE, chunkData.length);
+				String respHeader = String.format("CHUNK_DATA %d %s %d %s\n", rq, fileName, chunkId, checksum);
 				out.write(respHeader.getBytes(StandardCharsets.UTF_8));
 				out.write(chunkData);
 				out.flush();
@@ -580,82 +466,632 @@ public class PeerMain {
 				System.out.println("Sent CHUNK_DATA for " + fileName + " chunk " + chunkId);
 				return;
 			} else if (header.startsWith("REPLICATE_CHUNK")) {
-				handleReplicateChunk(header, in, out, storageDir, self);
+				handleReplicateChunk(header, in, out);
 				return;
 			}
 
-			String[] parts = header.split("\\s+");
-			if (parts.length < 5) {
-				System.err.println("Malformed header: " + header);
+			// Upload connections may carry several chunks back to back (pipelined uploader);
+			// keep reading headers until the owner closes the connection
+			while (!header.isEmpty()) {
+				String[] parts = header.split("\\s+");
+				if (parts.length < 5) {
+					System.err.println("Malformed header: " + header);
+					return;
+				}
+
+				int rq = Integer.parseInt(parts[0]);
+				String fileName = parts[1];
+				int chunkId = Integer.parseInt(parts[2]);
+				int chunkSize = Integer.parseInt(parts[3]);
+				String expected = parts[4]; // checksum tag, or plain CRC-32 hex
+
+				System.out.println("Receiving chunk " + chunkId + " of " + fileName + " (size: " + chunkSize
+						+ " bytes, expected checksum: " + expected + ")");
+
+				// Read exactly chunkSize bytes using DataInputStream for reliable reading
+				byte[] chunkData = new byte[chunkSize];
+				int totalRead = 0;
+				while (totalRead < chunkSize) {
+					int bytesRead = in.read(chunkData, totalRead, chunkSize - totalRead);
+					if (bytesRead == -1) {
+						throw new IOException(
+								"Unexpected end of stream after reading " + totalRead + " of " + chunkSize + " bytes");
+					}
+					totalRead += bytesRead;
+				}
+
+				System.out.println("Read " + totalRead + " bytes for chunk " + chunkId);
+
+				// Verify with the sender's algorithm and store
+				if (!chunkStore.store(fileName, chunkId, chunkData, expected)) {
+					// TODO: Send CHUNK_ERROR via UDP to owner
+					return;
+				}
+
+				System.out.println("Stored chunk " + chunkId + " of file " + fileName + " at "
+						+ chunkStore.chunkPath(fileName, chunkId));
+				System.out.println("Chunk " + chunkId + " successfully received and verified");
+
+				// Send acknowledgment back to owner via TCP (immediate feedback)
+				String ack = "CHUNK_OK " + chunkId + "\n";
+				out.write(ack.getBytes(StandardCharsets.UTF_8));
+				out.flush();
+				System.out.println("Sent TCP acknowledgment for chunk " + chunkId);
+
+				header = readHeaderLine(in);
+			}
+
+		} catch (Exception e) {
+			System.err.println("Failed to handle TCP chunk from " + clientInfo + ": " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The backup command, run as a job: a file in a single pass (first backup) or against
+	 * its manifest, or a directory as a pack.
+	 */
+	private static void backup(UDPClient client, PeerNode self, Path filePath, int chunkSize, String chunking)
+			throws Exception {
+		// A directory is packed into one logical file, <dir>.pack (fixed-size chunks only)
+		DirectoryPack pack = null;
+		if (Files.isDirectory(filePath)) {
+			long scanStart = System.nanoTime();
+			pack = DirectoryPack.scan(filePath);
+			System.out.println("Packing " + pack.fileCount() + " files (" + pack.size() + " bytes) in "
+					+ (System.nanoTime() - scanStart) / 1_000_000 + " ms scan");
+		} else if (!Files.isRegularFile(filePath)) {
+			System.out.println("ERROR: file not found: " + filePath);
+			jobFailed("file not found");
+			return;
+		}
+
+		long fileSize = pack != null ? pack.size() : Files.size(filePath);
+		String fileName = filePath.getFileName().toString() + (pack != null ? ".pack" : "");
+
+		// Anything backed up before has a manifest to diff against; content-defined
+		// chunks always go through the hash exchange
+		byte mode = "cdc".equalsIgnoreCase(chunking) ? BackupManifest.CDC : BackupManifest.FIXED;
+		BackupManifest previous = pack != null ? null : BackupManifest.load(fileName);
+		if (pack == null && (mode == BackupManifest.CDC || previous != null)) {
+			backupIncremental(client, self, filePath, chunkSize, mode, previous);
+			return;
+		}
+
+		// Single pass over the file: the plan only needs the size, and the file
+		// checksum is built from the chunk CRCs while uploading ("-" until BACKUP_DONE)
+		TransferJobs.current().expect(fileSize);
+		String resp = client.sendBackupReq(PeerMain.nextRequest(), fileName, fileSize, "-", chunkSize);
+		System.out.println("Server Response: " + resp);
+		if (!resp.startsWith("BACKUP_PLAN")) {
+			jobFailed(resp);
+			return;
+		}
+
+		// Parse BACKUP_PLAN with connection details
+		List<String> assignedPeers = new ArrayList<>();
+		int planChunkSize = chunkSize;
+
+		if (resp.startsWith("BACKUP_PLAN")) {
+			System.out.println("BACKUP_PLAN parsing: " + resp);
+
+			int startBracket = resp.indexOf('[');
+			int endBracket = resp.indexOf(']');
+			if (startBracket >= 0 && endBracket > startBracket) {
+				String peersStr = resp.substring(startBracket + 1, endBracket);
+				System.out.println("  - Raw peer string: '" + peersStr + "'");
+
+				String[] peerEntries = peersStr.split(",");
+
+				for (String peerEntry : peerEntries) {
+					peerEntry = peerEntry.trim();
+					System.out.println("  - Parsing peer entry: '" + peerEntry + "'");
+
+					String[] parts = peerEntry.split(":");
+
+					if (parts.length == 3) {
+						// Format: PeerName:IP:TCPPort
+						String peerName = parts[0];
+						String peerIp = parts[1];
+						int peerTcpPort = Integer.parseInt(parts[2]);
+
+						assignedPeers.add(peerName);
+						storagePeerIps.put(peerName, peerIp);
+						storagePeerPorts.put(peerName, peerTcpPort);
+
+						System.out.println("  - Mapped " + peerName + " -> " + peerIp + ":" + peerTcpPort
+								+ " (from server)");
+					} else {
+						// Fallback for unexpected format
+						System.err.println("  - WARNING: Unexpected peer format: " + peerEntry);
+						String peerName = peerEntry;
+						assignedPeers.add(peerName);
+						// Don't set fallback - we want to see the error clearly
+					}
+				}
+			} else {
+				System.err.println("  - ERROR: Could not find peer list in brackets");
+			}
+
+			// Parse chunk size
+			String afterBracket = resp.substring(endBracket + 1).trim();
+			String[] tokens = afterBracket.split("\\s+");
+			if (tokens.length > 0) {
+				try {
+					planChunkSize = Integer.parseInt(tokens[tokens.length - 1]);
+					System.out.println("  - Chunk size: " + planChunkSize);
+				} catch (NumberFormatException e) {
+					System.err.println("Warning: Could not parse chunk size from BACKUP_PLAN");
+				}
+			}
+		}
+
+		// Validate we have connection info for all peers
+		for (String peerName : assignedPeers) {
+			if (!storagePeerIps.containsKey(peerName) || !storagePeerPorts.containsKey(peerName)) {
+				System.err.println("ERROR: Missing connection info for peer: " + peerName);
+				System.err.println("Cannot proceed with backup - no IP/port mapping");
+				jobFailed("no address for storage peer " + peerName);
 				return;
 			}
+		}
 
-			int rq = Integer.parseInt(parts[0]);
-			String fileName = parts[1];
-			int chunkId = Integer.parseInt(parts[2]);
-			int chunkSize = Integer.parseInt(parts[3]);
-			long expectedCrc = Long.parseLong(parts[4], 16);
+		System.out.println("BACKUP_PLAN parsed:");
+		System.out.println("  - File: " + fileName);
+		System.out.println("  - Assigned peers: " + assignedPeers);
+		System.out.println("  - Chunk size: " + planChunkSize);
+
+		// Chunk i goes to assignedPeers[i % n]; the uploader reads ahead and keeps
+		// several chunks in flight per peer, to all peers at once
+		List<ChunkUploader.Target> targets = new ArrayList<>();
+		for (String peerName : assignedPeers) {
+			targets.add(new ChunkUploader.Target(peerName, storagePeerIps.get(peerName),
+					storagePeerPorts.get(peerName)));
+		}
 
-			System.out.println("Receiving chunk " + chunkId + " of " + fileName + " (size: " + chunkSize
-					+ " bytes, expected CRC: " + Long.toHexString(expectedCrc) + ")");
+		// Chunks acked by an interrupted attempt with the same file and placement are skipped
+		String identity = fileSize + " " + (pack != null ? pack.fileCount() + ":" + pack.newestMtime()
+				: Files.getLastModifiedTime(filePath).toMillis()) + " " + planChunkSize + " " + assignedPeers;
+		ChunkUploader.Result upload;
+		try (TransferCheckpoint checkpoint = TransferCheckpoint.open(TransferCheckpoint.BACKUP, fileName,
+				identity)) {
+			if (checkpoint.size() > 0)
+				System.out.println("Resuming backup of " + fileName + ": " + checkpoint.size()
+						+ " chunks already stored");
+			ChunkUploader uploader = new ChunkUploader(fileName, planChunkSize, targets).resume(checkpoint);
+			if (pack != null) {
+				try (InputStream packStream = pack.open()) {
+					upload = uploader.upload(packStream, fileSize);
+				}
+			} else {
+				upload = uploader.upload(filePath);
+			}
+		}
+		if (!upload.ok()) {
+			// No BACKUP_DONE: the server must not treat a partial copy as a backup
+			System.err.println("Failed to send chunks " + upload.failed + " of file " + fileName
+					+ "; backup incomplete, run the same command again to resume");
+			jobFailed("chunks " + upload.failed + " not stored");
+			return;
+		}
+		System.out.println("Successfully sent " + (upload.chunks - upload.resumed) + " chunks for file "
+				+ fileName + " in " + upload.millis + " ms (" + String.format("%.1f", upload.mbPerSec())
+				+ " MB/s, " + upload.sentBytes + " bytes on the wire"
+				+ (upload.resumed > 0 ? ", " + upload.resumed + " resumed" : "") + ")");
+
+		// Remember this checksum locally so we can verify the restored file later
+		String checksumHex = Long.toHexString(ChunkCipher.announcedChecksum(fileName, upload.fileCrc));
+		fileChecksums.put(fileName, upload.fileCrc);
+
+		resp = client.sendBackupDone(PeerMain.nextRequest(), fileName, checksumHex);
+		System.out.println("Server Response: " + resp);
+		if (resp.startsWith("BACKUP_DONE"))
+			TransferCheckpoint.discard(TransferCheckpoint.BACKUP, fileName);
+		else
+			jobFailed(resp);
+
+		// The rest of the tree is stored, but these files are not in it; say so
+		if (pack != null && !pack.damaged().isEmpty()) {
+			System.err.println("Could not read " + pack.damaged().size() + " files while packing " + fileName
+					+ "; they are marked damaged and will not restore: " + pack.damaged());
+			jobFailed(pack.damaged().size() + " files unreadable: " + pack.damaged());
+		}
 
-			// Read exactly chunkSize bytes using DataInputStream for reliable reading
-			byte[] chunkData = new byte[chunkSize];
-			int totalRead = 0;
-			while (totalRead < chunkSize) {
-				int bytesRead = in.read(chunkData, totalRead, chunkSize - totalRead);
-				if (bytesRead == -1) {
-					throw new IOException(
-							"Unexpected end of stream after reading " + totalRead + " of " + chunkSize + " bytes");
+		// First backup of the file: record it so the next one only sends what changed
+		if (pack == null && resp.startsWith("BACKUP_DONE")) {
+			List<BackupManifest.Entry> entries = new ArrayList<>();
+			for (int i = 0; i < upload.chunks; i++) {
+				entries.add(new BackupManifest.Entry((long) i * planChunkSize,
+						(int) Math.min(planChunkSize, fileSize - (long) i * planChunkSize), upload.crcs[i],
+						upload.sha256[i], i, assignedPeers.get(i % assignedPeers.size())));
+			}
+			saveManifest(new BackupManifest(fileName, fileSize, upload.fileCrc, BackupManifest.FIXED,
+					planChunkSize, 1, entries));
+		}
+	}
+
+	/** The restore command, run as a job: a file, or a packed tree or one file of it (wanted). */
+	private static void restore(UDPClient client, String fileName, String wanted) throws Exception {
+		String resp = client.sendRestoreReq(PeerMain.nextRequest(), fileName);
+		System.out.println("Server Response: " + resp);
+
+		if (resp.startsWith("RESTORE_PLAN")) {
+			System.out.println("Parsing restore plan");
+
+			// Parse: RESTORE_PLAN <RQ#> <FileName> [Peer1:IP:Port,Peer2:IP:Port,...] <ChunkSize> <TotalChunks> <FileChecksum>
+
+			int start = resp.indexOf("[");
+			int end = resp.indexOf("]");
+			if (start < 0 || end < 0) {
+				System.err.println("Malformed RESTORE_PLAN (missing brackets)");
+				jobFailed("malformed restore plan");
+				return;
+			}
+
+			String peersStr = resp.substring(start + 1, end);
+			List<String> restorePeers = new ArrayList<>();
+
+			for (String peerEntry : peersStr.split(",")) {
+				String[] parts = peerEntry.trim().split(":");
+				if (parts.length == 3) {
+					storagePeerIps.put(parts[0], parts[1]);
+					storagePeerPorts.put(parts[0], Integer.parseInt(parts[2]));
+					restorePeers.add(String.join(":", parts)); // Store full format
+				} else {
+					System.err.println("Skipping malformed peer entry: " + peerEntry);
 				}
-				totalRead += bytesRead;
 			}
 
-			System.out.println("Read " + totalRead + " bytes for chunk " + chunkId);
+			// Extract chunk size, total chunks, and checksum
+			String afterBracket = resp.substring(end + 1).trim();
+			String[] tokens = resp.substring(end + 1).trim().split("\\s+");
+
+			if (tokens.length < 3) {
+				System.err.println("Malformed RESTORE_PLAN (missing chunk size, total chunks, or checksum)");
+				jobFailed("malformed restore plan");
+				return;
+			}
+
+			int chunkSize = Integer.parseInt(tokens[0]);
+			int totalChunks = Integer.parseInt(tokens[1]);
 
-			// Verify CRC32
-			CRC32 crc = new CRC32();
-			crc.update(chunkData);
-			long actualCrc = crc.getValue();
+			String fileChecksum = tokens.length > 2 ? tokens[2] : null;
+
+			// Optional per-chunk placement: placement=Peer:ranges;Peer:ranges
+			// and, for content-defined backups, the chunk ids in file order: order=ranges
+			Map<Integer, String> chunkPlacement = new HashMap<>();
+			List<Integer> order = null;
+			for (int i = 3; i < tokens.length; i++) {
+				if (tokens[i].startsWith("order=")) {
+					order = ChunkRanges.decode(tokens[i].substring("order=".length()));
+				}
+				if (tokens[i].startsWith("placement=")) {
+					for (String entry : tokens[i].substring("placement=".length()).split(";")) {
+						int colon = entry.indexOf(':');
+						if (colon <= 0)
+							continue;
+						String peerName = entry.substring(0, colon);
+						for (int id : ChunkRanges.decode(entry.substring(colon + 1)))
+							chunkPlacement.put(id, peerName);
+					}
+				}
+			}
+
+			System.out.println("Restore details: " + chunkSize + " bytes/chunk, " + totalChunks + " total chunks, checksum "
+					+ fileChecksum + ", " + chunkPlacement.size() + " chunk placements");
+
+			if (!fileName.endsWith(".pack") || !restorePack(client, fileName, wanted,
+					restorePeers, chunkPlacement, order, chunkSize, totalChunks)) {
+				restoreFileChunks(client, fileName, restorePeers, chunkPlacement, order, chunkSize,
+						totalChunks, fileChecksum);
+			}
+		} else {
+			jobFailed(resp);
+		}
+	}
+
+	/**
+	 * Backup driven by the chunk hashes: the file is cut (FastCDC, or fixed-size when
+	 * re-backing up a fixed-size file), every chunk hashed and the list sent to the
+	 * server, which answers with the chunks it does not already hold for this file.
+	 * Only those are uploaded. Chunks found in the previous manifest carry their old
+	 * chunk id, so unchanged data keeps its id and placement.
+	 */
+	private static void backupIncremental(UDPClient client, PeerNode self, Path filePath, int chunkSize,
+			byte chunking, BackupManifest previous)
+			throws IOException, InterruptedException, ExecutionException, TimeoutException {
+		String fileName = filePath.getFileName().toString();
+		long start = System.currentTimeMillis();
+		List<FastCdcChunker.Span> spans;
+		long[] crcs;
+		byte[][] hashes;
+		Map<String, BackupManifest.Entry> known = previous == null ? new HashMap<>() : previous.byHash();
+		List<String> manifest = new ArrayList<>();
+		int unchanged = 0;
+		long fileCrc = 0;
+		long fileSize;
+
+		try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			fileSize = fc.size();
+			spans = chunking == BackupManifest.CDC ? new FastCdcChunker(chunkSize).split(fc)
+					: FastCdcChunker.fixed(fileSize, chunkSize);
+			crcs = new long[spans.size()];
+			hashes = new byte[spans.size()][];
+			List<FastCdcChunker.Span> all = spans;
+			ChunkCipher cipher = ChunkCipher.ENABLED ? ChunkCipher.forFile(fileName) : null; // keyed hashes
+			// Chunk boundaries are known, so every chunk can be hashed on its own core
+			try {
+				ChunkUploader.prepareAll(spans.size(), i -> {
+					FastCdcChunker.Span span = all.get(i);
+					try {
+						MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, span.offset, span.length);
+						crcs[i] = ChecksumAlgorithm.CRC32.value(buf);
+						hashes[i] = cipher != null ? cipher.chunkHash(buf) : ChecksumAlgorithm.SHA256.digest(buf);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			for (int i = 0; i < spans.size(); i++) {
+				FastCdcChunker.Span span = spans.get(i);
+				fileCrc = Crc32Combine.combine(fileCrc, crcs[i], span.length);
+				String hash = ChecksumAlgorithm.hex(hashes[i]);
+				BackupManifest.Entry old = known.get(hash);
+				if (old != null)
+					unchanged++;
+				manifest.add(old == null ? hash + " " + span.length : hash + " " + span.length + " " + old.chunkId);
+			}
+		}
+		System.out.println("Hashed " + fileName + " into " + spans.size() + " chunks in "
+				+ (System.currentTimeMillis() - start) + " ms; " + unchanged + " unchanged since "
+				+ (previous == null ? "(no previous backup)" : "version " + previous.version));
+
+		String resp = client.sendBackupManifest(PeerMain.nextRequest(), self.getName(), self.getUdpPort(), fileName,
+				fileSize, chunkSize, manifest);
+		String[] lines = resp.split("\n");
+		System.out.println("Server Response: " + lines[0]);
+		if (!lines[0].startsWith("BACKUP_PLAN")) {
+			jobFailed(lines[0]);
+			return;
+		}
 
-			System.out.println("CRC Check - Expected: " + Long.toHexString(expectedCrc) + ", Actual: "
-					+ Long.toHexString(actualCrc));
+		// BACKUP_PLAN File [Peer:IP:Port,...] Chunk_Size new=N reused=M reusedBytes=B,
+		// then "Index Chunk_ID Peer new|have" for every chunk
+		int open = lines[0].indexOf('[');
+		int close = lines[0].indexOf(']');
+		List<ChunkUploader.Target> targets = new ArrayList<>();
+		Map<String, Integer> targetIndex = new HashMap<>();
+		for (String entry : lines[0].substring(open + 1, close).split(",")) {
+			String[] parts = entry.trim().split(":");
+			if (parts.length != 3)
+				continue;
+			storagePeerIps.put(parts[0], parts[1]);
+			storagePeerPorts.put(parts[0], Integer.parseInt(parts[2]));
+			targetIndex.put(parts[0], targets.size());
+			targets.add(new ChunkUploader.Target(parts[0], parts[1], Integer.parseInt(parts[2])));
+		}
 
-			if (actualCrc != expectedCrc) {
-				System.err.println("Checksum mismatch for " + fileName + " chunk " + chunkId);
-				System.err.println("   Expected: " + Long.toHexString(expectedCrc));
-				System.err.println("   Actual:   " + Long.toHexString(actualCrc));
-				// TODO: Send CHUNK_ERROR via UDP to owner
+		String identity = fileSize + " " + Files.getLastModifiedTime(filePath).toMillis() + " " + chunkSize + " "
+				+ chunking;
+		List<BackupManifest.Entry> entries = new ArrayList<>();
+		ChunkUploader.Result upload;
+		try (TransferCheckpoint checkpoint = TransferCheckpoint.open(TransferCheckpoint.BACKUP, fileName, identity)) {
+			// The server indexes a new chunk when it plans it, so after an interrupted attempt
+			// it may report "have" for chunks that never arrived. Only the previous manifest
+			// and the checkpoint's acks are proof; anything else is sent again.
+			Set<Integer> proven = new HashSet<>();
+			if (previous != null)
+				for (BackupManifest.Entry e : previous.entries)
+					proven.add(e.chunkId);
+
+			List<ChunkUploader.Region> regions = new ArrayList<>();
+			for (int i = 1; i < lines.length; i++) {
+				String[] f = lines[i].trim().split("\\s+");
+				if (f.length != 4)
+					continue;
+				int index = Integer.parseInt(f[0]);
+				int chunkId = Integer.parseInt(f[1]);
+				FastCdcChunker.Span span = spans.get(index);
+				entries.add(new BackupManifest.Entry(span.offset, span.length, crcs[index], hashes[index], chunkId, f[2]));
+				boolean send = f[3].equals("new") || (checkpoint.interrupted() && !proven.contains(chunkId));
+				Integer peer = send ? target(targets, targetIndex, f[2]) : null;
+				if (peer != null) {
+					proven.add(chunkId); // a chunk may occur more than once
+					regions.add(new ChunkUploader.Region(chunkId, span.offset, span.length, crcs[index], peer));
+				}
+			}
+			if (checkpoint.interrupted())
+				System.out.println("Resuming backup of " + fileName + ": " + checkpoint.size()
+						+ " chunks already stored");
+			TransferJobs.current().expect(regions.stream().mapToLong(r -> r.length).sum());
+
+			// Buffer budget in terms of the largest chunk the chunker can cut
+			int maxChunk = chunking == BackupManifest.CDC ? chunkSize * 4 : chunkSize;
+			upload = new ChunkUploader(fileName, maxChunk, targets).resume(checkpoint).upload(filePath, regions);
+			if (!upload.ok()) {
+				System.err.println("Failed to send chunks " + upload.failed + " of file " + fileName
+						+ "; backup incomplete, run the same command again to resume");
+				jobFailed("chunks " + upload.failed + " not stored");
 				return;
 			}
+		}
 
-			// Store chunk
-			Path fileFolder = storageDir.resolve(fileName);
-			Files.createDirectories(fileFolder);
-			Path chunkFile = fileFolder.resolve("chunk" + chunkId);
-			Files.write(chunkFile, chunkData);
+		fileChecksums.put(fileName, fileCrc);
+		resp = client.sendBackupDone(PeerMain.nextRequest(), fileName,
+				Long.toHexString(ChunkCipher.announcedChecksum(fileName, fileCrc)));
+		System.out.println("Server Response: " + resp);
+		if (resp.startsWith("BACKUP_DONE"))
+			TransferCheckpoint.discard(TransferCheckpoint.BACKUP, fileName);
+		else
+			jobFailed(resp);
+
+		int version = previous == null ? 1 : previous.version + 1;
+		long saved = fileSize - upload.bytes;
+		System.out.println("Backup v" + version + " of " + fileName + ": uploaded " + upload.chunks + " of "
+				+ spans.size() + " chunks (" + upload.bytes + " bytes, " + upload.sentBytes + " on the wire) in "
+				+ upload.millis + " ms, saved " + saved + " bytes ("
+				+ String.format("%.1f", fileSize == 0 ? 0.0 : 100.0 * saved / fileSize) + "%)");
+		if (resp.startsWith("BACKUP_DONE") && entries.size() == spans.size()) {
+			saveManifest(new BackupManifest(fileName, fileSize, fileCrc, chunking, chunkSize, version, entries));
+		}
+	}
 
-			self.setNumberChunksStored(self.getNumberChunksStored() + 1);// Update number of chunks stored
+	// Index of a plan peer in targets, adding peers the plan only names as holders
+	private static Integer target(List<ChunkUploader.Target> targets, Map<String, Integer> targetIndex, String peer) {
+		Integer index = targetIndex.get(peer);
+		if (index == null && storagePeerIps.containsKey(peer) && storagePeerPorts.containsKey(peer)) {
+			index = targets.size();
+			targetIndex.put(peer, index);
+			targets.add(new ChunkUploader.Target(peer, storagePeerIps.get(peer), storagePeerPorts.get(peer)));
+		}
+		if (index == null)
+			System.err.println("No address for storage peer " + peer + ", cannot send its chunks");
+		return index;
+	}
 
-			System.out.println("Stored chunk " + chunkId + " of file " + fileName + " at " + chunkFile);
-			System.out.println("Chunk " + chunkId + " successfully received and verified");
+	private static void saveManifest(BackupManifest manifest) {
+		try {
+			manifest.save();
+		} catch (IOException e) {
+			System.err.println("Could not save manifest for " + manifest.fileName + ": " + e.getMessage());
+		}
+	}
 
-			// Send acknowledgment back to owner via TCP (immediate feedback)
-			String ack = "CHUNK_OK " + chunkId + "\n";
-			out.write(ack.getBytes(StandardCharsets.UTF_8));
-			out.flush();
-			System.out.println("Sent TCP acknowledgment for chunk " + chunkId);
+	// Choose peer for this chunk: server placement if known, else round-robin over the list
+	private static CompletableFuture<byte[]> fetchChunk(String fileName, int chunkId, List<String> peers,
+			Map<Integer, String> chunkPlacement) {
+		String peerName;
+		String peerIp;
+		int peerPort;
+		String placedPeer = chunkPlacement.get(chunkId);
+		if (placedPeer != null && storagePeerIps.containsKey(placedPeer) && storagePeerPorts.containsKey(placedPeer)) {
+			peerName = placedPeer;
+			peerIp = storagePeerIps.get(placedPeer);
+			peerPort = storagePeerPorts.get(placedPeer);
+		} else {
+			String[] parts = peers.get(chunkId % peers.size()).split(":");
+			peerName = parts[0];
+			peerIp = parts[1];
+			peerPort = Integer.parseInt(parts[2]);
+		}
 
-		} catch (Exception e) {
-			System.err.println("Failed to handle TCP chunk from " + clientInfo + ": " + e.getMessage());
-			e.printStackTrace();
+		System.out.println("Requesting chunk " + chunkId + " from " + peerName + " at " + peerIp + ":" + peerPort);
+		// Decrypt (if sealed) as each chunk arrives, on the transport's threads
+		return PeerTransport.get().fetch(peerIp, peerPort, fileName, chunkId).thenApply(stored -> {
+			try {
+				return ChunkCipher.open(fileName, chunkId, stored);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/**
+	 * Restore files out of a directory pack into restored_<Dir>/: the trailer and index
+	 * come from the last chunks, then only the chunks holding the wanted file (or all
+	 * files) are fetched. Each file is checked against the CRC in the index. Returns
+	 * false if the file is not a pack after all.
+	 */
+	private static boolean restorePack(UDPClient client, String packName, String wanted, List<String> peers,
+			Map<Integer, String> chunkPlacement, List<Integer> order, int chunkSize, int totalChunks) {
+		PackReader reader = new PackReader(
+				pos -> fetchChunk(packName, order != null ? order.get(pos) : pos, peers, chunkPlacement), chunkSize,
+				Math.min(RESTORE_WINDOW, TransferJobs.CHUNKS_PER_JOB));
+		Path outDir = Path.of("restored_" + packName.substring(0, packName.length() - ".pack".length()))
+				.toAbsolutePath().normalize();
+		long start = System.currentTimeMillis();
+		try {
+			long size = (long) (totalChunks - 1) * chunkSize + reader.chunk(totalChunks - 1).length;
+			long[] trailer;
+			try {
+				trailer = DirectoryPack.readTrailer(
+						reader.read(size - DirectoryPack.TRAILER_BYTES, DirectoryPack.TRAILER_BYTES));
+			} catch (IOException e) {
+				if (wanted == null)
+					return false; // a plain file whose name ends in .pack
+				throw e;
+			}
+			List<DirectoryPack.Entry> entries = DirectoryPack.readIndex(reader.read(trailer[0], (int) trailer[1]), trailer);
+			if (wanted != null) {
+				entries.removeIf(e -> !e.path.equals(wanted));
+				if (entries.isEmpty()) {
+					System.err.println("No file " + wanted + " in " + packName);
+					sendRestoreFailedSafe(client, packName, "Not_In_Pack");
+					return true;
+				}
+			}
+
+			TransferJobs.current().expect(entries.stream().mapToLong(e -> e.length).sum());
+
+			// Read ahead across everything being restored, not just the current file
+			DirectoryPack.Entry lastEntry = entries.get(entries.size() - 1);
+			reader.readAheadTo(lastEntry.offset + lastEntry.length);
+			long bytes = 0;
+			List<String> bad = new ArrayList<>();
+			List<String> damaged = new ArrayList<>();
+			for (DirectoryPack.Entry e : entries) {
+				if (e.damaged()) {
+					// Zero-filled in the pack; writing it out would pass the zeros off as the file
+					System.err.println(e.path + " could not be read when " + packName + " was backed up; not restored");
+					damaged.add(e.path);
+					continue;
+				}
+				Path target = outDir.resolve(e.path).normalize();
+				if (!target.startsWith(outDir)) {
+					System.err.println("Skipping unsafe path in pack: " + e.path);
+					bad.add(e.path);
+					continue;
+				}
+				Files.createDirectories(target.getParent());
+				CRC32 crc = new CRC32();
+				try (OutputStream out = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(target)),
+						crc)) {
+					reader.copy(e.offset, e.length, out);
+				}
+				Files.setLastModifiedTime(target, FileTime.fromMillis(e.mtime));
+				if (crc.getValue() != e.crc()) {
+					System.err.println("Checksum mismatch for " + e.path + " in " + packName);
+					bad.add(e.path);
+				}
+				bytes += e.length;
+				TransferJobs.current().progress(e.length);
+			}
+
+			System.out.println("Restored " + (entries.size() - bad.size() - damaged.size()) + " of " + entries.size()
+					+ " files (" + bytes + " bytes) from " + packName + " to " + outDir + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			if (!bad.isEmpty()) {
+				sendRestoreFailedSafe(client, packName, "Checksum_Mismatch_" + bad.size() + "_Files");
+			} else if (!damaged.isEmpty()) {
+				System.err.println("Damaged in the backup: " + damaged);
+				sendRestoreFailedSafe(client, packName, "Damaged_In_Backup_" + damaged.size() + "_Files");
+			} else {
+				sendRestoreDoneSafe(client, packName);
+			}
+		} catch (IOException e) {
+			System.err.println("Restore from " + packName + " failed: " + e.getMessage());
+			sendRestoreFailedSafe(client, packName, "Pack_Restore_Error");
 		}
+		return true;
 	}
 
-	public static void restoreFileChunks(UDPClient client, String fileName, List<String> peers, int chunkSize, int totalChunks, String fileChecksum) {
+	/**
+	 * Restore a file into restored_<File>, chunk by chunk in file order. Each chunk is
+	 * written at its offset once its CRC checked out, and its end offset recorded in a
+	 * restore checkpoint; an interrupted restore of the same version picks up after the
+	 * last recorded chunk. The whole file is checked against the backup's CRC at the end.
+	 */
+	public static void restoreFileChunks(UDPClient client, String fileName, List<String> peers,
+			Map<Integer, String> chunkPlacement, List<Integer> order, int chunkSize, int totalChunks,
+			String fileChecksum) {
 		Path restored = Path.of("restored_" + fileName);
+		String identity = fileChecksum + " " + chunkSize + " " + totalChunks + " "
+				+ (order == null ? "-" : Integer.toHexString(order.hashCode()));
 
-		try (FileOutputStream fos = new FileOutputStream(restored.toFile())) {
+		try (TransferCheckpoint checkpoint = TransferCheckpoint.open(TransferCheckpoint.RESTORE, fileName, identity);
+				FileChannel out = FileChannel.open(restored, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
 
 			System.out.println("Starting restoration for file " + fileName + "...");
 			System.out.println("Restored file will be at: " + restored.toAbsolutePath());
@@ -671,107 +1107,101 @@ public class PeerMain {
 					System.err.println("Invalid file checksum format: " + fileChecksum);
 				}
 			}
-
-			// Request each chunk in sequence
-			for (int chunkId = 0; chunkId < totalChunks; chunkId++) {
-				// Choose peer for this chunk (round-robin over the list)
-				String[] parts = peers.get(chunkId % peers.size()).split(":");
-				String peerName = parts[0];
-				String peerIp = parts[1];
-				int peerPort = Integer.parseInt(parts[2]);
-
-				System.out.println("Requesting chunk " + chunkId + " from " + peerName + " at " + peerIp + ":" + peerPort);
-
-				try (Socket socket = new Socket(peerIp, peerPort);
-					OutputStream out = socket.getOutputStream();
-					InputStream in = socket.getInputStream()) {
-
-					// Send: GET_CHUNK RQ# File_Name Chunk_ID
-					int rq = PeerMain.nextRequest();
-					String header = String.format("GET_CHUNK %d %s %d\n", rq, fileName, chunkId);
-					out.write(header.getBytes(StandardCharsets.UTF_8));
-					out.flush();
-
-					// Read response header line: CHUNK_DATA RQ# File_Name Chunk_ID Checksum
-					StringBuilder hb = new StringBuilder();
-					int c;
-					while ((c = in.read()) != -1 && c != '\n') {
-						hb.append((char) c);
-					}
-					String respHeader = hb.toString().trim();
-
-					if (respHeader.isEmpty()) {
-						System.out.println("Empty response for chunk " + chunkId + ". Assuming no more chunks.");
-						sendRestoreFailedSafe(client, fileName, "Chunk_" + chunkId + "_Missing");
-						return;
+			// Otherwise the local manifest of the last backup (survives restarts of this peer)
+			BackupManifest manifest = BackupManifest.load(fileName);
+			if (!fileChecksums.containsKey(fileName) && manifest != null)
+				fileChecksums.put(fileName, manifest.fileCrc);
+
+			// Chunks verified by an interrupted restore of this version are kept, if the
+			// partial file still holds them
+			int first = 0;
+			long offset = 0;
+			if (checkpoint.size() > 0 && checkpoint.size() <= totalChunks && out.size() >= checkpoint.last()) {
+				first = checkpoint.size();
+				offset = checkpoint.last();
+				System.out.println("Resuming restore of " + fileName + " at chunk " + first + " of " + totalChunks
+						+ " (" + offset + " bytes already verified)");
+			} else if (checkpoint.size() > 0) {
+				checkpoint.reset();
+			}
+			out.truncate(offset);
+			TransferJobs.Job job = TransferJobs.current();
+			job.expect(manifest != null ? manifest.fileSize : (long) totalChunks * chunkSize); // estimate without a manifest
+			job.skip(offset);
+
+			// Fetch ahead of the writer: up to RESTORE_WINDOW chunks in flight over the pooled
+			// peer connections, written to the file in order. Content-defined backups list their
+			// chunk ids in file order; a chunk may appear more than once.
+			// Each fetched chunk holds chunkSize of the jobs' in-flight budget until it is
+			// written. Only the chunk needed next waits for budget (nothing else is held
+			// then); read-ahead takes what is free.
+			Map<Integer, CompletableFuture<byte[]>> fetches = new HashMap<>();
+			int window = Math.min(RESTORE_WINDOW, TransferJobs.CHUNKS_PER_JOB);
+			int nextFetch = first;
+			int held = 0; // chunks holding budget
+			try {
+				for (int pos = first; pos < totalChunks; pos++) {
+					for (; nextFetch < totalChunks && nextFetch < pos + window; nextFetch++) {
+						if (nextFetch == pos) {
+							try {
+								TransferJobs.reserve(chunkSize);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								sendRestoreFailedSafe(client, fileName, "Interrupted");
+								return;
+							}
+						} else if (!TransferJobs.tryReserve(chunkSize)) {
+							break;
+						}
+						held++;
+						int fetchId = order != null ? order.get(nextFetch) : nextFetch;
+						fetches.put(nextFetch, fetchChunk(fileName, fetchId, peers, chunkPlacement));
 					}
 
-					if (!respHeader.startsWith("CHUNK_DATA")) {
-						System.out.println("Unexpected response for chunk " + chunkId + ": " + respHeader);
-						sendRestoreFailedSafe(client, fileName, "Invalid_Response_For_Chunk_" + chunkId);
+					int chunkId = order != null ? order.get(pos) : pos;
+					byte[] data;
+					try {
+						data = ChunkCodec.decode(fetches.remove(pos).get()); // unwraps compressed chunks
+					} catch (IOException e) {
+						System.err.println("Error decoding chunk " + chunkId + ": " + e.getMessage());
+						sendRestoreFailedSafe(client, fileName, "Checksum_Mismatch_Chunk_" + chunkId);
 						return;
-					}
-
-					String[] respParts = respHeader.split("\\s+");
-					if (respParts.length < 5) {
-						System.err.println("Malformed CHUNK_DATA header: " + respHeader);
-						sendRestoreFailedSafe(client, fileName, "Malformed_CHUNK_DATA_For_Chunk_" + chunkId);
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						System.err.println("Error requesting chunk " + chunkId + ": " + cause.getMessage()
+								+ "; " + pos + " of " + totalChunks + " chunks kept, restore again to resume");
+						// If we cannot get this chunk, we stop trying further ones
+						String reason = cause instanceof FileNotFoundException ? "Chunk_" + chunkId + "_Not_Found"
+								: String.valueOf(cause.getMessage()).startsWith("Checksum mismatch")
+										? "Checksum_Mismatch_Chunk_" + chunkId
+										: "Network_Error_Chunk_" + chunkId;
+						sendRestoreFailedSafe(client, fileName, reason);
 						return;
-					}
-
-					String respFile = respParts[2];
-					int respChunkId = Integer.parseInt(respParts[3]);
-					String checksumHex = respParts[4];
-
-					if (!respFile.equals(fileName) || respChunkId != chunkId) {
-						System.err.println("Mismatched CHUNK_DATA header: " + respHeader);
-						sendRestoreFailedSafe(client, fileName, "Mismatched_CHUNK_DATA");
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						sendRestoreFailedSafe(client, fileName, "Interrupted");
 						return;
 					}
 
-					// If checksum is the word ERROR, storage peer is telling us that the chunk does
-					// not exist
-					if ("ERROR".equalsIgnoreCase(checksumHex)) {
-						System.out.println("Storage peer reports chunk " + chunkId + " not found. Stopping restore.");
-						sendRestoreFailedSafe(client, fileName, "Chunk_" + chunkId + "_Not_Found");
-                    	return;
-					}
-
-					long expectedCrc = Long.parseLong(checksumHex, 16);
-
-					// Read chunk data
-					byte[] buf = new byte[chunkSize];
-					int bytesRead;
-					int totalRead = 0;
-					CRC32 crc = new CRC32();
-
-					while ((bytesRead = in.read(buf)) != -1) {
-						crc.update(buf, 0, bytesRead);
-						fos.write(buf, 0, bytesRead);
-						totalRead += bytesRead;
-					}
-
-					long actualCrc = crc.getValue();
-					if (actualCrc != expectedCrc) {
-						System.err.println("Checksum mismatch for chunk " + chunkId + " expected=" + checksumHex
-								+ " actual=" + Long.toHexString(actualCrc));
-						// We continue but final RESTORE will be marked as FAILED if file checksum does
-						// not match
-					} else {
-						System.out.println("Chunk " + chunkId + " restored (" + totalRead + " bytes)");
-					}
-
-				} catch (IOException e) {
-					System.err.println("Error requesting chunk " + chunkId + ": " + e.getMessage());
-					// If we cannot get this chunk, we stop trying further ones
-					sendRestoreFailedSafe(client, fileName, "Network_Error_Chunk_" + chunkId);
-					return;
+					ByteBuffer buf = ByteBuffer.wrap(data);
+					while (buf.hasRemaining())
+						offset += out.write(buf, offset);
+					TransferJobs.release(chunkSize);
+					held--;
+					checkpoint.record(offset);
+					job.progress(data.length);
+					System.out.println("Chunk " + chunkId + " restored (" + data.length + " bytes)");
 				}
+			} finally {
+				for (; held > 0; held--)
+					TransferJobs.release(chunkSize); // fetched or in flight but never written
 			}
+			out.force(false);
 
 			System.out.println("File " + fileName + " restoration completed.");
 
-			// Final file checksum verification
+			// Final file checksum verification; either way there is nothing left to resume
+			TransferCheckpoint.discard(TransferCheckpoint.RESTORE, fileName);
 			Long expectedFileChecksum = fileChecksums.get(fileName);
 			if (expectedFileChecksum == null) {
 				System.out.println("No expected file checksum stored locally for " + fileName + ". Skipping final verification.");
@@ -789,7 +1219,7 @@ public class PeerMain {
 
 				long finalChecksumValue = finalCrc.getValue();
 
-				if (finalChecksumValue != expectedFileChecksum.longValue()) {
+				if (!ChunkCipher.checksumMatches(fileName, finalChecksumValue, expectedFileChecksum)) {
 					System.err.println("FINAL CHECKSUM MISMATCH for restored file " + fileName + ": expected="
 							+ Long.toHexString(expectedFileChecksum) + " actual=" + Long.toHexString(finalChecksumValue));
 					sendRestoreFailedSafe(client, fileName, "Final_Checksum_Mismatch");
@@ -807,11 +1237,28 @@ public class PeerMain {
 			}
 
 		} catch (IOException e) {
-			System.err.println("Failed to recompute final checksum for restored file: " + e.getMessage());
-			e.printStackTrace();
+			System.err.println("Failed to write restored file " + restored + ": " + e.getMessage());
+			sendRestoreFailedSafe(client, fileName, "Restore_Write_Error");
 		}
 	}
 
+	private static void printQueued(TransferJobs.Job job, String file) {
+		if (job != null) {
+			System.out.println("Job " + job.id + " queued: " + job.kind + " " + job.target);
+			return;
+		}
+		TransferJobs.Job busy = TransferJobs.active(file);
+		System.out.println("ERROR: " + file + " is busy" + (busy != null ? " with job " + busy.id + " (" + busy.kind
+				+ " " + busy.target + ")" : "") + "; wait for it or cancel it first");
+	}
+
+	// Report a failure to the job this command runs in, if any
+	private static void jobFailed(String reason) {
+		TransferJobs.Job job = TransferJobs.current();
+		if (job != null)
+			job.fail(reason);
+	}
+
 	public static synchronized int nextRequest() {
 		return request++;
 	}
@@ -833,6 +1280,8 @@ public class PeerMain {
 	}
 
 	private static void sendRestoreFailedSafe(UDPClient client, String fileName, String reason) {
+		jobFailed(reason);
+		boolean cancelled = Thread.interrupted(); // still tell the server when the job was cancelled
 		try {
 			client.sendRestoreFailed(PeerMain.nextRequest(), fileName, reason);
 			System.out.println("Sent RESTORE_FAIL to server for file: " + fileName + " reason: " + reason);
@@ -846,6 +1295,8 @@ public class PeerMain {
 		} catch (IOException e) {
 			System.err.println("IO error sending RESTORE_FAIL to server: " + e.getMessage());
 		}
+		if (cancelled)
+			Thread.currentThread().interrupt();
 	}
 
 	private static void sendReplicateReqSafe(UDPClient client, String fileName, int chunkId, String targetPeer) {
@@ -927,47 +1378,18 @@ public class PeerMain {
 
 			byte[] chunkData = Files.readAllBytes(chunkPath);
 			
-			// Calculate checksum
-			CRC32 crc = new CRC32();
-			crc.update(chunkData);
-			String checksumHex = Long.toHexString(crc.getValue());
-
 			System.out.println("Replicating chunk " + chunkId + " (" + chunkData.length + " bytes) to " + targetIp + ":" + targetPort);
 
-			// Enhanced connection handling with timeout
-			try (Socket socket = new Socket()) {
-				socket.connect(new InetSocketAddress(targetIp, targetPort), 10000); // 10-second timeout
-				socket.setSoTimeout(15000); // 15-second read timeout
-				
-				try (OutputStream out = socket.getOutputStream();
-					InputStream in = socket.getInputStream();
-					Scanner responseScanner = new Scanner(in, StandardCharsets.UTF_8.name())) {
-
-					// Send replication header
-					String header = "REPLICATE_CHUNK " + fileName + " " + chunkId + " " + 
-								chunkData.length + " " + checksumHex + "\n";
-					out.write(header.getBytes(StandardCharsets.UTF_8));
-					out.write(chunkData);
-					out.flush();
-
-					System.out.println("Sent replication data to " + targetIp + ":" + targetPort);
-
-					// Wait for acknowledgment with timeout
-					if (responseScanner.hasNextLine()) {
-						String ack = responseScanner.nextLine().trim();
-						if (ack.startsWith("REPLICATE_OK")) {
-							System.out.println("Replication acknowledged: " + ack);
-							return true;
-						} else {
-							System.err.println("Unexpected replication response: " + ack);
-						}
-					} else {
-						System.err.println("No acknowledgment received for replication");
-					}
-				}
-			}
-		} catch (SocketTimeoutException e) {
+			// Over the pooled connection to the target; waits for its REPLICATE ack
+			PeerTransport.get().replicate(targetIp, targetPort, fileName, chunkId, chunkData,
+					ChecksumAlgorithm.DEFAULT.tag(chunkData))
+					.get(REPLICATE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			System.out.println("Replication acknowledged by " + targetIp + ":" + targetPort);
+			return true;
+		} catch (TimeoutException e) {
 			System.err.println("Timeout during replication to " + targetIp + ":" + targetPort);
+		} catch (ExecutionException e) {
+			System.err.println("Replication to " + targetIp + ":" + targetPort + " failed: " + e.getCause().getMessage());
 		} catch (IOException e) {
 			System.err.println("IO error during replication: " + e.getMessage());
 		} catch (Exception e) {
@@ -978,7 +1400,21 @@ public class PeerMain {
 		return false;
 	}
 
-	private static void handleReplicateChunk(String header, InputStream in, OutputStream out, Path storageDir, PeerNode self) {
+	// Read header line manually (don't use Scanner - it buffers too much)
+	private static String readHeaderLine(InputStream in) throws IOException {
+		StringBuilder headerBuilder = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			char c = (char) b;
+			headerBuilder.append(c);
+			if (c == '\n') {
+				break;
+			}
+		}
+		return headerBuilder.toString().trim();
+	}
+
+	private static void handleReplicateChunk(String header, InputStream in, OutputStream out) {
     	// REPLICATE_CHUNK File_Name Chunk_ID Chunk_Size Checksum
 		System.out.println("Handling REPLICATE_CHUNK...");
 
@@ -992,7 +1428,7 @@ public class PeerMain {
 		String fileName = parts[1];
 		int chunkId = Integer.parseInt(parts[2]);
 		int chunkSize = Integer.parseInt(parts[3]);
-		long expectedCrc = Long.parseLong(parts[4], 16);
+		String expected = parts[4];
 
 		System.out.println("Receiving replicated chunk " + chunkId + " of " + fileName + " (size: " + chunkSize + " bytes)");
 
@@ -1008,23 +1444,9 @@ public class PeerMain {
 				totalRead += bytesRead;
 			}
 
-			// Verify checksum
-			CRC32 crc = new CRC32();
-			crc.update(chunkData);
-			long actualCrc = crc.getValue();
-
-			if (actualCrc != expectedCrc) {
-				System.err.println("Checksum mismatch for replicated chunk " + chunkId);
+			// Verify checksum and store the replicated chunk
+			if (!chunkStore.store(fileName, chunkId, chunkData, expected))
 				return;
-			}
-
-			// Store the replicated chunk
-			Path fileFolder = storageDir.resolve(fileName);
-			Files.createDirectories(fileFolder);
-			Path chunkFile = fileFolder.resolve("chunk" + chunkId);
-			Files.write(chunkFile, chunkData);
-
-			self.setNumberChunksStored(self.getNumberChunksStored() + 1);
 
 			System.out.println("Stored replicated chunk " + chunkId + " of file " + fileName);
 			
@@ -0,0 +1,483 @@
+package com.P2PBRS.peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.P2PBRS.common.ChecksumAlgorithm;
+import com.P2PBRS.common.Config;
+
+/**
+ * Framed, multiplexed peer-to-peer TCP transport for chunk store, fetch and
+ * replication.
+ *
+ * A connection starts with the line "P2PF/1" (so the storage server can tell it from
+ * the line-based protocol) and then carries frames in both directions:
+ *
+ * <pre>
+ *   int length | int requestId | byte type | short headerLength | header (UTF-8) | data
+ * </pre>
+ *
+ * Replies carry the request's id and may come back in any order, so many chunk
+ * operations share one connection. Checksums are {@link ChecksumAlgorithm} tags
+ * ("crc32c:hex"): a store names the algorithm it used, a GET names the one it wants
+ * back (without one, the reply is plain CRC-32 hex). Connections are pooled per remote peer and kept
+ * open until idle, so the handshake and slow start are paid once per peer pair.
+ *
+ * Outgoing chunk data goes through the node's {@link TrafficShaper}: stores as backup,
+ * replications as repair and the chunks served for GETs (here or by the line-based
+ * GET_CHUNK handler) as restore traffic.
+ */
+public final class PeerTransport {
+	public static final String PREAMBLE = "P2PF/1";
+
+	// Requests: header "file chunkId checksum" (+ data) or "file chunkId [algorithm]"
+	static final byte STORE = 1;
+	static final byte GET = 2;
+	static final byte REPLICATE = 3;
+	// Replies: OK "chunkId", DATA "checksum" (+ data), ERROR "reason"
+	static final byte OK = 10;
+	static final byte DATA = 11;
+	static final byte ERROR = 12;
+
+	private static final String NOT_FOUND = "NOT_FOUND";
+
+	private static final int CONNECTIONS_PER_PEER = Config.getInt("p2pbrs.transport.connectionsPerPeer", 2);
+	private static final long TIMEOUT_MS = Config.getLong("p2pbrs.transport.timeoutMs", 30_000);
+	private static final long IDLE_MS = Config.getLong("p2pbrs.transport.idleMs", 60_000);
+	static final int MAX_FRAME_BYTES = Config.getInt("p2pbrs.transport.maxFrameBytes", 256 << 20);
+	private static final int CONNECT_TIMEOUT_MS = 5000;
+	// Requests a storage peer reads ahead on one connection before it stops reading
+	private static final int MAX_OUTSTANDING = Math.max(1, Config.getInt("p2pbrs.transport.maxOutstanding", 32));
+
+	private static final TrafficShaper SHAPER = TrafficShaper.fromConfig();
+	private static final PeerTransport INSTANCE = new PeerTransport();
+
+	// Serves framed requests on storage peers; replies go out as soon as each one is done
+	private static final ExecutorService SERVER_POOL = Executors.newFixedThreadPool(
+			Config.getInt("p2pbrs.transport.serverThreads", 8), daemon("Transport-Server"));
+
+	private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+	private PeerTransport() {
+		if (SHAPER.enabled())
+			System.out.println("Traffic shaping: " + SHAPER);
+		ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(daemon("Transport-Idle"));
+		sweeper.scheduleWithFixedDelay(this::closeIdle, IDLE_MS, IDLE_MS / 2, TimeUnit.MILLISECONDS);
+	}
+
+	public static PeerTransport get() {
+		return INSTANCE;
+	}
+
+	static final class Frame {
+		final int id;
+		final byte type;
+		final String header;
+		final byte[] data;
+
+		Frame(int id, byte type, String header, byte[] data) {
+			this.id = id;
+			this.type = type;
+			this.header = header;
+			this.data = data;
+		}
+	}
+
+	/** Store a chunk on a peer (owner upload). */
+	public CompletableFuture<Void> store(String ip, int port, String fileName, int chunkId, byte[] data,
+			String checksum) {
+		return call(ip, port, STORE, fileName + " " + chunkId + " " + checksum, data)
+				.thenApply(PeerTransport::expectOk);
+	}
+
+	/**
+	 * Store a region of a file without copying it through the Java heap: the frame
+	 * header is written and the bytes go from the file to the socket with
+	 * {@link FileChannel#transferTo}. The caller supplies the region's checksum.
+	 */
+	public CompletableFuture<Void> storeRegion(String ip, int port, String fileName, int chunkId, FileChannel file,
+			long position, int length, String checksum) {
+		Pool pool = pools.computeIfAbsent(ip + ":" + port, k -> new Pool(ip, port));
+		Connection conn;
+		try {
+			conn = pool.pick();
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return conn.send(STORE, fileName + " " + chunkId + " " + checksum, file, position, length)
+				.thenApply(PeerTransport::expectOk);
+	}
+
+	/** Copy a chunk to another peer (repair). */
+	public CompletableFuture<Void> replicate(String ip, int port, String fileName, int chunkId, byte[] data,
+			String checksum) {
+		return call(ip, port, REPLICATE, fileName + " " + chunkId + " " + checksum, data)
+				.thenApply(PeerTransport::expectOk);
+	}
+
+	/**
+	 * Fetch a chunk, checked against the checksum the peer sends with it. Fails with
+	 * FileNotFoundException if the peer does not hold it.
+	 */
+	public CompletableFuture<byte[]> fetch(String ip, int port, String fileName, int chunkId) {
+		String header = fileName + " " + chunkId + " " + ChecksumAlgorithm.DEFAULT.id;
+		return call(ip, port, GET, header, new byte[0]).thenApply(reply -> {
+			if (reply.type == ERROR) {
+				throw new CompletionException(NOT_FOUND.equals(reply.header)
+						? new FileNotFoundException(fileName + " chunk " + chunkId + " not found")
+						: new IOException(reply.header));
+			}
+			if (!ChecksumAlgorithm.verify(reply.header, reply.data)) {
+				throw new CompletionException(new IOException("Checksum mismatch for chunk " + chunkId + ": expected "
+						+ reply.header + " actual " + ChecksumAlgorithm.of(reply.header).tag(reply.data)));
+			}
+			return reply.data;
+		});
+	}
+
+	private static Void expectOk(Frame reply) {
+		if (reply.type != OK)
+			throw new CompletionException(new IOException(reply.header));
+		return null;
+	}
+
+	CompletableFuture<Frame> call(String ip, int port, byte type, String header, byte[] data) {
+		Pool pool = pools.computeIfAbsent(ip + ":" + port, k -> new Pool(ip, port));
+		Connection conn;
+		try {
+			conn = pool.pick();
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return conn.send(type, header, data);
+	}
+
+	private void closeIdle() {
+		long now = System.currentTimeMillis();
+		for (Pool pool : pools.values()) {
+			pool.closeIdle(now);
+		}
+	}
+
+	/** Connections to one remote peer; requests go to the least busy one. */
+	private static final class Pool {
+		final String ip;
+		final int port;
+		final List<Connection> connections = new ArrayList<>();
+
+		Pool(String ip, int port) {
+			this.ip = ip;
+			this.port = port;
+		}
+
+		synchronized Connection pick() throws IOException {
+			connections.removeIf(c -> c.closed);
+			Connection best = null;
+			for (Connection c : connections) {
+				if (best == null || c.pending.size() < best.pending.size())
+					best = c;
+			}
+			// Open another connection only while every existing one is busy
+			if (best == null || (!best.pending.isEmpty() && connections.size() < CONNECTIONS_PER_PEER)) {
+				best = new Connection(ip, port);
+				connections.add(best);
+			}
+			return best;
+		}
+
+		synchronized void closeIdle(long now) {
+			for (Connection c : connections) {
+				if (c.pending.isEmpty() && now - c.lastUsed > IDLE_MS)
+					c.close(new IOException("Idle"));
+			}
+			connections.removeIf(c -> c.closed);
+		}
+	}
+
+	private static final class Connection {
+		final String remote;
+		final SocketChannel channel; // blocking; also written directly by transferTo
+		final Socket socket;
+		final DataOutputStream out;
+		final Map<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+		final AtomicInteger nextId = new AtomicInteger();
+		volatile long lastUsed = System.currentTimeMillis();
+		volatile boolean closed;
+
+		Connection(String ip, int port) throws IOException {
+			remote = ip + ":" + port;
+			channel = SocketChannel.open();
+			socket = channel.socket();
+			try {
+				socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MS);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			socket.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			out.write((PREAMBLE + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			Thread reader = new Thread(() -> readLoop(in), "Transport-Reader " + remote);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		CompletableFuture<Frame> send(byte type, String header, byte[] data) {
+			return send(type, header, data, null, 0, data.length);
+		}
+
+		CompletableFuture<Frame> send(byte type, String header, FileChannel file, long position, int length) {
+			return send(type, header, null, file, position, length);
+		}
+
+		// Frame data comes from either the byte array or the file region
+		private CompletableFuture<Frame> send(byte type, String header, byte[] data, FileChannel file, long position,
+				int length) {
+			// Wait for bandwidth before the request is timed or holds the connection
+			try {
+				SHAPER.acquire(trafficClass(type), length);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return CompletableFuture.failedFuture(e);
+			}
+			int id = nextId.incrementAndGet();
+			CompletableFuture<Frame> reply = new CompletableFuture<>();
+			pending.put(id, reply);
+			reply.orTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS).whenComplete((r, e) -> pending.remove(id));
+			lastUsed = System.currentTimeMillis();
+			try {
+				synchronized (out) {
+					writeFrameHeader(out, id, type, header, length);
+					if (data != null) {
+						out.write(data, 0, length);
+						out.flush();
+					} else {
+						out.flush();
+						long sent = 0;
+						while (sent < length) {
+							long n = file.transferTo(position + sent, length - sent, channel);
+							if (n <= 0 && position + sent >= file.size())
+								throw new IOException("Source file shrank while sending"); // frame is now unusable
+							sent += n;
+						}
+					}
+				}
+			} catch (IOException e) {
+				close(e);
+			}
+			return reply;
+		}
+
+		void readLoop(DataInputStream in) {
+			try {
+				while (!closed) {
+					Frame reply = readFrame(in);
+					CompletableFuture<Frame> waiter = pending.remove(reply.id);
+					if (waiter != null)
+						waiter.complete(reply);
+					lastUsed = System.currentTimeMillis();
+				}
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		void close(IOException cause) {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+			if (!pending.isEmpty()) {
+				System.err.println("Connection to " + remote + " closed with " + pending.size() + " requests pending: "
+						+ cause.getMessage());
+			}
+			for (CompletableFuture<Frame> waiter : pending.values()) {
+				waiter.completeExceptionally(cause);
+			}
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Serve framed requests on a storage peer after the preamble line was read.
+	 * Requests run on a shared pool and replies are written as each one finishes. Replies
+	 * carrying chunk data wait for the traffic shaper on the connection's own writer
+	 * thread, so a throttled class never holds a pool thread other requests need. At
+	 * most MAX_OUTSTANDING requests per connection are read and not yet answered; past
+	 * that the peer stops reading and TCP flow control holds the sender back.
+	 */
+	static void serve(Socket socket, InputStream in, OutputStream rawOut, ChunkStore store) throws IOException {
+		DataInputStream din = new DataInputStream(in);
+		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(rawOut, 64 * 1024));
+		Semaphore outstanding = new Semaphore(MAX_OUTSTANDING);
+		ExecutorService writer = Executors.newSingleThreadExecutor(daemon("Transport-Writer"));
+		try {
+			while (true) {
+				Frame request;
+				try {
+					outstanding.acquire();
+					request = readFrame(din);
+				} catch (EOFException e) {
+					return; // client closed the connection
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				SERVER_POOL.execute(() -> {
+					Frame reply = handle(request, store);
+					if (reply.data.length == 0) {
+						reply(socket, dout, reply, null, outstanding);
+						return;
+					}
+					try {
+						writer.execute(() -> reply(socket, dout, reply, trafficClass(request.type), outstanding));
+					} catch (RejectedExecutionException e) {
+						outstanding.release(); // connection already closed
+					}
+				});
+			}
+		} finally {
+			writer.shutdown(); // replies already queued still go out
+		}
+	}
+
+	// Write a reply, first waiting for the shaper if it is of a shaped class
+	private static void reply(Socket socket, DataOutputStream dout, Frame reply, TrafficShaper.TrafficClass shaped,
+			Semaphore outstanding) {
+		try {
+			if (shaped != null)
+				SHAPER.acquire(shaped, reply.data.length);
+			synchronized (dout) {
+				writeFrame(dout, reply);
+				dout.flush();
+			}
+		} catch (IOException | InterruptedException e) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		} finally {
+			outstanding.release();
+		}
+	}
+
+	/** Wait until bytes of a class may go out, for data sent outside this transport. */
+	static void shape(TrafficShaper.TrafficClass c, int bytes) throws InterruptedException {
+		SHAPER.acquire(c, bytes);
+	}
+
+	// Chunks sent for a store are backup traffic, for a GET (served) restore traffic
+	private static TrafficShaper.TrafficClass trafficClass(byte requestType) {
+		switch (requestType) {
+		case STORE:
+			return TrafficShaper.TrafficClass.BACKUP;
+		case REPLICATE:
+			return TrafficShaper.TrafficClass.REPAIR;
+		default:
+			return TrafficShaper.TrafficClass.RESTORE;
+		}
+	}
+
+	private static Frame handle(Frame request, ChunkStore store) {
+		try {
+			String[] h = request.header.split(" ");
+			String fileName = h[0];
+			int chunkId = Integer.parseInt(h[1]);
+			switch (request.type) {
+			case STORE:
+			case REPLICATE:
+				if (!store.store(fileName, chunkId, request.data, h[2]))
+					return new Frame(request.id, ERROR, "Checksum mismatch", new byte[0]);
+				System.out.println("Stored " + (request.type == REPLICATE ? "replicated " : "") + "chunk " + chunkId
+						+ " of file " + fileName);
+				return new Frame(request.id, OK, String.valueOf(chunkId), new byte[0]);
+			case GET:
+				byte[] data = store.read(fileName, chunkId);
+				if (data == null) {
+					System.err.println("Requested chunk not found: " + store.chunkPath(fileName, chunkId));
+					return new Frame(request.id, ERROR, NOT_FOUND, new byte[0]);
+				}
+				// Older owners do not name an algorithm and expect plain CRC-32 hex
+				String checksum = h.length > 2 ? ChecksumAlgorithm.forName(h[2]).tag(data)
+						: Long.toHexString(ChecksumAlgorithm.CRC32.value(data));
+				return new Frame(request.id, DATA, checksum, data);
+			default:
+				return new Frame(request.id, ERROR, "Unknown request type " + request.type, new byte[0]);
+			}
+		} catch (Exception e) {
+			return new Frame(request.id, ERROR, String.valueOf(e.getMessage()), new byte[0]);
+		}
+	}
+
+	static void writeFrame(DataOutputStream out, Frame f) throws IOException {
+		writeFrameHeader(out, f.id, f.type, f.header, f.data.length);
+		out.write(f.data);
+	}
+
+	// Everything up to the data, which the caller writes next (dataLength bytes)
+	private static void writeFrameHeader(DataOutputStream out, int id, byte type, String header, int dataLength)
+			throws IOException {
+		byte[] h = header.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(4 + 1 + 2 + h.length + dataLength);
+		out.writeInt(id);
+		out.writeByte(type);
+		out.writeShort(h.length);
+		out.write(h);
+	}
+
+	static Frame readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 7 || length > MAX_FRAME_BYTES)
+			throw new IOException("Bad frame length " + length);
+		int id = in.readInt();
+		byte type = in.readByte();
+		int headerLength = in.readUnsignedShort();
+		if (headerLength > length - 7)
+			throw new IOException("Bad frame header length " + headerLength);
+		byte[] header = new byte[headerLength];
+		in.readFully(header);
+		byte[] data = new byte[length - 7 - headerLength];
+		in.readFully(data);
+		return new Frame(id, type, new String(header, StandardCharsets.UTF_8), data);
+	}
+
+	static ThreadFactory daemon(String name) {
+		return r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
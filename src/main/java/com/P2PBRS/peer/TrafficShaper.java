@@ -0,0 +1,125 @@
+package com.P2PBRS.peer;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import com.P2PBRS.common.Config;
+import com.P2PBRS.common.TokenBucket;
+
+/**
+ * Outbound bandwidth shaping for the peer transport, by traffic class: RESTORE (chunks
+ * a storage peer serves to a restoring owner), BACKUP (an owner's uploads) and REPAIR
+ * (replicas a storage peer copies to another).
+ *
+ * Each class may have its own cap (p2pbrs.shaper.restore|backup|repair.bytesPerSec)
+ * and all of them share the node's uplink (p2pbrs.shaper.bytesPerSec). While more than
+ * one class is waiting for the uplink it is split in proportion to their weights
+ * (p2pbrs.shaper.<class>.weight, 6:3:1 by default) by start-time fair queuing; a class
+ * with nothing to send leaves its share to the others and builds up no credit for
+ * later. A rate of 0 is unlimited; with no rate set the shaper does nothing.
+ *
+ * Buckets hold burstMs worth of bytes. A frame larger than that waits for a full
+ * bucket and leaves it in debt, so chunks are never split.
+ */
+final class TrafficShaper {
+	enum TrafficClass {
+		RESTORE, BACKUP, REPAIR
+	}
+
+	private static final double[] DEFAULT_WEIGHTS = { 6, 3, 1 };
+	private static final long MIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final TokenBucket link; // null if unlimited
+	private final TokenBucket[] caps = new TokenBucket[TrafficClass.values().length]; // null if unlimited
+	private final double[] weights = new double[TrafficClass.values().length];
+	private final double[] virtualTime = new double[TrafficClass.values().length]; // bytes / weight
+	private final int[] waiting = new int[TrafficClass.values().length];
+	private final int[] wanted = new int[TrafficClass.values().length]; // size of a waiting frame
+	private double systemTime; // start tag of the frame sent last
+	private final boolean enabled;
+
+	private TrafficShaper(double linkRate, double[] capRates, double[] weights, long burstMs) {
+		link = bucket(linkRate, burstMs);
+		boolean any = link != null;
+		for (int i = 0; i < caps.length; i++) {
+			caps[i] = bucket(capRates[i], burstMs);
+			any |= caps[i] != null;
+			this.weights[i] = weights[i] > 0 ? weights[i] : DEFAULT_WEIGHTS[i];
+		}
+		enabled = any;
+	}
+
+	static TrafficShaper fromConfig() {
+		double[] caps = new double[TrafficClass.values().length];
+		double[] weights = new double[caps.length];
+		for (TrafficClass c : TrafficClass.values()) {
+			String key = "p2pbrs.shaper." + c.name().toLowerCase(Locale.ROOT);
+			caps[c.ordinal()] = Config.getDouble(key + ".bytesPerSec", 0);
+			weights[c.ordinal()] = Config.getDouble(key + ".weight", DEFAULT_WEIGHTS[c.ordinal()]);
+		}
+		return new TrafficShaper(Config.getDouble("p2pbrs.shaper.bytesPerSec", 0), caps, weights,
+				Config.getLong("p2pbrs.shaper.burstMs", 50));
+	}
+
+	private static TokenBucket bucket(double rate, long burstMs) {
+		return rate > 0 ? new TokenBucket(rate, Math.max(1, rate * burstMs / 1000)) : null;
+	}
+
+	boolean enabled() {
+		return enabled;
+	}
+
+	/** Wait until bytes of this class may go out. */
+	void acquire(TrafficClass c, int bytes) throws InterruptedException {
+		if (!enabled || bytes <= 0)
+			return;
+		int i = c.ordinal();
+		synchronized (this) {
+			if (waiting[i]++ == 0)
+				virtualTime[i] = Math.max(virtualTime[i], systemTime); // no credit for time spent idle
+			wanted[i] = bytes;
+			try {
+				long wait;
+				while ((wait = nanosToWait(i, bytes)) > 0)
+					TimeUnit.NANOSECONDS.timedWait(this, Math.max(wait, MIN_WAIT_NANOS));
+				if (link != null)
+					link.tryAcquire(bytes);
+				if (caps[i] != null)
+					caps[i].tryAcquire(bytes);
+				systemTime = virtualTime[i];
+				virtualTime[i] += bytes / weights[i];
+			} finally {
+				waiting[i]--;
+				notifyAll(); // the next class in line may go now
+			}
+		}
+	}
+
+	// 0 once class i is within its cap, no other class that could send is further behind
+	// its share, and the uplink has the bytes
+	private long nanosToWait(int i, int bytes) {
+		long capWait = caps[i] == null ? 0 : caps[i].nanosUntil(bytes);
+		if (capWait > 0 || link == null)
+			return capWait;
+		for (int j = 0; j < waiting.length; j++) {
+			if (j != i && waiting[j] > 0 && virtualTime[j] < virtualTime[i]
+					&& (caps[j] == null || caps[j].nanosUntil(wanted[j]) == 0))
+				return Math.max(MIN_WAIT_NANOS, link.nanosUntil(bytes)); // woken when that class has sent
+		}
+		return link.nanosUntil(bytes);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("uplink ").append(rate(link));
+		for (TrafficClass c : TrafficClass.values()) {
+			sb.append(", ").append(c.name().toLowerCase(Locale.ROOT)).append(' ').append(rate(caps[c.ordinal()]))
+					.append(" weight ").append(weights[c.ordinal()]);
+		}
+		return sb.toString();
+	}
+
+	private static String rate(TokenBucket b) {
+		return b == null ? "unlimited" : String.format(Locale.ROOT, "%.1f MB/s", b.getRatePerSec() / 1048576);
+	}
+}
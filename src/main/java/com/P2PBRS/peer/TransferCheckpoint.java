@@ -0,0 +1,194 @@
+package com.P2PBRS.peer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.P2PBRS.common.Config;
+
+/**
+ * Progress of a backup or restore that may be interrupted, kept in .p2pbrs/checkpoints
+ * so that running the same command again only transfers what is missing.
+ *
+ * A checkpoint is bound to an identity string (size, mtime, chunk size and placement
+ * for a backup; checksum and chunk layout for a restore). If the identity no longer
+ * matches, the old progress is dropped. Records are appended as they happen, one long
+ * each: an acknowledged chunk id (backup) or the end offset of each chunk written and
+ * verified, in file order (restore). A record torn by a crash is ignored.
+ *
+ * Layout: "P2PK", format, kind, identity, then the records.
+ */
+public class TransferCheckpoint implements AutoCloseable {
+	private static final Path DIR = Paths.get(Config.getString("p2pbrs.checkpoint.dir", ".p2pbrs/checkpoints"));
+	private static final int MAGIC = 0x5032504B; // "P2PK"
+	private static final int FORMAT = 1;
+
+	public static final String BACKUP = "backup";
+	public static final String RESTORE = "restore";
+
+	private final Path path;
+	private final String kind;
+	private final String identity;
+	private final List<Long> records;
+	private final Set<Integer> chunkIds = new HashSet<>(); // backup records, for lookups
+	private final boolean interrupted;
+	private DataOutputStream out;
+
+	private TransferCheckpoint(Path path, String kind, String identity, List<Long> records, DataOutputStream out,
+			boolean interrupted) {
+		this.path = path;
+		this.kind = kind;
+		this.identity = identity;
+		this.records = records;
+		this.out = out;
+		this.interrupted = interrupted;
+		for (long r : records)
+			chunkIds.add((int) r);
+	}
+
+	private static Path path(String kind, String fileName) {
+		return DIR.resolve(fileName + "." + kind);
+	}
+
+	/**
+	 * The checkpoint of a transfer, with the progress of an earlier attempt if it had the
+	 * same identity, or a fresh one.
+	 */
+	public static TransferCheckpoint open(String kind, String fileName, String identity) throws IOException {
+		Path path = path(kind, fileName);
+		boolean interrupted = Files.exists(path);
+		List<Long> records = interrupted ? read(path, kind, identity) : null;
+		DataOutputStream out;
+		if (records != null) {
+			// Rewrite header and whole records, dropping a torn tail
+			out = create(path, kind, identity);
+			for (long r : records)
+				out.writeLong(r);
+			out.flush();
+		} else {
+			records = new ArrayList<>();
+			out = create(path, kind, identity);
+		}
+		return new TransferCheckpoint(path, kind, identity, records, out, interrupted);
+	}
+
+	/** Records kept from an earlier attempt, or null if there is none for this identity. */
+	private static List<Long> read(Path path, String kind, String identity) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT || !in.readUTF().equals(kind)
+					|| !in.readUTF().equals(identity))
+				return null;
+			List<Long> records = new ArrayList<>();
+			try {
+				while (true)
+					records.add(in.readLong());
+			} catch (EOFException e) {
+				return records;
+			}
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			System.err.println("Ignoring unreadable checkpoint " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static DataOutputStream create(Path path, String kind, String identity) throws IOException {
+		Files.createDirectories(DIR);
+		OutputStream file = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		DataOutputStream out = new DataOutputStream(file);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT);
+		out.writeUTF(kind);
+		out.writeUTF(identity);
+		out.flush();
+		return out;
+	}
+
+	/**
+	 * An earlier attempt at this transfer did not finish, whether or not its progress
+	 * could be kept.
+	 */
+	public boolean interrupted() {
+		return interrupted;
+	}
+
+	/** Records carried over from an earlier attempt plus those added since. */
+	public synchronized int size() {
+		return records.size();
+	}
+
+	public synchronized long last() {
+		return records.isEmpty() ? 0 : records.get(records.size() - 1);
+	}
+
+	/** Was this chunk id acknowledged by an earlier or the current attempt (backup)? */
+	public synchronized boolean has(int chunkId) {
+		return chunkIds.contains(chunkId);
+	}
+
+	/**
+	 * Append a record. Losing the checkpoint file only costs a re-send, so a write error
+	 * is reported once and the transfer carries on without it.
+	 */
+	public synchronized void record(long value) {
+		records.add(value);
+		chunkIds.add((int) value);
+		if (out == null)
+			return;
+		try {
+			out.writeLong(value);
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Checkpoint " + path + " no longer written: " + e.getMessage());
+			closeQuietly();
+		}
+	}
+
+	/** Drop all records, e.g. when the partial output they describe is gone. */
+	public synchronized void reset() throws IOException {
+		closeQuietly();
+		records.clear();
+		chunkIds.clear();
+		out = create(path, kind, identity);
+	}
+
+	/** The transfer completed: nothing left to resume. */
+	public static void discard(String kind, String fileName) {
+		Path path = path(kind, fileName);
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			System.err.println("Could not delete checkpoint " + path + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		closeQuietly();
+	}
+
+	private void closeQuietly() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// records already flushed
+		}
+		out = null;
+	}
+}
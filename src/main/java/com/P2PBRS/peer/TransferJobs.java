@@ -0,0 +1,258 @@
+package com.P2PBRS.peer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.P2PBRS.common.Config;
+
+/**
+ * Backups and restores as background jobs. A CLI command enqueues a job and returns at
+ * once; up to p2pbrs.jobs.concurrent jobs run at a time and the rest wait their turn.
+ *
+ * Memory stays bounded however many jobs run: each job keeps at most
+ * p2pbrs.jobs.chunksInFlight chunks read or fetched but not yet acked or written, and
+ * all jobs together at most p2pbrs.jobs.maxInFlightBytes of them ({@link #reserve}).
+ * Progress counts bytes as chunks are acked (backup) or written (restore), for the
+ * throughput and ETA shown by the jobs and status commands.
+ *
+ * Jobs on the same file (by its backup name) never overlap: they would share its
+ * checkpoint, manifest and restored copy, and the server keeps one plan per file.
+ *
+ * Code running a job finds it with {@link #current()}; cancelling a running job
+ * interrupts its thread, which ends it at the next wait with the checkpoint kept, so
+ * the same command resumes it.
+ */
+public final class TransferJobs {
+	public static final int CHUNKS_PER_JOB = Math.max(1, Config.getInt("p2pbrs.jobs.chunksInFlight", 64));
+	private static final int CONCURRENT = Math.max(1, Config.getInt("p2pbrs.jobs.concurrent", 4));
+	private static final int MAX_IN_FLIGHT = (int) Math.max(1,
+			Math.min(Integer.MAX_VALUE, Config.getLong("p2pbrs.jobs.maxInFlightBytes", 256L << 20)));
+
+	private static final Semaphore IN_FLIGHT = new Semaphore(MAX_IN_FLIGHT, true); // one permit per byte
+	private static final ExecutorService RUNNER = Executors.newFixedThreadPool(CONCURRENT, r -> {
+		Thread t = new Thread(r, "Transfer-Job");
+		t.setDaemon(true);
+		return t;
+	});
+	private static final Map<Integer, Job> JOBS = new ConcurrentSkipListMap<>();
+	private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+	private static final ThreadLocal<Job> CURRENT = new ThreadLocal<>();
+
+	private TransferJobs() {
+	}
+
+	/** What a job does; it reports failure by throwing or with {@link Job#fail}. */
+	public interface Task {
+		void run(Job job) throws Exception;
+	}
+
+	/**
+	 * Queue a job on a file (its backup name, e.g. "docs.pack"), or return null if a
+	 * job on that file is still queued or running.
+	 */
+	public static synchronized Job submit(String kind, String target, String file, Task task) {
+		if (active(file) != null)
+			return null;
+		Job job = new Job(NEXT_ID.getAndIncrement(), kind, target, file);
+		JOBS.put(job.id, job);
+		synchronized (job) {
+			job.future = RUNNER.submit(() -> job.run(task));
+		}
+		return job;
+	}
+
+	/** The queued or running job on a file, or null. */
+	public static Job active(String file) {
+		for (Job job : JOBS.values()) {
+			Job.State state = job.state;
+			if (job.file.equals(file) && (state == Job.State.QUEUED || state == Job.State.RUNNING))
+				return job;
+		}
+		return null;
+	}
+
+	public static Job get(int id) {
+		return JOBS.get(id);
+	}
+
+	public static List<Job> all() {
+		return new ArrayList<>(JOBS.values());
+	}
+
+	/** The job running on this thread, or null. */
+	public static Job current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Take bytes out of the global in-flight budget, waiting until they are free. A job
+	 * must not wait here while it holds budget that only it can give back (use
+	 * {@link #tryReserve} for read-ahead), or two jobs could wait on each other.
+	 */
+	public static void reserve(int bytes) throws InterruptedException {
+		IN_FLIGHT.acquire(permits(bytes));
+	}
+
+	public static boolean tryReserve(int bytes) {
+		return IN_FLIGHT.tryAcquire(permits(bytes));
+	}
+
+	public static void release(int bytes) {
+		IN_FLIGHT.release(permits(bytes));
+	}
+
+	// A chunk larger than the whole budget takes all of it
+	private static int permits(int bytes) {
+		return Math.max(0, Math.min(bytes, MAX_IN_FLIGHT));
+	}
+
+	public static final class Job {
+		public enum State {
+			QUEUED, RUNNING, DONE, FAILED, CANCELLED
+		}
+
+		public final int id;
+		public final String kind; // backup | restore
+		public final String target; // file or directory
+		public final String file; // name it is backed up under
+		private final AtomicLong doneBytes = new AtomicLong();
+		private final AtomicLong skippedBytes = new AtomicLong(); // done by an earlier attempt
+		private volatile long totalBytes = -1;
+		private volatile State state = State.QUEUED;
+		private volatile String failure;
+		private volatile long startNanos;
+		private volatile long endNanos;
+		private boolean cancelled; // guarded by this
+		private Thread thread; // while running, guarded by this
+		private Future<?> future;
+
+		Job(int id, String kind, String target, String file) {
+			this.id = id;
+			this.kind = kind;
+			this.target = target;
+			this.file = file;
+		}
+
+		private void run(Task task) {
+			synchronized (this) {
+				if (cancelled)
+					return;
+				thread = Thread.currentThread();
+				state = State.RUNNING;
+			}
+			startNanos = System.nanoTime();
+			CURRENT.set(this);
+			try {
+				task.run(this);
+			} catch (InterruptedException e) {
+				if (!isCancelled())
+					fail("interrupted");
+			} catch (Exception e) {
+				fail(String.valueOf(e.getMessage()));
+			} finally {
+				CURRENT.remove();
+				synchronized (this) {
+					thread = null;
+					Thread.interrupted(); // a cancel that came too late must not hit the next job
+					endNanos = System.nanoTime();
+					state = cancelled ? State.CANCELLED : failure != null ? State.FAILED : State.DONE;
+				}
+				System.out.println("Job " + id + " " + state.name().toLowerCase(Locale.ROOT) + ": " + kind + " "
+						+ target + (failure != null && !cancelled ? " (" + failure + ")" : ""));
+			}
+		}
+
+		/** Stop the job: a queued one never starts, a running one is interrupted. */
+		public synchronized boolean cancel() {
+			if (cancelled || state == State.DONE || state == State.FAILED || state == State.CANCELLED)
+				return false;
+			cancelled = true;
+			if (thread != null) {
+				thread.interrupt();
+			} else {
+				future.cancel(false);
+				state = State.CANCELLED;
+			}
+			return true;
+		}
+
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		/** Mark the job failed; it still runs to the end of its task. */
+		public void fail(String reason) {
+			if (failure == null)
+				failure = reason;
+		}
+
+		/** Bytes the job will move, once known. */
+		public void expect(long bytes) {
+			totalBytes = bytes;
+		}
+
+		public void progress(long bytes) {
+			doneBytes.addAndGet(bytes);
+		}
+
+		/** Bytes an earlier attempt already moved: done, but not part of the throughput. */
+		public void skip(long bytes) {
+			doneBytes.addAndGet(bytes);
+			skippedBytes.addAndGet(bytes);
+		}
+
+		public State state() {
+			return state;
+		}
+
+		public double bytesPerSec() {
+			long start = startNanos;
+			if (start == 0)
+				return 0;
+			long end = endNanos != 0 ? endNanos : System.nanoTime();
+			return end == start ? 0 : (doneBytes.get() - skippedBytes.get()) / ((end - start) / 1e9);
+		}
+
+		/** Seconds left at the current rate, -1 if unknown. */
+		public long etaSeconds() {
+			double rate = bytesPerSec();
+			long left = totalBytes - doneBytes.get();
+			if (state != State.RUNNING || totalBytes < 0 || rate <= 0)
+				return -1;
+			return (long) Math.ceil(Math.max(0, left) / rate);
+		}
+
+		/** One line for the jobs table. */
+		public String summary() {
+			long done = doneBytes.get();
+			long total = totalBytes;
+			String progress = total > 0 ? String.format(Locale.ROOT, "%5.1f%%", Math.min(100.0, 100.0 * done / total))
+					: "    -";
+			long eta = etaSeconds();
+			return String.format(Locale.ROOT, "%4d  %-7s %-9s %s %8.1f MB/s  ETA %6s  %s", id, kind,
+					state.name().toLowerCase(Locale.ROOT), progress, bytesPerSec() / 1048576,
+					eta < 0 ? "-" : eta + "s", target);
+		}
+
+		/** Several lines for the status command. */
+		public String details() {
+			long elapsed = startNanos == 0 ? 0 : ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1_000_000;
+			long eta = etaSeconds();
+			return "Job " + id + ": " + kind + " " + target + "\n"
+					+ "  state:    " + state.name().toLowerCase(Locale.ROOT) + (failure != null ? " (" + failure + ")" : "") + "\n"
+					+ "  progress: " + doneBytes.get() + (totalBytes >= 0 ? " of " + totalBytes : "") + " bytes"
+					+ (skippedBytes.get() > 0 ? ", " + skippedBytes.get() + " from an earlier attempt" : "") + "\n"
+					+ String.format(Locale.ROOT, "  rate:     %.1f MB/s over %.1f s%n", bytesPerSec() / 1048576, elapsed / 1000.0)
+					+ "  eta:      " + (eta < 0 ? "-" : eta + " s");
+		}
+	}
+}
@@ -1,6 +1,10 @@
 package com.P2PBRS.peer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
@@ -9,11 +13,15 @@ import java.time.format.DateTimeFormatter;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
+import com.P2PBRS.network.NetworkUtils;
+
 public class UDPClient implements Closeable {
 	private final String serverHost;
 	private final int serverPort;
@@ -38,6 +46,13 @@ public class UDPClient implements Closeable {
 	// Pending requests keyed by RQ#
 	private final ConcurrentMap<Integer, PendingRequest> pending = new ConcurrentHashMap<>();
 
+	// Last time anything arrived from the server (one-way heartbeats get no reply, so
+	// silence is only meaningful across all control traffic)
+	private volatile long lastServerContactNanos = System.nanoTime();
+
+	// Receives HEARTBEAT* replies that no pending request claimed
+	private volatile Consumer<String> heartbeatListener;
+
 	// Handler for unsolicited messages (message, sender)
 	private volatile BiConsumer<String, SocketAddress> unsolicitedHandler = (msg, from) -> System.out
 			.println("[unsolicited] " + from + " -> " + msg);
@@ -75,6 +90,15 @@ public class UDPClient implements Closeable {
 				: handler;
 	}
 
+	public void setHeartbeatListener(Consumer<String> listener) {
+		this.heartbeatListener = listener;
+	}
+
+	/** Milliseconds since the last packet from the server. */
+	public long millisSinceServerContact() {
+		return (System.nanoTime() - lastServerContactNanos) / 1_000_000;
+	}
+
 	public String sendRegister(int rqNumber, PeerNode node)
 			throws IOException, TimeoutException, ExecutionException, InterruptedException {
 		// REGISTER RQ# Name Role IP_Address UDP_Port# TCP_Port# Storage_Capacity
@@ -96,10 +120,10 @@ public class UDPClient implements Closeable {
 				String.valueOf(fileSize), checksumHex, String.valueOf(chunkSize));
 	}
 
-	public String sendBackupDone(int rqNumber, String fileName)
+	public String sendBackupDone(int rqNumber, String fileName, String checksumHex)
 			throws IOException, TimeoutException, ExecutionException, InterruptedException {
-		// BACKUP_DONE RQ# File_Name
-		return sendCommand(rqNumber, timeoutMs, defaultRqMatcher(rqNumber), "BACKUP_DONE", fileName);
+		// BACKUP_DONE RQ# File_Name Checksum
+		return sendCommand(rqNumber, timeoutMs, defaultRqMatcher(rqNumber), "BACKUP_DONE", fileName, checksumHex);
 	}
 
 	public String sendRestoreReq(int rqNumber, String fileName)
@@ -115,6 +139,27 @@ public class UDPClient implements Closeable {
 				String.valueOf(node.getNumberChunksStored()), timestamp);
 	}
 
+	/** Fire-and-forget heartbeat: no pending slot, the server only answers on state change. */
+	public void sendHeartbeatOneWay(int rqNumber, PeerNode node, long membershipEpoch, long intervalMs,
+			String inventoryRoot) throws IOException {
+		// HEARTBEAT_ONEWAY RQ# Name Number_Chunks Membership_Epoch Interval_Ms Inventory_Root
+		send(buildPayload(rqNumber, "HEARTBEAT_ONEWAY", node.getName(), String.valueOf(node.getNumberChunksStored()),
+				String.valueOf(membershipEpoch), String.valueOf(intervalMs), inventoryRoot));
+	}
+
+	public String sendInventorySync(int rqNumber, String name, String group, String hashes)
+			throws IOException, TimeoutException, ExecutionException, InterruptedException {
+		// INVENTORY_SYNC RQ# Name Group Hashes
+		return sendCommand(rqNumber, timeoutMs, defaultRqMatcher(rqNumber), "INVENTORY_SYNC", name, group, hashes);
+	}
+
+	public String sendInventoryLeaf(int rqNumber, String name, int leaf, String part, String entries)
+			throws IOException, TimeoutException, ExecutionException, InterruptedException {
+		// INVENTORY_LEAF RQ# Name Leaf Part/Total Entries
+		return sendCommand(rqNumber, timeoutMs, defaultRqMatcher(rqNumber), "INVENTORY_LEAF", name,
+				String.valueOf(leaf), part, entries);
+	}
+
 	// Default matcher: reply must carry the same RQ#
 	private Predicate<String> defaultRqMatcher(int rqNumber) {
 		return msg -> extractRq(msg).map(rq -> rq == rqNumber).orElse(false);
@@ -137,7 +182,11 @@ public class UDPClient implements Closeable {
 			send(payload);
 
 			// Wait for the matching response (receiver thread will complete it)
-			return req.future.get(perCallTimeoutMs, TimeUnit.MILLISECONDS);
+			String reply = req.future.get(perCallTimeoutMs, TimeUnit.MILLISECONDS);
+			if (reply.startsWith("CONTROL_STREAM")) {
+				reply = fetchControlStream(reply, perCallTimeoutMs);
+			}
+			return reply;
 
 		} catch (TimeoutException | InterruptedException | ExecutionException e) {
 			// On failure, remove pending and rethrow
@@ -146,6 +195,81 @@ public class UDPClient implements Closeable {
 		}
 	}
 
+	// CONTROL_STREAM RQ# Token Length: the real reply is waiting on the server's TCP
+	// control channel (same port number as the UDP server)
+	private String fetchControlStream(String notice, int perCallTimeoutMs) throws IOException {
+		String[] c = notice.split("\\s+");
+		if (c.length < 4)
+			throw new IOException("Malformed CONTROL_STREAM: " + notice);
+		String token = c[2];
+		long length = Long.parseLong(c[3]);
+
+		try (Socket tcp = new Socket()) {
+			tcp.connect(new InetSocketAddress(serverHost, serverPort), perCallTimeoutMs);
+			tcp.setSoTimeout(Math.max(perCallTimeoutMs, 5000));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tcp.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(tcp.getInputStream()));
+
+			NetworkUtils.writeLine(out, "FETCH " + token);
+			String reply = NetworkUtils.readTextStream(in);
+			System.out.println("Fetched " + length + " byte reply over TCP control channel");
+			return reply;
+		}
+	}
+
+	/**
+	 * Upload a full inventory over the TCP control channel:
+	 * "INVENTORY_REPORT Name UDP_Port", frames of whole lines, end marker; one status line back.
+	 */
+	public String sendInventoryReport(String name, int udpPort, List<String> lines) throws IOException {
+		try (Socket tcp = new Socket()) {
+			tcp.connect(new InetSocketAddress(serverHost, serverPort), timeoutMs);
+			tcp.setSoTimeout(Math.max(timeoutMs, 30000));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tcp.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(tcp.getInputStream()));
+
+			NetworkUtils.writeLine(out, "INVENTORY_REPORT " + name + " " + udpPort);
+			writeLineFrames(out, lines);
+			return NetworkUtils.readLine(in);
+		}
+	}
+
+	/**
+	 * Send a content-defined backup manifest ("sha256 length" per chunk, in file order)
+	 * over the server's TCP control channel; returns the dedup plan text. The hashes
+	 * are keyed when encrypting.
+	 */
+	public String sendBackupManifest(int rqNumber, String name, int udpPort, String fileName, long fileSize, int avgChunkSize,
+			List<String> lines) throws IOException {
+		try (Socket tcp = new Socket()) {
+			tcp.connect(new InetSocketAddress(serverHost, serverPort), timeoutMs);
+			tcp.setSoTimeout(Math.max(timeoutMs, 30000));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tcp.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(tcp.getInputStream()));
+
+			// BACKUP_MANIFEST RQ# Name UDP_Port File_Name File_Size Avg_Chunk_Size
+			NetworkUtils.writeLine(out, "BACKUP_MANIFEST " + rqNumber + " " + name + " " + udpPort + " " + fileName + " "
+					+ fileSize + " " + avgChunkSize);
+			writeLineFrames(out, lines);
+			return NetworkUtils.readTextStream(in);
+		}
+	}
+
+	// Frames of whole lines, then the end marker
+	private static void writeLineFrames(DataOutputStream out, List<String> lines) throws IOException {
+		StringBuilder frame = new StringBuilder();
+		for (String line : lines) {
+			if (frame.length() + line.length() + 1 > NetworkUtils.STREAM_FRAME_SIZE && frame.length() > 0) {
+				NetworkUtils.writeFrame(out, frame.toString().getBytes(StandardCharsets.UTF_8));
+				frame.setLength(0);
+			}
+			frame.append(line).append('\n');
+		}
+		if (frame.length() > 0)
+			NetworkUtils.writeFrame(out, frame.toString().getBytes(StandardCharsets.UTF_8));
+		NetworkUtils.writeEnd(out);
+	}
+
 	private String buildPayload(int rqNumber, String command, String... args) {
 		StringBuilder sb = new StringBuilder(64);
 		sb.append(command).append(' ').append(rqNumber);
@@ -163,13 +287,16 @@ public class UDPClient implements Closeable {
 	}
 
 	private void receiveLoop() {
-		byte[] buf = new byte[8192];
+		byte[] buf = new byte[NetworkUtils.MAX_UDP_RECEIVE];
 		DatagramPacket pkt = new DatagramPacket(buf, buf.length);
 
 		while (running) {
 			try {
 				socket.receive(pkt);
 				String msg = new String(pkt.getData(), 0, pkt.getLength(), StandardCharsets.UTF_8);
+				if (pkt.getPort() == serverPort) {
+					lastServerContactNanos = System.nanoTime();
+				}
 
 				// Extract RQ# if present: <CMD> <RQ#> ...
 				Optional<Integer> rqOpt = extractRq(msg);
@@ -204,7 +331,14 @@ public class UDPClient implements Closeable {
 					}
 				}
 
-				// 3) If nobody claimed it, treat as unsolicited/control
+				// 3) Replies to one-way heartbeats
+				Consumer<String> hb = this.heartbeatListener;
+				if (!delivered && hb != null && msg.startsWith("HEARTBEAT")) {
+					hb.accept(msg);
+					delivered = true;
+				}
+
+				// 4) If nobody claimed it, treat as unsolicited/control
 				if (!delivered) {
 					BiConsumer<String, SocketAddress> cb = this.unsolicitedHandler;
 					if (cb != null)
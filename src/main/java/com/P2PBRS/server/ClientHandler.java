@@ -1,11 +1,13 @@
 package com.P2PBRS.server;
 
+import com.P2PBRS.common.ChunkRanges;
+import com.P2PBRS.common.MerkleInventory;
+import com.P2PBRS.network.NetworkUtils;
 import com.P2PBRS.peer.PeerNode;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
@@ -28,7 +30,9 @@ public class ClientHandler extends Thread {
 					+ packet.getPort() + " --> " + receivedData);
 
 			String responseData = processMessage(receivedData);
-			sendResponse(responseData);
+			if (responseData != null) { // one-way messages usually need no reply
+				sendResponse(responseData);
+			}
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -44,6 +48,12 @@ public class ClientHandler extends Thread {
 			return processBackupReq(message);
 		} else if (message.startsWith("BACKUP_DONE")) {
 			return processBackupDone(message);
+		} else if (message.startsWith("INVENTORY_SYNC")) {
+			return processInventorySync(message);
+		} else if (message.startsWith("INVENTORY_LEAF")) {
+			return processInventoryLeaf(message);
+		} else if (message.startsWith("HEARTBEAT_ONEWAY")) {
+			return processOneWayHeartbeat(message);
 		} else if (message.startsWith("HEARTBEAT")) {
 			return processHeartbeat(message);
 		} else if (message.startsWith("RESTORE_REQ")) {
@@ -71,8 +81,11 @@ public class ClientHandler extends Thread {
 			return processReplicateReq(message);
 		} else if (message.startsWith("REPLICATE_DONE")) {
     		return processReplicateDone(message);
-		} else if (message.startsWith("REPLICATE_DONE")) {
-    		return processReplicateDone(message);
+		} else if (message.startsWith("REPAIR_STATUS")) {
+			// REPAIR_STATUS RQ#
+			String[] c = message.split("\\s+");
+			String rq = c.length > 1 ? c[1] : "0";
+			return "REPAIR_STATUS " + rq + " " + RepairScheduler.getInstance().status();
 		}
 		return "ERROR: Unknown command";
 	}
@@ -80,6 +93,16 @@ public class ClientHandler extends Thread {
 	private void sendResponse(String response) {
 		try {
 			byte[] responseData = response.getBytes();
+			if (responseData.length > NetworkUtils.MAX_DATAGRAM_PAYLOAD) {
+				// Too large for one datagram: park it on the TCP control channel
+				String token = ControlStreamServer.getInstance().offer(response);
+				String[] c = response.split("\\s+", 3);
+				String rq = c.length > 1 ? c[1] : "0";
+				System.out.println(Thread.currentThread().getName() + " | Response of " + responseData.length
+						+ " bytes moved to control stream " + token);
+				response = String.format("CONTROL_STREAM %s %s %d", rq, token, responseData.length);
+				responseData = response.getBytes();
+			}
 			DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, packet.getAddress(),
 					packet.getPort());
 			socket.send(responsePacket);
@@ -114,6 +137,9 @@ public class ClientHandler extends Thread {
 		if (!result.ok)
 			return result.message + " " + rqNumber + " " + name;
 
+		// Start the failure detector clock for this peer
+		HeartbeatHandler.onRegister(name);
+
 		// Send peer list to the newly registered peer
 		sendPeerListToPeer(peer);
 
@@ -137,6 +163,7 @@ public class ClientHandler extends Thread {
 		RegistryManager.Result result = registry.deregisterPeer(name);
 		if (!result.ok)
 			return result.message + " " + rqNumber;
+		HeartbeatHandler.onDeregister(name);
 
 		// Broadcast peer removal to all remaining peers
 		if (peerToRemove.isPresent()) {
@@ -147,7 +174,8 @@ public class ClientHandler extends Thread {
 	}
 
 	private String processBackupReq(String message) {
-		// Format: BACKUP_REQ RQ# File_Name File_Size Checksum [Chunk_Size]
+		// Format: BACKUP_REQ RQ# File_Name File_Size Checksum|- [Chunk_Size]
+		// A streaming owner sends "-" and confirms the checksum in BACKUP_DONE
 		String[] c = message.split("\\s+");
 		if (c.length < 5)
 			return "ERROR: Malformed BACKUP_REQ";
@@ -173,15 +201,57 @@ public class ClientHandler extends Thread {
 		}
 		PeerNode owner = maybeOwner.get();
 
-		// Select candidate storage peers (with debugging)
-		List<PeerNode> allPeers = registrySnapshot();
+		int numChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+		List<PeerNode> selected = selectStoragePeers(registrySnapshot(), owner.getName(), Math.max(1, numChunks));
+		if (selected.isEmpty())
+			return "BACKUP-DENIED " + rq + " No_Available_Storage";
+
+		// Round-robin placement: chunkId -> storage peer
+		Map<Integer, PeerNode> placement = new java.util.HashMap<>();
+		Map<String, List<Integer>> chunksByPeer = new LinkedHashMap<>();
+		for (PeerNode sp : selected)
+			chunksByPeer.put(sp.getName(), new ArrayList<>());
+		for (int i = 0; i < numChunks; i++) {
+			PeerNode sp = selected.get(i % selected.size());
+			placement.put(i, sp);
+			chunksByPeer.get(sp.getName()).add(i);
+		}
+
+		// Save plan
+		BackupManager.Plan plan = new BackupManager.Plan(owner.getName(), fileName, checksum, chunkSize, fileSize, placement);
+		BackupManager.getInstance().putPlan(plan);
+		BackupManager.getInstance().dropDedupIndex(owner.getName(), fileName); // ids 0..n-1 now hold this version
+
+		// Register chunk locations in the registry (single persist for the whole plan)
+		registry.registerChunkStorage(fileName, chunksByPeer);
+
+		// Notify each selected storage peer with ONLY their assigned chunks, encoded as ranges
+		for (PeerNode sp : selected) {
+			List<Integer> chunksForThisPeer = chunksByPeer.get(sp.getName());
+			sendStoreReqBatch(rq, fileName, chunkSize, owner.getName(), chunksForThisPeer, sp);
+		}
+
+		String peerList = selected.stream()
+				.map(p -> String.format("%s:%s:%d", p.getName(), p.getIpAddress(), p.getTcpPort()))
+				.collect(Collectors.joining(","));
+
+		System.out.println("=== DEBUG: Final peer connection details ===");
+		for (PeerNode sp : selected) {
+			registry.debugPrintPeer(sp.getName());
+		}
+
+		return String.format("BACKUP_PLAN %s %s [%s] %d", rq, fileName, peerList, chunkSize);
+	}
+
+	// Storage peers for a new backup: the owner excluded, largest capacity first, at most one per chunk
+	static List<PeerNode> selectStoragePeers(List<PeerNode> allPeers, String ownerName, int numChunks) {
 		System.out.println("=== DEBUG: All registered peers ===");
 		for (PeerNode p : allPeers) {
 			System.out.println("  - " + p.getName() + " (role: " + p.getRole() + ") at " + p.getIpAddress() + ":"
 					+ p.getUdpPort() + " UDP, " + p.getTcpPort() + " TCP, capacity: " + p.getStorageCapacity());
 		}
 
-		List<PeerNode> candidates = allPeers.stream().filter(p -> !p.getName().equals(owner.getName()))
+		List<PeerNode> candidates = allPeers.stream().filter(p -> !p.getName().equals(ownerName))
 				.filter(p -> "STORAGE".equals(p.getRole()) || "BOTH".equals(p.getRole()))
 				.filter(p -> p.getStorageCapacity() > 0) // Only peers with available capacity
 				.collect(Collectors.toList());
@@ -192,11 +262,7 @@ public class ClientHandler extends Thread {
 		}
 
 		if (candidates.isEmpty())
-			return "BACKUP-DENIED " + rq + " No_Available_Storage";
-
-		int numChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
-		if (candidates.size() < numChunks)
-			return "BACKUP-DENIED " + rq + " Not_Enough_Peers";
+			return candidates;
 
 		int fanout = Math.min(numChunks, candidates.size());
 		// Sort by available capacity (descending) and take the top ones
@@ -208,54 +274,34 @@ public class ClientHandler extends Thread {
 		for (PeerNode p : selected) {
 			System.out.println("  - SELECTED: " + p.getName() + " for backup");
 		}
+		return selected;
+	}
 
-		// Round-robin placement: chunkId -> storage peer
-		Map<Integer, PeerNode> placement = new java.util.HashMap<>();
-		for (int i = 0; i < numChunks; i++)
-			placement.put(i, selected.get(i % selected.size()));
-
-		// Save plan
-		BackupManager.Plan plan = new BackupManager.Plan(owner.getName(), fileName, checksum, chunkSize, fileSize, placement);
-		BackupManager.getInstance().putPlan(plan);
-
-		// Register chunk locations in the registry
-		for (Map.Entry<Integer, PeerNode> entry : placement.entrySet()) {
-			registry.registerChunkStorage(fileName, entry.getKey(), entry.getValue().getName());
-		}
-
-		// Notify each selected storage peer with ONLY their assigned chunks
-		for (PeerNode sp : selected) {
-			String task = String.format("STORAGE_TASK %s %s %d %s", rq, fileName, chunkSize, owner.getName());
-			sendUdp(task, sp.getIpAddress(), sp.getUdpPort());
-
-			// Find chunks assigned to THIS specific storage peer
-			List<Integer> chunksForThisPeer = placement.entrySet().stream()
-					.filter(e -> e.getValue().getName().equals(sp.getName())).map(Map.Entry::getKey)
-					.collect(Collectors.toList());
-
-			System.out.println("Assigning chunks " + chunksForThisPeer + " to " + sp.getName());
+	private void sendStoreReqBatch(String rq, String fileName, int chunkSize, String ownerName, List<Integer> chunkIds,
+			PeerNode sp) {
+		sendStoreReqBatch(socket, rq, fileName, chunkSize, ownerName, chunkIds, sp);
+	}
 
-			// Send STORE_REQ for each chunk assigned to this peer
-			for (int chunkId : chunksForThisPeer) {
-				String storeReq = String.format("STORE_REQ %s %s %d %s", rq, fileName, chunkId, owner.getName());
-				sendUdp(storeReq, sp.getIpAddress(), sp.getUdpPort());
-			}
-		}
+	static void sendStoreReqBatch(DatagramSocket socket, String rq, String fileName, int chunkSize, String ownerName,
+			List<Integer> chunkIds, PeerNode sp) {
+		// STORE_REQ_BATCH RQ# File_Name Chunk_Size Owner_Peer Part/Total Chunk_Ranges
+		// Replaces one STORAGE_TASK plus one STORE_REQ per chunk; only split when the ranges
+		// do not fit in a single datagram.
+		String prefix = String.format("STORE_REQ_BATCH %s %s %d %s", rq, fileName, chunkSize, ownerName);
+		int budget = Math.max(64, NetworkUtils.MAX_DATAGRAM_PAYLOAD - prefix.length() - 16);
+		List<String> parts = ChunkRanges.split(ChunkRanges.encodeTokens(chunkIds), budget);
 
-		String peerList = selected.stream()
-				.map(p -> String.format("%s:%s:%d", p.getName(), p.getIpAddress(), p.getTcpPort()))
-				.collect(Collectors.joining(","));
+		System.out.println("Assigning " + chunkIds.size() + " chunks to " + sp.getName() + " in " + parts.size()
+				+ " STORE_REQ_BATCH datagram(s)");
 
-		System.out.println("=== DEBUG: Final peer connection details ===");
-		for (PeerNode sp : selected) {
-			registry.debugPrintPeer(sp.getName());
+		for (int i = 0; i < parts.size(); i++) {
+			String batch = prefix + " " + (i + 1) + "/" + parts.size() + " " + parts.get(i);
+			sendUdp(socket, batch, sp.getIpAddress(), sp.getUdpPort());
 		}
-
-		return String.format("BACKUP_PLAN %s %s [%s] %d", rq, fileName, peerList, chunkSize);
 	}
 
 	private String processBackupDone(String message) {
-		// BACKUP_DONE RQ# File_Name
+		// BACKUP_DONE RQ# File_Name [Checksum]
 		String[] c = message.split("\\s+");
 		if (c.length < 3)
 			return "ERROR: Malformed BACKUP_DONE";
@@ -273,6 +319,15 @@ public class ClientHandler extends Thread {
 			return "ERROR: No plan found for BACKUP_DONE";
 		}
 
+		if (c.length >= 4) {
+			String checksum = c[3];
+			if ("-".equals(plan.checksumHex)) {
+				plan.checksumHex = checksum;
+			} else if (!plan.checksumHex.equalsIgnoreCase(checksum)) {
+				return "ERROR: Checksum mismatch for BACKUP_DONE (plan " + plan.checksumHex + ", done " + checksum + ")";
+			}
+		}
+
 		BackupManager.getInstance().markDone(ownerName, fileName);
 		return "BACKUP_DONE " + rq + " " + fileName;
 	}
@@ -292,23 +347,154 @@ public class ClientHandler extends Thread {
 			return "ERROR: Invalid numeric field in HEARTBEAT";
 		}
 
-		String timestamp = c[4];
-
-		// Check if the name is inside the list of names
-		Optional<PeerNode> maybePeer = registry.getPeer(name);
-		if (maybePeer.isEmpty()) {
+		// Lock-free: record last-seen and chunk count in the liveness table; the
+		// failure detector picks them up on its next pass
+		LivenessTable liveness = registry.liveness();
+		int id = liveness.idOf(name);
+		if (id < 0 || !liveness.heartbeat(id, name, numberChunks, System.nanoTime())) {
 			return "HEARTBEAT " + rq + " ERROR Client not found";
 		} else {
-			// Update the number of chunks and timestamps of that node
-			PeerNode peer = maybePeer.get();
-			peer.setNumberChunksStored(numberChunks);
-			peer.setLastHeartbeatTime(timestamp);
-			peer.setLastTimestamp(Instant.now());
-
 			return "HEARTBEAT " + rq + " of node " + name + " OK";
 		}
 	}
 
+	private String processOneWayHeartbeat(String message) {
+		// HEARTBEAT_ONEWAY RQ# Name Number_Chunks Membership_Epoch Interval_Ms [Inventory_Root]
+		String[] c = message.split("\\s+");
+		if (c.length < 6) {
+			return "ERROR: Malformed HEARTBEAT_ONEWAY";
+		}
+		String rq = c[1];
+		String name = c[2];
+		int numberChunks;
+		long peerEpoch, peerIntervalMs;
+		try {
+			numberChunks = Integer.parseInt(c[3]);
+			peerEpoch = Long.parseLong(c[4]);
+			peerIntervalMs = Long.parseLong(c[5]);
+		} catch (NumberFormatException e) {
+			return "ERROR: Invalid numeric field in HEARTBEAT_ONEWAY";
+		}
+
+		LivenessTable liveness = registry.liveness();
+		int id = liveness.idOf(name);
+		if (id < 0 || !liveness.heartbeat(id, name, numberChunks, System.nanoTime())) {
+			return "HEARTBEAT " + rq + " ERROR Client not found";
+		}
+
+		// Reply only when the peer is behind: membership changed or heartbeat config differs
+		long epoch = registry.membershipEpoch();
+		long intervalMs = HeartbeatHandler.expectedIntervalMs();
+		if (peerEpoch == epoch && peerIntervalMs == intervalMs) {
+			// Storage peers also send their inventory root; ask for a walk if our view differs
+			if (c.length > 6 && !"-".equals(c[6])) {
+				long serverRoot = registry.inventoryRoot(name);
+				if (MerkleInventory.parseHex(c[6]) != serverRoot) {
+					return "HEARTBEAT_INVENTORY " + rq + " " + MerkleInventory.hex(serverRoot);
+				}
+			}
+			return null;
+		}
+		if (peerEpoch != epoch) {
+			// Re-send the membership in case PEER_INFO broadcasts were lost
+			registry.getPeer(name).ifPresent(this::sendPeerListToPeer);
+		}
+		return String.format("HEARTBEAT_SYNC %s %d %d", rq, epoch, intervalMs);
+	}
+
+	// Parts of INVENTORY_LEAF messages per "peer:leaf" until the last one arrives
+	private static final Map<String, List<MerkleInventory.Entry>> pendingLeaves = new ConcurrentHashMap<>();
+
+	private String processInventorySync(String message) {
+		// INVENTORY_SYNC RQ# Name Group Hashes
+		// Group "-" compares the 16 group hashes, a number compares that group's 16 leaves
+		String[] c = message.split("\\s+");
+		if (c.length < 5) {
+			return "ERROR: Malformed INVENTORY_SYNC";
+		}
+		String rq = c[1];
+		String name = c[2];
+		if (registry.getPeer(name).isEmpty()) {
+			return "INVENTORY_DIFF " + rq + " ERROR Client not found";
+		}
+
+		long[] theirs;
+		long[] ours;
+		int base;
+		try {
+			theirs = MerkleInventory.decodeHashes(c[4]);
+			if ("-".equals(c[3])) {
+				ours = registry.inventoryGroupHashes(name);
+				base = 0;
+			} else {
+				int group = Integer.parseInt(c[3]);
+				if (group < 0 || group >= MerkleInventory.FANOUT) {
+					return "ERROR: Invalid group in INVENTORY_SYNC";
+				}
+				ours = registry.inventoryLeafHashes(name, group);
+				base = group * MerkleInventory.FANOUT; // reply with absolute leaf indices
+			}
+		} catch (IllegalArgumentException e) {
+			return "ERROR: " + e.getMessage();
+		}
+
+		List<Integer> differing = new ArrayList<>();
+		for (int i : MerkleInventory.diff(ours, theirs)) {
+			differing.add(base + i);
+		}
+		return "INVENTORY_DIFF " + rq + " " + (differing.isEmpty() ? "none" : ChunkRanges.encode(differing));
+	}
+
+	private String processInventoryLeaf(String message) {
+		// INVENTORY_LEAF RQ# Name Leaf Part/Total [file:chunk:crc ...]
+		String[] c = message.split("\\s+");
+		if (c.length < 5) {
+			return "ERROR: Malformed INVENTORY_LEAF";
+		}
+		String rq = c[1];
+		String name = c[2];
+		int leaf, part, total;
+		try {
+			leaf = Integer.parseInt(c[3]);
+			String[] pt = c[4].split("/");
+			part = Integer.parseInt(pt[0]);
+			total = Integer.parseInt(pt[1]);
+		} catch (RuntimeException e) {
+			return "ERROR: Invalid numeric field in INVENTORY_LEAF";
+		}
+		if (leaf < 0 || leaf >= MerkleInventory.LEAVES || registry.getPeer(name).isEmpty()) {
+			return "INVENTORY_LEAF " + rq + " ERROR";
+		}
+
+		String key = name + ":" + leaf;
+		if (part == 1) {
+			pendingLeaves.put(key, new ArrayList<>());
+		}
+		List<MerkleInventory.Entry> entries = pendingLeaves.get(key);
+		if (entries == null) {
+			return "INVENTORY_LEAF " + rq + " ERROR Missing earlier parts";
+		}
+		try {
+			for (int i = 5; i < c.length; i++) {
+				entries.add(MerkleInventory.Entry.parse(c[i]));
+			}
+		} catch (IllegalArgumentException e) {
+			pendingLeaves.remove(key);
+			return "INVENTORY_LEAF " + rq + " ERROR " + e.getMessage();
+		}
+		if (part < total) {
+			return "INVENTORY_LEAF " + rq + " OK " + part + "/" + total;
+		}
+
+		pendingLeaves.remove(key);
+		int[] changes = registry.applyInventoryLeaf(name, leaf, entries);
+		if (changes[0] > 0 || changes[1] > 0) {
+			System.out.println("Inventory of " + name + " leaf " + leaf + ": +" + changes[0] + " -" + changes[1]
+					+ " chunk locations");
+		}
+		return "INVENTORY_LEAF " + rq + " OK " + changes[0] + " " + changes[1];
+	}
+
 	private String processRestoreReq(String message) {
 		// RESTORE_REQ RQ# File_Name
 		String[] c = message.split("\\s+");
@@ -352,7 +538,23 @@ public class ClientHandler extends Thread {
 		}
 
 		String peerString = String.join(",", peersList);
-		return String.format("RESTORE_PLAN %s %s [%s] %d %d %s", rq, fileName, peerString, plan.chunkSize, plan.totalChunks, plan.checksumHex);	
+
+		// Per-chunk placement (chunks may have moved after replication): Peer:ranges;Peer:ranges
+		Map<String, List<Integer>> chunksByPeer = new TreeMap<>();
+		for (int chunkId : plan.chunkIds()) {
+			PeerNode p = placement.get(chunkId);
+			if (p != null)
+				chunksByPeer.computeIfAbsent(p.getName(), k -> new ArrayList<>()).add(chunkId);
+		}
+		String placementString = chunksByPeer.entrySet().stream()
+				.map(e -> e.getKey() + ":" + ChunkRanges.encode(e.getValue()))
+				.collect(Collectors.joining(";"));
+
+		// Content-defined plans also list the chunk ids in file order
+		String order = plan.sequence == null ? "" : " order=" + ChunkRanges.encode(plan.sequence);
+
+		return String.format("RESTORE_PLAN %s %s [%s] %d %d %s placement=%s%s", rq, fileName, peerString, plan.chunkSize,
+				plan.totalChunks, plan.checksumHex, placementString, order);
 	}
 
 	private Optional<PeerNode> findPeerByEndpoint(InetAddress addr, int udpPort) {
@@ -360,6 +562,10 @@ public class ClientHandler extends Thread {
 	}
 
 	private void sendUdp(String msg, String ip, int port) {
+		sendUdp(socket, msg, ip, port);
+	}
+
+	static void sendUdp(DatagramSocket socket, String msg, String ip, int port) {
 		try {
 			byte[] data = msg.getBytes();
 			DatagramPacket dp = new DatagramPacket(data, data.length, InetAddress.getByName(ip), port);
@@ -380,23 +586,73 @@ public class ClientHandler extends Thread {
 		static class Plan {
 			final String owner;
 			final String fileName;
-			final String checksumHex;
+			volatile String checksumHex; // "-" until BACKUP_DONE confirms it
 			final int chunkSize;
 			final long fileSize;
 			final int totalChunks;
 			final Map<Integer, PeerNode> placement; // chunkId -> storage peer
+			final List<Integer> sequence; // chunk ids in file order (content-defined chunking); null means 0..totalChunks-1
 			volatile boolean done;
 
 			Plan(String owner, String fileName, String checksumHex, int chunkSize, long fileSize, Map<Integer, PeerNode> placement) {
+				this(owner, fileName, checksumHex, chunkSize, fileSize, placement, null);
+			}
+
+			Plan(String owner, String fileName, String checksumHex, int chunkSize, long fileSize,
+					Map<Integer, PeerNode> placement, List<Integer> sequence) {
 				this.owner = owner;
 				this.fileName = fileName;
 				this.checksumHex = checksumHex;
 				this.chunkSize = chunkSize;
 				this.fileSize = fileSize;
-				this.totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+				this.totalChunks = sequence != null ? sequence.size() : (int) ((fileSize + chunkSize - 1) / chunkSize);
 				this.placement = new ConcurrentHashMap<>(placement);
+				this.sequence = sequence;
 				this.done = false;
 			}
+
+			// Distinct chunk ids referenced by this plan
+			List<Integer> chunkIds() {
+				List<Integer> ids = new ArrayList<>();
+				if (sequence == null) {
+					for (int i = 0; i < totalChunks; i++)
+						ids.add(i);
+				} else {
+					ids.addAll(new TreeSet<>(sequence));
+				}
+				return ids;
+			}
+		}
+
+		/**
+		 * Per-file index of content-defined chunks: strong hash -> chunk id, across all
+		 * backed-up versions of the file. Ids are allocated monotonically, so a chunk
+		 * of an older version is never overwritten by a new one.
+		 */
+		static class DedupIndex {
+			final Map<String, Integer> chunkByHash = new HashMap<>();
+			int nextChunkId;
+		}
+
+		private final Map<String, DedupIndex> dedupIndexes = new ConcurrentHashMap<>();
+
+		DedupIndex dedupIndex(String owner, String file) {
+			return dedupIndexes.computeIfAbsent(key(owner, file), k -> {
+				DedupIndex index = new DedupIndex();
+				// Start above every id still tracked for the file (plans do not survive a restart)
+				index.nextChunkId = RegistryManager.getInstance().maxChunkId(file) + 1;
+				Plan previous = plans.get(k);
+				if (previous != null) {
+					// Start above every id the previous (possibly fixed-size) plan used
+					for (int id : previous.placement.keySet())
+						index.nextChunkId = Math.max(index.nextChunkId, id + 1);
+				}
+				return index;
+			});
+		}
+
+		void dropDedupIndex(String owner, String file) {
+			dedupIndexes.remove(key(owner, file));
 		}
 
 		private final Map<String, Plan> plans = new ConcurrentHashMap<>();
@@ -521,6 +777,7 @@ public class ClientHandler extends Thread {
 		String targetPeer = c[4];
 		
 		System.out.println("Replication completed: " + fileName + " chunk " + chunkId + " to " + targetPeer);
+		RepairScheduler.getInstance().onReplicateDone(fileName, chunkId, targetPeer);
 		
 		// Update the backup plan to reflect the new chunk location
 		Optional<PeerNode> targetPeerNode = registry.getPeer(targetPeer);
@@ -0,0 +1,213 @@
+package com.P2PBRS.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.P2PBRS.common.MerkleInventory;
+import com.P2PBRS.network.NetworkUtils;
+import com.P2PBRS.peer.PeerNode;
+
+/**
+ * TCP side channel for control responses that do not fit in one datagram.
+ *
+ * The UDP reply is replaced by "CONTROL_STREAM RQ# Token Length"; the client then
+ * connects to the same port over TCP, sends "FETCH Token" and reads the framed body.
+ *
+ * Peers also upload bulk data here: "INVENTORY_REPORT Name UDP_Port" followed by
+ * frames of "file chunk size crc" lines, answered with one status line, and
+ * "BACKUP_MANIFEST RQ# Name UDP_Port File_Name File_Size Avg_Chunk_Size" followed by
+ * frames of "sha256 length [previous_chunk_id]" lines, answered with the dedup plan
+ * as a text stream.
+ */
+public class ControlStreamServer extends Thread {
+    private static final ControlStreamServer INSTANCE = new ControlStreamServer();
+    private static final long STREAM_TTL_MS = 60_000; // unclaimed responses are dropped after a minute
+
+    private final Map<String, PendingStream> pending = new ConcurrentHashMap<>();
+    private volatile int port = 5000;
+    private volatile DatagramSocket udpSocket; // the UDP server's socket, for STORE_REQ_BATCH
+
+    private static final class PendingStream {
+        final String payload;
+        final long expiresAt;
+
+        PendingStream(String payload, long expiresAt) {
+            this.payload = payload;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private ControlStreamServer() {
+        super("Control-TCP-Server");
+        setDaemon(true);
+    }
+
+    public static ControlStreamServer getInstance() {
+        return INSTANCE;
+    }
+
+    public void start(int port, DatagramSocket udpSocket) {
+        this.port = port;
+        this.udpSocket = udpSocket;
+        start();
+    }
+
+    /** Park an oversized response and return the token the client uses to fetch it. */
+    public String offer(String payload) {
+        purgeExpired();
+        String token = UUID.randomUUID().toString().replace("-", "");
+        pending.put(token, new PendingStream(payload, System.currentTimeMillis() + STREAM_TTL_MS));
+        return token;
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("TCP control channel is running on port " + port);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                new Thread(() -> handle(socket), "Control-TCP-Handler").start();
+            }
+        } catch (Exception e) {
+            System.err.println("TCP control channel failed: " + e.getMessage());
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setSoTimeout(30_000);
+
+            // FETCH Token
+            String[] c = NetworkUtils.readLine(in).trim().split("\\s+");
+            if (c.length == 2 && c[0].equals("FETCH")) {
+                PendingStream stream = pending.remove(c[1]);
+                if (stream == null || stream.expiresAt < System.currentTimeMillis()) {
+                    NetworkUtils.writeTextStream(out, "ERROR: Unknown or expired stream token");
+                    return;
+                }
+                NetworkUtils.writeTextStream(out, stream.payload);
+                System.out.println("Streamed " + stream.payload.length() + " byte control response to "
+                        + socket.getInetAddress() + ":" + socket.getPort());
+            } else if (c.length == 3 && c[0].equals("INVENTORY_REPORT")) {
+                NetworkUtils.writeLine(out, receiveInventoryReport(socket, c[1], c[2], in));
+            } else if (c.length == 7 && c[0].equals("BACKUP_MANIFEST")) {
+                NetworkUtils.writeTextStream(out, receiveBackupManifest(socket, c, in));
+            } else {
+                NetworkUtils.writeTextStream(out, "ERROR: Unknown control stream request");
+            }
+        } catch (Exception e) {
+            System.err.println("Control stream to " + socket.getInetAddress() + " failed: " + e.getMessage());
+        }
+    }
+
+    private String receiveInventoryReport(Socket socket, String name, String udpPort, DataInputStream in)
+            throws IOException {
+        RegistryManager registry = RegistryManager.getInstance();
+        if (authenticate(socket, name, udpPort).isEmpty()) {
+            // Drain so the client sees the answer rather than a reset
+            while (NetworkUtils.readFrame(in) != null) { }
+            return "REPORT_DENIED " + name;
+        }
+
+        long start = System.currentTimeMillis();
+        List<MerkleInventory.Entry> entries = new ArrayList<>();
+        long bytes = 0;
+        byte[] frame;
+        while ((frame = NetworkUtils.readFrame(in)) != null) {
+            // Each frame holds whole lines: file chunk size crcHex
+            for (String line : new String(frame, StandardCharsets.UTF_8).split("\n")) {
+                String[] f = line.trim().split("\\s+");
+                if (f.length < 4) {
+                    continue;
+                }
+                try {
+                    entries.add(new MerkleInventory.Entry(f[0], Integer.parseInt(f[1]), Long.parseLong(f[3], 16)));
+                    bytes += Long.parseLong(f[2]);
+                } catch (NumberFormatException e) {
+                    System.err.println("Skipping malformed inventory line from " + name + ": " + line);
+                }
+            }
+        }
+
+        int[] changes = registry.ingestInventoryReport(name, entries);
+        System.out.println("Inventory report from " + name + ": " + entries.size() + " chunks (" + bytes + " bytes), +"
+                + changes[0] + " -" + changes[1] + " chunk locations in " + (System.currentTimeMillis() - start) + " ms");
+        return "REPORT_OK " + entries.size() + " " + changes[0] + " " + changes[1];
+    }
+
+    // BACKUP_MANIFEST RQ# Name UDP_Port File_Name File_Size Avg_Chunk_Size, then frames of "sha256 length [id]" lines
+    private String receiveBackupManifest(Socket socket, String[] c, DataInputStream in) throws IOException {
+        Optional<PeerNode> owner = authenticate(socket, c[2], c[3]);
+        List<DedupPlanner.ManifestEntry> manifest = new ArrayList<>();
+        boolean malformed = false;
+        byte[] frame;
+        // Read to the end even past a bad line, so the owner gets the answer rather than a reset
+        while ((frame = NetworkUtils.readFrame(in)) != null) {
+            for (String line : new String(frame, StandardCharsets.UTF_8).split("\n")) {
+                String[] f = line.trim().split("\\s+");
+                if (f.length == 1 && f[0].isEmpty())
+                    continue;
+                if (f.length != 2 && f.length != 3) {
+                    malformed = true;
+                    continue;
+                }
+                try {
+                    manifest.add(new DedupPlanner.ManifestEntry(f[0], Integer.parseInt(f[1]),
+                            f.length == 3 ? Integer.parseInt(f[2]) : -1));
+                } catch (NumberFormatException e) {
+                    malformed = true;
+                }
+            }
+        }
+        if (owner.isEmpty())
+            return "BACKUP-DENIED " + c[1] + " Owner_Not_Registered";
+        if (malformed)
+            return "ERROR: Malformed BACKUP_MANIFEST";
+        try {
+            return DedupPlanner.plan(udpSocket, c[1], owner.get(), c[4], Long.parseLong(c[5]), Integer.parseInt(c[6]),
+                    manifest);
+        } catch (NumberFormatException e) {
+            return "ERROR: Malformed BACKUP_MANIFEST";
+        }
+    }
+
+    // The registered peer, if the connection comes from its host and names its UDP port
+    private static Optional<PeerNode> authenticate(Socket socket, String name, String udpPort) {
+        Optional<PeerNode> peer = RegistryManager.getInstance().getPeer(name);
+        if (peer.isEmpty() || !udpPort.equals(String.valueOf(peer.get().getUdpPort()))
+                || !sameHost(peer.get().getIpAddress(), socket.getInetAddress())) {
+            return Optional.empty();
+        }
+        return peer;
+    }
+
+    private static boolean sameHost(String registeredIp, InetAddress actual) {
+        try {
+            InetAddress registered = InetAddress.getByName(registeredIp);
+            return registered.equals(actual) || (registered.isLoopbackAddress() && actual.isLoopbackAddress());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        pending.values().removeIf(s -> s.expiresAt < now);
+    }
+}
@@ -0,0 +1,123 @@
+package com.P2PBRS.server;
+
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import com.P2PBRS.peer.PeerNode;
+
+/**
+ * Plans a content-defined backup from the owner's manifest (strong hash and length of
+ * every chunk, in file order). Chunks whose hash is already stored for this file, by
+ * any earlier version, are reused; only new chunks get fresh ids and a storage peer,
+ * and only those are uploaded.
+ *
+ * The owner may name the chunk id it stored a hash under last time (from its local
+ * manifest). The hash index lives in memory, so after a server restart these hints
+ * are what lets unchanged chunks be reused; a hint is only taken if the registry
+ * still has that chunk on a registered peer.
+ */
+public class DedupPlanner {
+    static final class ManifestEntry {
+        final String hash;
+        final int length;
+        final int hint; // chunk id from the owner's previous manifest, -1 if none
+
+        ManifestEntry(String hash, int length, int hint) {
+            this.hash = hash;
+            this.length = length;
+            this.hint = hint;
+        }
+    }
+
+    private DedupPlanner() {
+    }
+
+    /**
+     * Returns the plan as text: "BACKUP_PLAN File [Peer:IP:Port,...] Avg_Chunk_Size new=N reused=M reusedBytes=B"
+     * followed by one "Index Chunk_ID Peer new|have" line per manifest entry; only "new" ones are uploaded.
+     * Storage peers are told about their new chunks with STORE_REQ_BATCH from the server's UDP socket.
+     */
+    static String plan(DatagramSocket socket, String rq, PeerNode owner, String fileName, long fileSize, int avgChunkSize, List<ManifestEntry> manifest) {
+        RegistryManager registry = RegistryManager.getInstance();
+        ClientHandler.BackupManager backups = ClientHandler.BackupManager.getInstance();
+
+        List<PeerNode> selected = ClientHandler.selectStoragePeers(registry.listPeers(), owner.getName(),
+                Math.max(1, manifest.size()));
+        if (selected.isEmpty())
+            return "BACKUP-DENIED " + rq + " No_Available_Storage";
+
+        ClientHandler.BackupManager.DedupIndex index = backups.dedupIndex(owner.getName(), fileName);
+        List<Integer> sequence = new ArrayList<>(manifest.size());
+        Map<Integer, PeerNode> placement = new HashMap<>();
+        Map<String, List<Integer>> newByPeer = new LinkedHashMap<>();
+        StringBuilder lines = new StringBuilder();
+        int reused = 0, fresh = 0;
+        long reusedBytes = 0;
+
+        synchronized (index) {
+            // Never hand out an id the owner still refers to
+            for (ManifestEntry e : manifest)
+                index.nextChunkId = Math.max(index.nextChunkId, e.hint + 1);
+
+            for (int i = 0; i < manifest.size(); i++) {
+                ManifestEntry e = manifest.get(i);
+                Integer id = index.chunkByHash.get(e.hash);
+                if (id == null && e.hint >= 0)
+                    id = e.hint;
+                if (id != null) {
+                    PeerNode holder = placement.get(id);
+                    if (holder == null) {
+                        // Still stored on a registered peer? (repair and anti-entropy keep this current)
+                        String holderName = registry.findPeerWithChunk(fileName, id);
+                        Optional<PeerNode> p = holderName == null ? Optional.empty() : registry.getPeer(holderName);
+                        holder = p.orElse(null);
+                    }
+                    if (holder != null) {
+                        index.chunkByHash.put(e.hash, id);
+                        placement.put(id, holder);
+                        sequence.add(id);
+                        lines.append('\n').append(i).append(' ').append(id).append(' ').append(holder.getName())
+                                .append(" have");
+                        reused++;
+                        reusedBytes += e.length;
+                        continue;
+                    }
+                }
+
+                // New content (or its only copy is gone): next id, round-robin over the selected peers
+                id = index.nextChunkId++;
+                PeerNode target = selected.get(fresh % selected.size());
+                index.chunkByHash.put(e.hash, id);
+                placement.put(id, target);
+                sequence.add(id);
+                newByPeer.computeIfAbsent(target.getName(), k -> new ArrayList<>()).add(id);
+                lines.append('\n').append(i).append(' ').append(id).append(' ').append(target.getName()).append(" new");
+                fresh++;
+            }
+        }
+
+        backups.putPlan(new ClientHandler.BackupManager.Plan(owner.getName(), fileName, "-", avgChunkSize, fileSize,
+                placement, sequence));
+        registry.registerChunkStorage(fileName, newByPeer);
+        for (PeerNode sp : selected) {
+            List<Integer> ids = newByPeer.get(sp.getName());
+            if (ids != null)
+                ClientHandler.sendStoreReqBatch(socket, rq, fileName, avgChunkSize, owner.getName(), ids, sp);
+        }
+
+        System.out.println("Dedup plan for " + fileName + " from " + owner.getName() + ": " + manifest.size()
+                + " chunks, " + fresh + " new, " + reused + " reused (" + reusedBytes + " bytes not re-sent)");
+
+        String peerList = selected.stream()
+                .map(p -> String.format("%s:%s:%d", p.getName(), p.getIpAddress(), p.getTcpPort()))
+                .collect(Collectors.joining(","));
+        return String.format("BACKUP_PLAN %s [%s] %d new=%d reused=%d reusedBytes=%d", fileName, peerList, avgChunkSize,
+                fresh, reused, reusedBytes) + lines;
+    }
+}
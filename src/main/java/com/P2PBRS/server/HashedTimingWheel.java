@@ -0,0 +1,126 @@
+package com.P2PBRS.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel holding one deadline per peer.
+ *
+ * Rescheduling a peer unlinks its node from one bucket and links it into another,
+ * so a heartbeat costs O(1) regardless of fleet size. advance() only visits the
+ * buckets whose tick has passed; as long as the wheel spans more time than the
+ * longest deadline, every node it visits has actually expired.
+ */
+public class HashedTimingWheel {
+
+    private static final class Node {
+        final String key;
+        long deadlineTick;
+        int bucket = -1;
+        Node prev;
+        Node next;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final Node[] buckets;
+    private final Map<String, Node> nodes = new HashMap<>();
+    private long currentTick;
+
+    /**
+     * @param tickMs    resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param startMs   time the wheel starts from
+     */
+    public HashedTimingWheel(long tickMs, int wheelSize, long startMs) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickMs = tickMs;
+        this.mask = size - 1;
+        this.buckets = new Node[size];
+        this.currentTick = startMs / tickMs;
+    }
+
+    /** Set (or move) the deadline for a key. */
+    public synchronized void schedule(String key, long deadlineMs) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            nodes.put(key, node);
+        } else {
+            unlink(node);
+        }
+
+        // Never schedule into a bucket we've already passed; it would wait a full rotation
+        long tick = Math.max(currentTick + 1, (deadlineMs + tickMs - 1) / tickMs);
+        node.deadlineTick = tick;
+        link(node, (int) (tick & mask));
+    }
+
+    public synchronized void cancel(String key) {
+        Node node = nodes.remove(key);
+        if (node != null)
+            unlink(node);
+    }
+
+    public synchronized boolean contains(String key) {
+        return nodes.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /** Move the wheel to nowMs and remove and return every key whose deadline has passed. */
+    public synchronized List<String> advance(long nowMs) {
+        List<String> expired = new ArrayList<>();
+        long nowTick = nowMs / tickMs;
+
+        // Walk at most one full rotation, even after a long stall
+        long from = Math.max(currentTick + 1, nowTick - mask);
+
+        for (long tick = from; tick <= nowTick; tick++) {
+            Node node = buckets[(int) (tick & mask)];
+            while (node != null) {
+                Node next = node.next;
+                if (node.deadlineTick <= nowTick) {
+                    unlink(node);
+                    nodes.remove(node.key);
+                    expired.add(node.key);
+                }
+                node = next;
+            }
+        }
+        if (nowTick > currentTick)
+            currentTick = nowTick;
+        return expired;
+    }
+
+    private void link(Node node, int bucket) {
+        node.bucket = bucket;
+        node.prev = null;
+        node.next = buckets[bucket];
+        if (node.next != null)
+            node.next.prev = node;
+        buckets[bucket] = node;
+    }
+
+    private void unlink(Node node) {
+        if (node.bucket < 0)
+            return;
+        if (node.prev != null)
+            node.prev.next = node.next;
+        else
+            buckets[node.bucket] = node.next;
+        if (node.next != null)
+            node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.bucket = -1;
+    }
+}
@@ -1,337 +1,199 @@
 package com.P2PBRS.server;
 
-import java.time.Duration;
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.net.DatagramSocket;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import com.P2PBRS.common.Config;
 import com.P2PBRS.peer.PeerNode;
-import com.P2PBRS.server.ClientHandler.BackupManager;
 import com.P2PBRS.server.RegistryManager.Result;
 
 public class HeartbeatHandler extends Thread {
     private static final int HEARTBEAT_INTERVAL = 5000; // 5 seconds
-    private static final int FAILURE_TIMEOUT = 15000;   // 15 seconds
-    private final Map<String, Instant> lastHeartbeatTimes = new ConcurrentHashMap<>();
-    private final Set<String> recoveringPeers = ConcurrentHashMap.newKeySet();
 
-    // Testing timeout - 10 seconds
-    private final long MAX_TIME = 10;
+    // Phi-accrual thresholds: SUSPECT is only reported, DOWN triggers recovery
+    private static final double PHI_SUSPECT = Config.getDouble("p2pbrs.phi.suspect", 3.0);
+    private static final double PHI_DOWN = Config.getDouble("p2pbrs.phi.down", 8.0);
+    private static final int PHI_WINDOW = Config.getInt("p2pbrs.phi.window", 100);
+    private static final long EXPECTED_INTERVAL_MS = Config.getLong("p2pbrs.heartbeat.intervalMs", HEARTBEAT_INTERVAL);
+    private static final long MIN_STD_DEV_MS = Config.getLong("p2pbrs.phi.minStdDevMs", 500);
+    private static final long ACCEPTABLE_PAUSE_MS = Config.getLong("p2pbrs.phi.acceptablePauseMs", 1000);
+
+    // Startup warm-up: timestamps restored from disk say nothing about who is alive now,
+    // so nobody is declared DOWN until peers had this many intervals to check in
+    private static final int WARMUP_INTERVALS = Config.getInt("p2pbrs.heartbeat.warmupIntervals", 3);
+    // After the grace period, repairs stay under the fleet-wide warm-up rate for this long
+    private static final long REPAIR_RAMP_MS = Config.getLong("p2pbrs.repair.warmupRampMs", 120_000);
+
+    // Wheel resolution; 128 buckets x 500 ms spans well past any phi deadline
+    private static final long TICK_MS = 500;
+
+    // One deadline per registered peer: when its phi would cross the next threshold.
+    // All times here are monotonic milliseconds (nanoTime / 1e6), matching the liveness table.
+    private static final HashedTimingWheel deadlines = new HashedTimingWheel(TICK_MS, 128, monotonicMs());
+    private static final Map<String, PhiAccrualDetector> detectors = new ConcurrentHashMap<>();
+    private static final Map<String, PeerState> states = new ConcurrentHashMap<>();
+
+    public enum PeerState { ALIVE, SUSPECT, DOWN }
     
     private final RegistryManager registry = RegistryManager.getInstance();
-    
-    @Override
-    public void run() {
-        System.out.println("HeartbeatHandler started with " + MAX_TIME + " second timeout");
+    private final RepairScheduler repairs = RepairScheduler.getInstance();
 
-        while (true) {            
-            List<PeerNode> list = registry.listPeers();
-            
-            for (int i = 0; i < list.size(); i++) {
-                PeerNode p = list.get(i);    
-                
-                Instant now = Instant.now();
-                Instant lastTimestamp = p.getLastTimestamp();
-                if (lastTimestamp == null) {
-                    p.setLastTimestamp(now);
-                    lastTimestamp = p.getLastTimestamp();
-                }
-                
-                Duration diff = Duration.between(lastTimestamp, now);
-                long timeSinceLastTimestamp = diff.getSeconds();
-                
-                if (timeSinceLastTimestamp > MAX_TIME) {
-                    if (!recoveringPeers.contains(p.getName())) {
-                        System.out.println("Peer " + p.getName() + " marked as down. Time since last heartbeat: " + timeSinceLastTimestamp + " seconds");
-                    
-                        // FIRST: Mark as recovering and trigger recovery for this failed peer's chunks
-                        recoveringPeers.add(p.getName());
-                        triggerRecoveryForFailedPeer(p.getName());
-
-                        System.out.println("Down client " + p.getName() + " DEREGISTERING");
+    private final LivenessTable liveness = registry.liveness();
+    private final long[] observedNanos = new long[liveness.capacity()];
+    private long warmUpUntil;
 
-                        // THEN: Deregister the failed peer
-                        Result result = registry.deregisterPeer(p.getName());
-                        if (!result.ok) {
-                            System.err.println("Failed to deregister client " + p.getName());
-                        }
-                    }
-                }
-            }
-            
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    public HeartbeatHandler(DatagramSocket udpSocket) {
+        repairs.start(udpSocket);
     }
 
-    private void triggerRecoveryForFailedPeer(String failedPeerName) {
-        System.out.println("Triggering recovery for failed peer: " + failedPeerName);
-
-        // Remove the failed peer's chunk locations
-        registry.removeChunkLocationsForPeer(failedPeerName);
-        
-        // Get all backup plans
-        Map<String, BackupManager.Plan> plans = BackupManager.getInstance().getPlans();
-        
-        int totalChunksToRecover = 0;
-        int successfulRecoveries = 0;
+    // Detector thread only: feed a heartbeat picked up from the liveness table
+    private static void onHeartbeat(String peerName, long nowMs) {
+        PhiAccrualDetector detector = detectors.computeIfAbsent(peerName, k -> newDetector());
+        detector.heartbeat(nowMs);
 
-        for (BackupManager.Plan plan : plans.values()) {
-            // Find chunks stored by the failed peer
-            Map<Integer, String> chunksToRecover = new HashMap<>();
-            
-            for (Map.Entry<Integer, PeerNode> entry : plan.placement.entrySet()) {
-                if (entry.getValue().getName().equals(failedPeerName)) {
-                    chunksToRecover.put(entry.getKey(), entry.getValue().getName());
-                }
-            }
-            
-            if (!chunksToRecover.isEmpty()) {
-                System.out.println("Found " + chunksToRecover.size() + " chunks to recover from file: " + plan.fileName);
-                totalChunksToRecover += chunksToRecover.size();
-                
-                // For each chunk, find a new storage peer and trigger replication
-                for (Map.Entry<Integer, String> chunkEntry : chunksToRecover.entrySet()) {
-                    int chunkId = chunkEntry.getKey();
-                    String newStoragePeer = selectNewStoragePeer(plan.owner, plan.fileName, failedPeerName);
-                    
-                    if (newStoragePeer != null) {
-                        Boolean success = triggerChunkReplication(plan.fileName, chunkId, newStoragePeer);
-
-                        if (success) {
-                            successfulRecoveries++;
-                        }
-                    } else {
-                        System.err.println("No available peer to store chunk " + chunkId + " of " + plan.fileName);
-                    }
-                }
-            }
+        PeerState previous = states.put(peerName, PeerState.ALIVE);
+        if (previous == PeerState.SUSPECT) {
+            System.out.println("Peer " + peerName + " is no longer suspected");
         }
+        deadlines.schedule(peerName, detector.deadlineFor(PHI_SUSPECT));
+    }
 
-        System.out.println("Recovery summary: " + successfulRecoveries + "/" + totalChunksToRecover + " chunks scheduled for recovery");
-        
-        // Remove from recovering set after a delay (to prevent repeated recovery attempts)
-        new Thread(() -> {
-            try {
-                Thread.sleep(30000); // Wait 30 seconds before allowing recovery again
-                recoveringPeers.remove(failedPeerName);
-                System.out.println("Removed " + failedPeerName + " from recovering peers set");
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }).start();
+    /** Called on REGISTER: start the peer's clock without recording an interval. */
+    public static void onRegister(String peerName) {
+        PhiAccrualDetector detector = newDetector();
+        detector.start(monotonicMs());
+        detectors.put(peerName, detector);
+        states.put(peerName, PeerState.ALIVE);
+        deadlines.schedule(peerName, detector.deadlineFor(PHI_SUSPECT));
     }
 
-    private String selectNewStoragePeer(String ownerName, String fileName, String failedPeer) {
-        List<PeerNode> allPeers = registry.listPeers();
-        List<PeerNode> candidates = new ArrayList<>();
-        
-        // Find available storage peers (excluding the owner and failed peer)
-        for (PeerNode peer : allPeers) {
-            if (!peer.getName().equals(ownerName) && 
-                !peer.getName().equals(failedPeer) &&
-                ("STORAGE".equals(peer.getRole()) || "BOTH".equals(peer.getRole())) &&
-                peer.getStorageCapacity() > 0) {
-                candidates.add(peer);
-            }
-        }
-        
-        if (candidates.isEmpty()) {
-            System.err.println("No available storage peers for recovery!");
-            return null;
-        }
-        
-        // Select peer with most available capacity
-        candidates.sort((a, b) -> Integer.compare(b.getStorageCapacity(), a.getStorageCapacity()));
-        String selectedPeer = candidates.get(0).getName();
-        
-        System.out.println("Selected new storage peer: " + selectedPeer + " for recovery");
-        return selectedPeer;
+    /** Called when a peer leaves on its own so its deadline does not fire. */
+    public static void onDeregister(String peerName) {
+        deadlines.cancel(peerName);
+        detectors.remove(peerName);
+        states.remove(peerName);
     }
 
-    private Boolean triggerChunkReplication(String fileName, int chunkId, String targetPeer) {
-        System.out.println("Attempting recovery: " + fileName + " chunk " + chunkId + " -> " + targetPeer);
-        
-        // Find which peer currently has this chunk
-        String sourcePeer = findPeerWithChunk(fileName, chunkId);
-        
-        if (sourcePeer != null && !sourcePeer.equals(targetPeer)) {
-            // Send REPLICATE_REQ to the source peer
-            sendReplicateRequest(sourcePeer, fileName, chunkId, targetPeer);
-            System.out.println("Recovery scheduled: " + fileName + " chunk " + chunkId + " from " + sourcePeer + " to " + targetPeer);
-            return true;
-        } else if (sourcePeer == null) {
-            System.err.println("Recovery impossible: No available source for " + fileName + " chunk " + chunkId);
-            System.err.println("   Chunk is permanently lost (only copy was on failed peer)");
-        } else {
-            System.err.println("Recovery failed: Source and target are same peer: " + sourcePeer);
-        }
-        return false;
+    /** Heartbeat interval peers should use; handed out in HEARTBEAT_SYNC. */
+    public static long expectedIntervalMs() {
+        return EXPECTED_INTERVAL_MS;
     }
 
-    private String findPeerWithChunk(String fileName, int chunkId) {    
-        System.out.println("Searching for " + fileName + " chunk " + chunkId);
+    public static PeerState getState(String peerName) {
+        return states.getOrDefault(peerName, PeerState.DOWN);
+    }
 
-        // FIRST: Try to find the chunk using RegistryManager's chunk tracking
-        String chunkPeer = registry.findPeerWithChunk(fileName, chunkId);
-        if (chunkPeer != null) {
-            System.out.println("Found chunk via registry: " + chunkPeer);
-            
-            // Check if this peer is actually responsive
-            Optional<PeerNode> peerNode = registry.getPeer(chunkPeer);
-            if (peerNode.isPresent() && isPeerActuallyAlive(peerNode.get())) {
-                return chunkPeer;
+    private static long monotonicMs() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    // Only the peers that sent a heartbeat since the last tick are visited
+    private void collectHeartbeats() {
+        liveness.drainChanged(id -> {
+            long seen = liveness.lastSeenNanos(id);
+            if (seen == 0 || seen == observedNanos[id]) {
+                return;
             }
-        }
-        
-        // FALLBACK: Use backup plans
-        Map<String, BackupManager.Plan> plans = BackupManager.getInstance().getPlans();
-        
-        for (BackupManager.Plan plan : plans.values()) {
-            if (plan.fileName.equals(fileName)) {
-                PeerNode storagePeer = plan.placement.get(chunkId);
-                
-                if (storagePeer != null) {
-                    System.out.println("Found storage peer in plan: " + storagePeer.getName());
-                    
-                    // Check if this peer is actually responsive
-                    boolean isActuallyAlive = isPeerActuallyAlive(storagePeer);
-                    System.out.println("Peer " + storagePeer.getName() + " is actually alive: " + isActuallyAlive);
-                    
-                    if (isActuallyAlive) {
-                        return storagePeer.getName();
-                    } else {
-                        // Find alternative storage peer (NOT file owner)
-                        System.out.println("Storage peer " + storagePeer.getName() + " is unresponsive, finding alternative...");
-                        return findAlternativeStoragePeer(fileName, chunkId, storagePeer.getName());
-                    }
-                }
+            observedNanos[id] = seen;
+            String name = liveness.nameOf(id);
+            if (name != null) {
+                onHeartbeat(name, seen / 1_000_000);
             }
-        }
-        
-        System.out.println("Could not find source peer for " + fileName + " chunk " + chunkId);
-        return null;
+        });
     }
 
-    private String findAlternativeStoragePeer(String fileName, int chunkId, String excludePeer) {
-        System.out.println("Looking for alternative storage peer for " + fileName + " chunk " + chunkId);
-        
-        // First, try to find which peers actually have this chunk (using registry)
-        Set<String> allPeersWithThisChunk = findAllPeersWithChunk(fileName, chunkId, excludePeer);
-        
-        for (String peerName : allPeersWithThisChunk) {
-            Optional<PeerNode> peer = registry.getPeer(peerName);
-            if (peer.isPresent() && isPeerActuallyAlive(peer.get())) {
-                System.out.println("Found peer with chunk: " + peerName);
-                return peerName;
-            }
+    private static PhiAccrualDetector newDetector() {
+        return new PhiAccrualDetector(PHI_WINDOW, EXPECTED_INTERVAL_MS, MIN_STD_DEV_MS, ACCEPTABLE_PAUSE_MS);
+    }
+    
+    @Override
+    public void run() {
+        System.out.println("HeartbeatHandler started with phi thresholds suspect=" + PHI_SUSPECT + " down=" + PHI_DOWN);
+
+        // Peers restored from disk start with a fresh clock, not their (possibly hours old)
+        // last heartbeat, otherwise a long server downtime would fail the whole fleet at once
+        long startedAt = monotonicMs();
+        long graceMs = WARMUP_INTERVALS * EXPECTED_INTERVAL_MS;
+        warmUpUntil = startedAt + graceMs;
+        List<PeerNode> restored = registry.listPeers();
+        for (PeerNode p : restored) {
+            PhiAccrualDetector detector = newDetector();
+            detector.start(startedAt);
+            detectors.put(p.getName(), detector);
+            states.put(p.getName(), PeerState.ALIVE);
+            deadlines.schedule(p.getName(), detector.deadlineFor(PHI_SUSPECT));
         }
-        
-        // If no peer has the chunk, find any available storage peer that's NOT the file owner
-        List<PeerNode> allPeers = registry.listPeers();
-        
-        // First, find out who owns this file
-        String fileOwner = findFileOwner(fileName);
-        System.out.println("File owner: " + fileOwner);
-        
-        for (PeerNode peer : allPeers) {
-            // Skip: failed peer, file owner, and non-storage peers
-            if (!peer.getName().equals(excludePeer) && 
-                !peer.getName().equals(fileOwner) &&  // CRITICAL: Don't use file owner!
-                ("STORAGE".equals(peer.getRole()) || "BOTH".equals(peer.getRole())) &&
-                isPeerActuallyAlive(peer)) {
-                
-                System.out.println("Trying alternative storage peer: " + peer.getName());
-                return peer.getName();
-            }
+        if (!restored.isEmpty()) {
+            System.out.println("Warm-up: " + restored.size() + " restored peers; none is declared down for "
+                    + graceMs / 1000 + " s");
+            repairs.limitFleetRate(System.currentTimeMillis() + graceMs + REPAIR_RAMP_MS);
         }
-        
-        System.out.println("No alternative storage peers found");
-        return null;
-    }
 
-    private Set<String> findAllPeersWithChunk(String fileName, int chunkId, String excludePeer) {
-        Set<String> peersWithChunk = new HashSet<>();
-        
-        // Check all backup plans to see which peers have this chunk
-        Map<String, BackupManager.Plan> plans = BackupManager.getInstance().getPlans();
-        for (BackupManager.Plan plan : plans.values()) {
-            if (plan.fileName.equals(fileName)) {
-                for (Map.Entry<Integer, PeerNode> entry : plan.placement.entrySet()) {
-                    if (entry.getKey() == chunkId && !entry.getValue().getName().equals(excludePeer)) {
-                        peersWithChunk.add(entry.getValue().getName());
-                    }
+        while (true) {
+            // Peers that checked in since the last tick, queued by the liveness table
+            collectHeartbeats();
+
+            long now = monotonicMs();
+
+            // Only peers whose next phi deadline passed are visited
+            for (String name : deadlines.advance(now)) {
+                Optional<PeerNode> maybePeer = registry.getPeer(name);
+                PhiAccrualDetector detector = detectors.get(name);
+                if (maybePeer.isEmpty() || detector == null) {
+                    continue;
                 }
-            }
-        }
-        
-        System.out.println("Peers with chunk " + chunkId + ": " + peersWithChunk);
-        return peersWithChunk;
-    }
+                PeerNode p = maybePeer.get();
 
-    private String findFileOwner(String fileName) {
-        Map<String, BackupManager.Plan> plans = BackupManager.getInstance().getPlans();
-        for (BackupManager.Plan plan : plans.values()) {
-            if (plan.fileName.equals(fileName)) {
-                return plan.owner;
-            }
-        }
-        return null;
-    }
+                double phi = detector.phi(now);
+                if (phi < PHI_SUSPECT) {
+                    // A heartbeat raced with the expiry
+                    deadlines.schedule(name, detector.deadlineFor(PHI_SUSPECT));
+                    continue;
+                }
+                if (phi < PHI_DOWN) {
+                    states.put(name, PeerState.SUSPECT);
+                    System.out.println("Peer " + name + " is SUSPECT (phi " + String.format("%.2f", phi) + ", "
+                            + (now - detector.getLastHeartbeatMs()) + " ms since last heartbeat)");
+                    deadlines.schedule(name, detector.deadlineFor(PHI_DOWN));
+                    continue;
+                }
 
-    private boolean isPeerActuallyAlive(PeerNode peer) {
-        try {
-            // Try to establish a TCP connection to the peer's storage port
-            java.net.Socket socket = new java.net.Socket();
-            socket.connect(new java.net.InetSocketAddress(peer.getIpAddress(), peer.getTcpPort()), 2000); // 2 second timeout
-            socket.close();
-            return true;
-        } catch (Exception e) {
-            System.out.println("Peer " + peer.getName() + " is not reachable at " + peer.getIpAddress() + ":" + peer.getTcpPort());
-            return false;
-        }
-    }
+                if (now < warmUpUntil) {
+                    // Still warming up: stay SUSPECT and look again when the grace period ends
+                    states.put(name, PeerState.SUSPECT);
+                    deadlines.schedule(name, warmUpUntil);
+                    continue;
+                }
 
-    private void sendReplicateRequest(String sourcePeer, String fileName, int chunkId, String targetPeer) {
-        try {
-            Optional<PeerNode> sourcePeerNode = registry.getPeer(sourcePeer);
-            if (sourcePeerNode.isPresent()) {
-                PeerNode peer = sourcePeerNode.get();
-                
-                // Create a UDP client to send the replication request
-                java.net.DatagramSocket socket = new java.net.DatagramSocket();
-                String message = String.format("REPLICATE_REQ %d %s %d %s", 
-                    generateRequestId(), fileName, chunkId, targetPeer);
-                
-                byte[] data = message.getBytes();
-                java.net.DatagramPacket packet = new java.net.DatagramPacket(
-                    data, data.length, 
-                    java.net.InetAddress.getByName(peer.getIpAddress()), 
-                    peer.getUdpPort()
-                );
-                
-                socket.send(packet);
-                socket.close();
+                states.put(name, PeerState.DOWN);
+                long timeSinceLastTimestamp = (now - detector.getLastHeartbeatMs()) / 1000;
+
+                if (!repairs.isRecovering(p.getName())) {
+                    System.out.println("Peer " + p.getName() + " marked as down. Time since last heartbeat: " + timeSinceLastTimestamp + " seconds");
                 
-                System.out.println("Sent REPLICATE_REQ to " + sourcePeer + " for " + fileName + " chunk " + chunkId);
-            } else {
-                System.err.println("Source peer not found: " + sourcePeer);
+                    // FIRST: Hand the failed peer's chunks to the repair scheduler (returns immediately)
+                    repairs.peerFailed(p.getName());
+
+                    System.out.println("Down client " + p.getName() + " DEREGISTERING");
+
+                    // THEN: Deregister the failed peer
+                    Result result = registry.deregisterPeer(p.getName());
+                    if (!result.ok) {
+                        System.err.println("Failed to deregister client " + p.getName());
+                    }
+                    detectors.remove(p.getName());
+                    states.remove(p.getName());
+                }
+            }
+            
+            try {
+                Thread.sleep(TICK_MS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
-        } catch (Exception e) {
-            System.err.println("Failed to send REPLICATE_REQ to " + sourcePeer + ": " + e.getMessage());
         }
     }
-
-    private int generateRequestId() {
-        return (int) (System.currentTimeMillis() % 1000000);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+package com.P2PBRS.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.P2PBRS.common.Config;
+import com.P2PBRS.peer.PeerNode;
+
+/**
+ * Asynchronous "is this peer's TCP port reachable" checks.
+ *
+ * One selector thread runs non-blocking connects, at most MAX_CONCURRENT at a time.
+ * Results are cached for CACHE_TTL_MS and concurrent callers asking about the same
+ * endpoint share one in-flight probe, so several recoveries can ask about the same
+ * peers without multiplying connection attempts.
+ */
+public class LivenessProber extends Thread {
+    private static final LivenessProber INSTANCE = new LivenessProber();
+
+    private static final long CONNECT_TIMEOUT_MS = Config.getLong("p2pbrs.probe.timeoutMs", 2000);
+    private static final long CACHE_TTL_MS = Config.getLong("p2pbrs.probe.cacheTtlMs", 3000);
+    private static final int MAX_CONCURRENT = Config.getInt("p2pbrs.probe.maxConcurrent", 64);
+
+    private final Map<String, CachedResult> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    private final Queue<Probe> submitted = new ConcurrentLinkedQueue<>();
+    private final Queue<Probe> waiting = new ArrayDeque<>(); // selector thread only
+    private final Selector selector;
+    private int active; // selector thread only
+
+    private static final class CachedResult {
+        final boolean alive;
+        final long at;
+
+        CachedResult(boolean alive, long at) {
+            this.alive = alive;
+            this.at = at;
+        }
+    }
+
+    private static final class Probe {
+        final String key;
+        final String peerName;
+        final InetSocketAddress address;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        SocketChannel channel;
+        long deadline;
+        boolean done;
+
+        Probe(String key, String peerName, InetSocketAddress address) {
+            this.key = key;
+            this.peerName = peerName;
+            this.address = address;
+        }
+    }
+
+    private LivenessProber() {
+        super("Liveness-Prober");
+        setDaemon(true);
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open selector for liveness probes", e);
+        }
+        start();
+    }
+
+    public static LivenessProber getInstance() {
+        return INSTANCE;
+    }
+
+    /** Non-blocking: returns a future that completes with the probe result. */
+    public CompletableFuture<Boolean> probe(PeerNode peer) {
+        String key = key(peer);
+        CachedResult cached = cache.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.at < CACHE_TTL_MS) {
+            return CompletableFuture.completedFuture(cached.alive);
+        }
+
+        Probe probe = new Probe(key, peer.getName(), new InetSocketAddress(peer.getIpAddress(), peer.getTcpPort()));
+        CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, probe.future);
+        if (existing != null) {
+            return existing;
+        }
+        submitted.add(probe);
+        selector.wakeup();
+        return probe.future;
+    }
+
+    /** Start probes for all of these peers so later isAlive() calls find them in flight or cached. */
+    public void probeAll(Collection<PeerNode> peers) {
+        for (PeerNode p : peers) {
+            probe(p);
+        }
+    }
+
+    /** Last known result if still fresh; never blocks or starts a probe. */
+    public Optional<Boolean> cached(PeerNode peer) {
+        CachedResult cached = cache.get(key(peer));
+        if (cached == null || System.currentTimeMillis() - cached.at >= CACHE_TTL_MS) {
+            return Optional.empty();
+        }
+        return Optional.of(cached.alive);
+    }
+
+    /** Blocking convenience for callers that need the answer now. */
+    public boolean isAlive(PeerNode peer) {
+        try {
+            return probe(peer).get(CONNECT_TIMEOUT_MS + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Probe p;
+                while ((p = submitted.poll()) != null) {
+                    waiting.add(p);
+                }
+                while (active < MAX_CONCURRENT && !waiting.isEmpty()) {
+                    startConnect(waiting.poll());
+                }
+
+                selector.select(100);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Probe probe = (Probe) key.attachment();
+                    boolean alive;
+                    try {
+                        alive = probe.channel.finishConnect();
+                    } catch (IOException e) {
+                        alive = false;
+                    }
+                    finish(probe, alive);
+                }
+
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : selector.keys()) {
+                    Probe probe = (Probe) key.attachment();
+                    if (key.isValid() && probe != null && now >= probe.deadline) {
+                        finish(probe, false);
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Liveness prober error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void startConnect(Probe probe) {
+        try {
+            probe.channel = SocketChannel.open();
+            active++;
+            probe.channel.configureBlocking(false);
+            probe.deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            if (probe.channel.connect(probe.address)) {
+                finish(probe, true);
+            } else {
+                probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            }
+        } catch (IOException e) {
+            finish(probe, false);
+        }
+    }
+
+    private void finish(Probe probe, boolean alive) {
+        if (probe.done) {
+            return;
+        }
+        probe.done = true;
+        if (probe.channel != null) {
+            SelectionKey key = probe.channel.keyFor(selector);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                probe.channel.close();
+            } catch (IOException ignored) {
+            }
+            probe.channel = null;
+            active--;
+        }
+        if (!alive) {
+            System.out.println("Peer " + probe.peerName + " is not reachable at " + probe.address.getHostString() + ":"
+                    + probe.address.getPort());
+        }
+        cache.put(probe.key, new CachedResult(alive, System.currentTimeMillis()));
+        inFlight.remove(probe.key, probe.future);
+        probe.future.complete(alive);
+    }
+
+    private static String key(PeerNode peer) {
+        return peer.getIpAddress() + ":" + peer.getTcpPort();
+    }
+}
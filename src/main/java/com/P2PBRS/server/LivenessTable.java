@@ -0,0 +1,163 @@
+package com.P2PBRS.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Heartbeat state for every registered peer, indexed by a small integer peer ID.
+ *
+ * Recording a heartbeat is a check that the ID is still the peer's, two volatile
+ * array writes and queueing the ID for the failure detector: no lock, no allocation.
+ * The detector drains that queue each tick, so its work follows the peers that
+ * checked in, not the size of the fleet.
+ * Last-seen values are System.nanoTime() readings (0 = no heartbeat yet).
+ * IDs are handed out on registration and reused after deregistration.
+ */
+public class LivenessTable {
+    private final AtomicLongArray lastSeenNanos;
+    private final AtomicIntegerArray chunkCounts;
+    private final AtomicReferenceArray<String> names;
+    private final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Integer> freeIds = new ConcurrentLinkedQueue<>();
+    private int nextId; // guarded by this
+
+    // IDs with a heartbeat the detector has not picked up. An ID is queued at most once
+    // at a time (queued flag), so a ring as large as the table never fills. Many
+    // producers claim slots with changedTail; the single consumer owns changedHead.
+    private final AtomicIntegerArray queued;
+    private final AtomicIntegerArray changed; // id + 1; 0 = free, or claimed but not written yet
+    private final AtomicLong changedTail = new AtomicLong();
+    private long changedHead;
+
+    // Wall clock at nanoTime() == baseNanos, to translate readings for persistence
+    private final long baseNanos = System.nanoTime();
+    private final long baseEpochMs = System.currentTimeMillis();
+
+    public LivenessTable(int capacity) {
+        lastSeenNanos = new AtomicLongArray(capacity);
+        chunkCounts = new AtomicIntegerArray(capacity);
+        names = new AtomicReferenceArray<>(capacity);
+        queued = new AtomicIntegerArray(capacity);
+        changed = new AtomicIntegerArray(capacity);
+    }
+
+    /** Give the peer an ID (or return its existing one); -1 if the table is full. */
+    public synchronized int allocate(String name) {
+        Integer existing = idsByName.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        Integer id = freeIds.poll();
+        if (id == null) {
+            if (nextId == capacity()) {
+                return -1;
+            }
+            id = nextId++;
+        }
+        lastSeenNanos.set(id, 0);
+        chunkCounts.set(id, 0);
+        names.set(id, name);
+        idsByName.put(name, id);
+        return id;
+    }
+
+    public synchronized void release(String name) {
+        Integer id = idsByName.remove(name);
+        if (id != null) {
+            names.set(id, null);
+            lastSeenNanos.set(id, 0);
+            chunkCounts.set(id, 0);
+            freeIds.add(id);
+        }
+    }
+
+    /** Peer ID for this name, or -1 if not registered. */
+    public int idOf(String name) {
+        Integer id = idsByName.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Hot path for HEARTBEAT. Returns false, recording nothing, if the ID no longer
+     * belongs to this peer: it deregistered and the ID went to another peer since the
+     * caller looked it up.
+     */
+    public boolean heartbeat(int id, String name, int chunkCount, long nowNanos) {
+        if (!name.equals(names.get(id))) {
+            return false;
+        }
+        chunkCounts.set(id, chunkCount);
+        lastSeenNanos.set(id, nowNanos);
+        if (name.equals(names.get(id))) {
+            markChanged(id);
+            return true;
+        }
+        // Released and handed out again while we wrote: take the heartbeat back unless
+        // the new peer has already sent its own (allocate resets the slot before naming it)
+        lastSeenNanos.compareAndSet(id, nowNanos, 0);
+        return false;
+    }
+
+    private void markChanged(int id) {
+        if (queued.compareAndSet(id, 0, 1)) {
+            long slot = changedTail.getAndIncrement();
+            changed.set((int) (slot % changed.length()), id + 1);
+        }
+    }
+
+    /**
+     * Hand each ID that got a heartbeat since the last call to action, once. Single
+     * consumer (the detector thread). A heartbeat that lands while its ID is being
+     * handed over queues the ID again for the next call.
+     */
+    public void drainChanged(IntConsumer action) {
+        int n = changed.length();
+        while (true) {
+            int slot = (int) (changedHead % n);
+            int entry = changed.get(slot);
+            if (entry == 0) {
+                return; // empty, or a producer claimed the slot and is about to write it
+            }
+            changed.set(slot, 0);
+            changedHead++;
+            queued.set(entry - 1, 0); // before the caller reads last-seen
+            action.accept(entry - 1);
+        }
+    }
+
+    public int capacity() {
+        return lastSeenNanos.length();
+    }
+
+    public long lastSeenNanos(int id) {
+        return lastSeenNanos.get(id);
+    }
+
+    public int chunkCount(int id) {
+        return chunkCounts.get(id);
+    }
+
+    public String nameOf(int id) {
+        return names.get(id);
+    }
+
+    /** Wall-clock time of the peer's last heartbeat, or -1 if none since startup. */
+    public long lastSeenEpochMs(String name) {
+        int id = idOf(name);
+        if (id < 0) {
+            return -1;
+        }
+        long seen = lastSeenNanos.get(id);
+        return seen == 0 ? -1 : toEpochMs(seen);
+    }
+
+    public long toEpochMs(long nanos) {
+        return baseEpochMs + (nanos - baseNanos) / 1_000_000;
+    }
+}
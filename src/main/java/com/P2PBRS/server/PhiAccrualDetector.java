@@ -0,0 +1,137 @@
+package com.P2PBRS.server;
+
+/**
+ * Phi-accrual failure detector for one peer.
+ *
+ * Keeps a sliding window of heartbeat inter-arrival times and reports phi, the
+ * -log10 probability that a heartbeat this late would still arrive, assuming
+ * inter-arrival times are normally distributed. phi 1 ~ 10% chance the peer is
+ * fine, phi 8 ~ 1 in 100 million.
+ */
+public class PhiAccrualDetector {
+
+    private final long[] intervals;
+    private final long minStdDevMs;
+    private final long acceptablePauseMs;
+
+    private int count;
+    private int next;
+    private double sum;
+    private double sumSquares;
+    private long lastHeartbeatMs = -1;
+    private boolean bootstrapped = true;
+    private boolean skipNextInterval;
+
+    /**
+     * @param windowSize        number of inter-arrival samples kept
+     * @param firstIntervalMs   expected interval used before any samples exist
+     * @param minStdDevMs       lower bound on the standard deviation, so a very regular
+     *                          peer is not declared dead on the first small delay
+     * @param acceptablePauseMs extra time tolerated on top of the mean (GC pauses, hiccups)
+     */
+    public PhiAccrualDetector(int windowSize, long firstIntervalMs, long minStdDevMs, long acceptablePauseMs) {
+        this.intervals = new long[windowSize];
+        this.minStdDevMs = minStdDevMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+
+        // Bootstrap with two samples around the expected interval (mean = firstInterval,
+        // stddev = firstInterval / 4) until real heartbeats replace them
+        long sd = firstIntervalMs / 4;
+        add(firstIntervalMs - sd);
+        add(firstIntervalMs + sd);
+    }
+
+    public synchronized void heartbeat(long nowMs) {
+        if (lastHeartbeatMs >= 0 && !skipNextInterval) {
+            long interval = nowMs - lastHeartbeatMs;
+            if (interval > 0) {
+                if (bootstrapped) {
+                    // First real sample replaces the bootstrap estimate
+                    count = 0;
+                    next = 0;
+                    sum = 0;
+                    sumSquares = 0;
+                    bootstrapped = false;
+                }
+                add(interval);
+            }
+        }
+        skipNextInterval = false;
+        lastHeartbeatMs = nowMs;
+    }
+
+    /**
+     * Start the clock at nowMs without recording an interval, e.g. on registration,
+     * which is not on the peer's heartbeat schedule.
+     */
+    public synchronized void start(long nowMs) {
+        lastHeartbeatMs = nowMs;
+        skipNextInterval = true;
+    }
+
+    public synchronized long getLastHeartbeatMs() {
+        return lastHeartbeatMs;
+    }
+
+    public synchronized double phi(long nowMs) {
+        if (lastHeartbeatMs < 0)
+            return 0.0;
+        return phi(nowMs - lastHeartbeatMs, mean() + acceptablePauseMs, stdDev());
+    }
+
+    /** Time since the last heartbeat at which phi reaches the threshold. */
+    public synchronized long timeToPhi(double threshold) {
+        double mean = mean() + acceptablePauseMs;
+        double sd = stdDev();
+
+        // phi is monotonic in elapsed time, so bisect
+        double lo = 0;
+        double hi = mean + 50 * sd;
+        for (int i = 0; i < 40 && hi - lo > 1; i++) {
+            double mid = (lo + hi) / 2;
+            if (phi(mid, mean, sd) < threshold)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return (long) Math.ceil(hi);
+    }
+
+    /** Absolute time at which phi reaches the threshold, given the last heartbeat. */
+    public synchronized long deadlineFor(double threshold) {
+        return lastHeartbeatMs + timeToPhi(threshold);
+    }
+
+    public synchronized double mean() {
+        return sum / count;
+    }
+
+    public synchronized double stdDev() {
+        double mean = sum / count;
+        double variance = Math.max(0, sumSquares / count - mean * mean);
+        return Math.max(Math.sqrt(variance), minStdDevMs);
+    }
+
+    private void add(long interval) {
+        if (count == intervals.length) {
+            long dropped = intervals[next];
+            sum -= dropped;
+            sumSquares -= (double) dropped * dropped;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumSquares += (double) interval * interval;
+    }
+
+    // Logistic approximation of the normal CDF (error < 0.0002), as used by Akka/Cassandra
+    private static double phi(double elapsed, double mean, double sd) {
+        double y = (elapsed - mean) / sd;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean)
+            return -Math.log10(e / (1.0 + e));
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
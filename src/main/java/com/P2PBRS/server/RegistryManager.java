@@ -8,6 +8,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -16,12 +18,14 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.LoaderOptions;
 import org.yaml.snakeyaml.Yaml;
 
+import com.P2PBRS.common.MerkleInventory;
 import com.P2PBRS.peer.PeerNode;
 
 public class RegistryManager {
@@ -37,6 +41,15 @@ public class RegistryManager {
     private final Map<String, Map<Integer, String>> fileChunkOwners = new ConcurrentHashMap<>(); // fileName -> (chunkId -> peerName)
     private final Map<String, Set<String>> peerStoredChunks = new ConcurrentHashMap<>(); // peerName -> Set<fileName:chunkId>
 
+    // What we believe each peer stores, as a Merkle tree comparable with the peer's own
+    private final Map<String, MerkleInventory> inventoryViews = new ConcurrentHashMap<>();
+
+    // Heartbeat timestamps and chunk counts live here, not in PeerNode, so HEARTBEAT needs no lock
+    private final LivenessTable liveness = new LivenessTable(maxPeers);
+
+    // Bumped on every join/leave; peers echo it in one-way heartbeats to learn they are behind
+    private final AtomicLong membershipEpoch = new AtomicLong();
+
 
     private RegistryManager() {
         DumperOptions opts = new DumperOptions();
@@ -56,6 +69,14 @@ public class RegistryManager {
         return INSTANCE;
     }
 
+    public LivenessTable liveness() {
+        return liveness;
+    }
+
+    public long membershipEpoch() {
+        return membershipEpoch.get();
+    }
+
     public Result registerPeer(PeerNode peer) {
         rw.writeLock().lock();
         try {
@@ -74,6 +95,8 @@ public class RegistryManager {
             }
 
             peersByName.put(peer.getName(), peer);
+            liveness.allocate(peer.getName());
+            membershipEpoch.incrementAndGet();
             persist();
             return Result.ok();
         } finally {
@@ -97,6 +120,8 @@ public class RegistryManager {
             if (removed == null) {
                 return Result.error("ERROR: Name not registered");
             }
+            liveness.release(name);
+            membershipEpoch.incrementAndGet();
             persist();
             return Result.ok();
         } finally {
@@ -147,6 +172,7 @@ public class RegistryManager {
         try {
             PeerNode peer = peersByName.get(name);
             if (peer != null) {
+                syncFromLiveness(peer);
                 System.out.println("=== DEBUG Peer " + name + " ===");
                 System.out.println("  - IP: " + peer.getIpAddress());
                 System.out.println("  - UDP Port: " + peer.getUdpPort());
@@ -200,6 +226,7 @@ public class RegistryManager {
                     );
                     p.setRegisteredAt(asString(m.get("registeredAt")));
                     peersByName.put(name, p);
+                    liveness.allocate(name);
                     p.setNumberChunksStored(asInt(m.get("numberChunksStored")));
 
                     String ts = asString(m.get("lastTimestamp"));
@@ -244,6 +271,7 @@ public class RegistryManager {
             peersOut.put(p.getName(), m);
             
             //Variables of Heartbeat
+            syncFromLiveness(p);
             m.put("numberChunksStored", p.getNumberChunksStored());
             m.put("lastTimestamp", p.getLastTimestamp() == null ? null : p.getLastTimestamp().toString());
             m.put("lastHeartbeatTime", p.getLastHeartbeatTime());
@@ -258,6 +286,16 @@ public class RegistryManager {
         }
     }
 
+    // Copy the latest heartbeat values into the PeerNode (off the heartbeat path)
+    private void syncFromLiveness(PeerNode p) {
+        int id = liveness.idOf(p.getName());
+        if (id < 0 || liveness.lastSeenNanos(id) == 0) {
+            return; // no heartbeat since startup: keep what was loaded from disk
+        }
+        p.setNumberChunksStored(liveness.chunkCount(id));
+        p.setLastTimestamp(Instant.ofEpochMilli(liveness.toEpochMs(liveness.lastSeenNanos(id))));
+    }
+
     private static String asString(Object o) { return o == null ? null : String.valueOf(o); }
     private static int asInt(Object o) { return o == null ? 0 : Integer.parseInt(String.valueOf(o)); }
 
@@ -280,6 +318,7 @@ public class RegistryManager {
             String chunkKey = fileName + ":" + chunkId;
             peerStoredChunks.computeIfAbsent(peerName, k -> ConcurrentHashMap.newKeySet())
                         .add(chunkKey);
+            inventoryView(peerName).put(fileName, chunkId, MerkleInventory.UNKNOWN_CRC);
             
             persist();
         } finally {
@@ -287,6 +326,26 @@ public class RegistryManager {
         }
     }
 
+    public void registerChunkStorage(String fileName, Map<String, List<Integer>> chunksByPeer) {
+        rw.writeLock().lock();
+        try {
+            Map<Integer, String> chunkMap = fileChunkOwners.computeIfAbsent(fileName, k -> new ConcurrentHashMap<>());
+            for (Map.Entry<String, List<Integer>> e : chunksByPeer.entrySet()) {
+                Set<String> stored = peerStoredChunks.computeIfAbsent(e.getKey(), k -> ConcurrentHashMap.newKeySet());
+                MerkleInventory view = inventoryView(e.getKey());
+                for (int chunkId : e.getValue()) {
+                    chunkMap.put(chunkId, e.getKey());
+                    stored.add(fileName + ":" + chunkId);
+                    view.put(fileName, chunkId, MerkleInventory.UNKNOWN_CRC); // crc learned via anti-entropy
+                }
+            }
+
+            persist();
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
     public void unregisterChunkStorage(String fileName, int chunkId, String peerName) {
         rw.writeLock().lock();
         try {
@@ -308,6 +367,10 @@ public class RegistryManager {
                     peerStoredChunks.remove(peerName);
                 }
             }
+            MerkleInventory view = inventoryViews.get(peerName);
+            if (view != null) {
+                view.remove(fileName, chunkId);
+            }
             
             persist();
         } finally {
@@ -325,6 +388,22 @@ public class RegistryManager {
         }
     }
 
+    /** Highest chunk id tracked for the file, or -1. */
+    public int maxChunkId(String fileName) {
+        rw.readLock().lock();
+        try {
+            Map<Integer, String> chunkMap = fileChunkOwners.get(fileName);
+            int max = -1;
+            if (chunkMap != null) {
+                for (int id : chunkMap.keySet())
+                    max = Math.max(max, id);
+            }
+            return max;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
     public Set<String> getChunksStoredByPeer(String peerName) {
         rw.readLock().lock();
         try {
@@ -339,6 +418,7 @@ public class RegistryManager {
         rw.writeLock().lock();
         try {
             // Remove all chunk references for a failed peer
+            inventoryViews.remove(peerName);
             Set<String> chunks = peerStoredChunks.remove(peerName);
             if (chunks != null) {
                 System.out.println("Removing " + chunks.size() + " chunk locations for peer: " + peerName);
@@ -370,4 +450,115 @@ public class RegistryManager {
             rw.writeLock().unlock();
         }
     }
+
+    private MerkleInventory inventoryView(String peerName) {
+        return inventoryViews.computeIfAbsent(peerName, k -> new MerkleInventory());
+    }
+
+    public long inventoryRoot(String peerName) {
+        MerkleInventory view = inventoryViews.get(peerName);
+        return view == null ? 0 : view.root();
+    }
+
+    public long[] inventoryGroupHashes(String peerName) {
+        return inventoryView(peerName).groupHashes();
+    }
+
+    public long[] inventoryLeafHashes(String peerName, int group) {
+        return inventoryView(peerName).leafHashes(group);
+    }
+
+    /**
+     * Reconcile one leaf of a peer's inventory with what the peer reported for it:
+     * chunks we had but the peer doesn't are dropped from the chunk index, reported
+     * chunks we didn't know about are added, and the reported crcs are kept.
+     * Returns {added, removed}.
+     */
+    public int[] applyInventoryLeaf(String peerName, int leaf, List<MerkleInventory.Entry> reported) {
+        rw.writeLock().lock();
+        try {
+            MerkleInventory view = inventoryView(peerName);
+            int[] changes = reconcile(peerName, view.entries(leaf), reported);
+            view.replaceLeaf(leaf, reported);
+            if (changes[0] > 0 || changes[1] > 0) {
+                persist();
+            }
+            return changes;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replace everything we know about a peer's chunks with its full inventory report,
+     * in one batch with a single persist. Returns {added, removed}.
+     */
+    public int[] ingestInventoryReport(String peerName, List<MerkleInventory.Entry> reported) {
+        rw.writeLock().lock();
+        try {
+            MerkleInventory view = inventoryView(peerName);
+            List<MerkleInventory.Entry> previous = new ArrayList<>();
+            for (int leaf = 0; leaf < MerkleInventory.LEAVES; leaf++) {
+                previous.addAll(view.entries(leaf));
+            }
+            // Chunks in the index that the view never saw (e.g. loaded before views existed)
+            for (String chunkKey : peerStoredChunks.getOrDefault(peerName, Collections.emptySet())) {
+                int sep = chunkKey.lastIndexOf(':');
+                String fileName = chunkKey.substring(0, sep);
+                int chunkId = Integer.parseInt(chunkKey.substring(sep + 1));
+                if (!view.contains(fileName, chunkId)) {
+                    previous.add(new MerkleInventory.Entry(fileName, chunkId, MerkleInventory.UNKNOWN_CRC));
+                }
+            }
+
+            int[] changes = reconcile(peerName, previous, reported);
+            view.clear();
+            for (MerkleInventory.Entry e : reported) {
+                view.put(e.fileName, e.chunkId, e.crc);
+            }
+            persist();
+            return changes;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    // Caller holds the write lock
+    private int[] reconcile(String peerName, List<MerkleInventory.Entry> previous, List<MerkleInventory.Entry> reported) {
+        Set<String> reportedKeys = new HashSet<>();
+        for (MerkleInventory.Entry e : reported) {
+            reportedKeys.add(e.fileName + ":" + e.chunkId);
+        }
+
+        int removed = 0;
+        Set<String> stored = peerStoredChunks.computeIfAbsent(peerName, k -> ConcurrentHashMap.newKeySet());
+        for (MerkleInventory.Entry e : previous) {
+            String chunkKey = e.fileName + ":" + e.chunkId;
+            if (reportedKeys.contains(chunkKey)) {
+                continue;
+            }
+            stored.remove(chunkKey);
+            Map<Integer, String> chunkMap = fileChunkOwners.get(e.fileName);
+            if (chunkMap != null && peerName.equals(chunkMap.get(e.chunkId))) {
+                chunkMap.remove(e.chunkId);
+                if (chunkMap.isEmpty()) {
+                    fileChunkOwners.remove(e.fileName);
+                }
+            }
+            removed++;
+        }
+
+        int added = 0;
+        for (MerkleInventory.Entry e : reported) {
+            if (stored.add(e.fileName + ":" + e.chunkId)) {
+                added++;
+            }
+            Map<Integer, String> chunkMap = fileChunkOwners.computeIfAbsent(e.fileName, k -> new ConcurrentHashMap<>());
+            String current = chunkMap.get(e.chunkId);
+            if (current == null || !peersByName.containsKey(current)) {
+                chunkMap.put(e.chunkId, peerName);
+            }
+        }
+        return new int[] { added, removed };
+    }
 }
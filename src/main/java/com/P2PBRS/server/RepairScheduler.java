@@ -0,0 +1,530 @@
+package com.P2PBRS.server;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.P2PBRS.common.Config;
+import com.P2PBRS.common.TokenBucket;
+import com.P2PBRS.peer.PeerNode;
+import com.P2PBRS.server.ClientHandler.BackupManager;
+
+/**
+ * Schedules chunk repairs after a peer goes down.
+ *
+ * Failed peers are expanded into one task per lost chunk on this thread, not the
+ * heartbeat thread. Tasks wait in a priority queue (fewest live replicas first),
+ * are dispatched as REPLICATE_REQ within per-peer concurrency and bandwidth limits,
+ * and stay outstanding until the source peer reports REPLICATE_DONE. Timed-out
+ * repairs are retried with a different target.
+ */
+public class RepairScheduler extends Thread {
+    private static final RepairScheduler INSTANCE = new RepairScheduler();
+
+    private static final long RECOVERY_COOLDOWN_MS = 30_000; // don't recover the same peer twice within 30 s
+    private static final long REPAIR_TIMEOUT_MS = Config.getLong("p2pbrs.repair.timeoutMs", 30_000);
+    private static final int MAX_ATTEMPTS = Config.getInt("p2pbrs.repair.maxAttempts", 3);
+    private static final int MAX_PER_SOURCE = Config.getInt("p2pbrs.repair.maxPerSource", 4);
+    private static final int MAX_PER_TARGET = Config.getInt("p2pbrs.repair.maxPerTarget", 4);
+    private static final double PEER_BYTES_PER_SEC = Config.getDouble("p2pbrs.repair.peerBytesPerSec", 4 * 1024 * 1024);
+    private static final double WARMUP_REPAIRS_PER_SEC = Config.getDouble("p2pbrs.repair.warmupRatePerSec", 2.0);
+    private static final int SCAN_LIMIT = 256; // tasks looked at per dispatch round
+    private static final long LOOP_MS = 200;
+
+    private final RegistryManager registry = RegistryManager.getInstance();
+    private final LivenessProber prober = LivenessProber.getInstance();
+
+    private final ConcurrentLinkedQueue<String> failedPeers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<String[]> completions = new ConcurrentLinkedQueue<>();
+    private final Map<String, Long> cooldownUntil = new ConcurrentHashMap<>();
+
+    // Dispatcher thread only
+    private final PriorityQueue<RepairTask> queue = new PriorityQueue<>(
+            Comparator.comparingInt((RepairTask t) -> t.liveReplicas).thenComparingLong(t -> t.seq));
+    private final Map<String, Outstanding> outstanding = new HashMap<>();
+    private final Map<String, Integer> inFlightBySource = new HashMap<>();
+    private final Map<String, Integer> inFlightByTarget = new HashMap<>();
+    private final Map<String, TokenBucket> peerBandwidth = new HashMap<>();
+    // Fleet-wide cap on repairs started, only enforced until fleetLimitUntil (server warm-up)
+    private final TokenBucket fleetRate = new TokenBucket(WARMUP_REPAIRS_PER_SEC, Math.max(1, WARMUP_REPAIRS_PER_SEC));
+    private volatile long fleetLimitUntil;
+    private final ArrayDeque<Long> completionTimes = new ArrayDeque<>();
+    private long nextSeq;
+
+    // Exposed through REPAIR_STATUS
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger outstandingCount = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private volatile double completedPerMinute;
+
+    // Repairs are the server's own requests, so it numbers them itself
+    private final AtomicInteger requestIds = new AtomicInteger((int) (System.currentTimeMillis() % 1000000));
+    private volatile DatagramSocket socket; // the UDP server's socket, for REPLICATE_REQ
+
+    private static final class RepairTask {
+        final String owner;
+        final String fileName;
+        final int chunkId;
+        final int chunkSize;
+        final String failedPeer;
+        final Set<String> triedTargets = new HashSet<>();
+        int liveReplicas;
+        int attempts;
+        long seq;
+
+        RepairTask(String owner, String fileName, int chunkId, int chunkSize, String failedPeer) {
+            this.owner = owner;
+            this.fileName = fileName;
+            this.chunkId = chunkId;
+            this.chunkSize = chunkSize;
+            this.failedPeer = failedPeer;
+        }
+
+        String key() {
+            return fileName + ":" + chunkId;
+        }
+    }
+
+    private static final class Outstanding {
+        final RepairTask task;
+        final String source;
+        final String target;
+        final long sentAt;
+
+        Outstanding(RepairTask task, String source, String target, long sentAt) {
+            this.task = task;
+            this.source = source;
+            this.target = target;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /** Outcome of looking for a peer to copy a chunk from. */
+    private static final class SourceLookup {
+        enum Kind {
+            FOUND, PENDING, NONE // PENDING: liveness not known yet, a probe is running
+        }
+
+        static final SourceLookup PENDING = new SourceLookup(Kind.PENDING, null);
+        static final SourceLookup NONE = new SourceLookup(Kind.NONE, null);
+
+        final Kind kind;
+        final String peer; // when FOUND
+
+        private SourceLookup(Kind kind, String peer) {
+            this.kind = kind;
+            this.peer = peer;
+        }
+
+        static SourceLookup found(String peer) {
+            return new SourceLookup(Kind.FOUND, peer);
+        }
+    }
+
+    private RepairScheduler() {
+        super("Repair-Scheduler");
+        setDaemon(true);
+    }
+
+    public static RepairScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /** Start dispatching; REPLICATE_REQ goes out from the given (server) socket. */
+    public void start(DatagramSocket socket) {
+        this.socket = socket;
+        start();
+    }
+
+    /** Hold all repairs to p2pbrs.repair.warmupRatePerSec until the given time. */
+    public void limitFleetRate(long untilMs) {
+        fleetLimitUntil = untilMs;
+        System.out.println("Repairs limited to " + WARMUP_REPAIRS_PER_SEC + "/s fleet-wide for "
+                + (untilMs - System.currentTimeMillis()) / 1000 + " s");
+    }
+
+    /** Called by the failure detector; returns immediately. */
+    public void peerFailed(String peerName) {
+        long now = System.currentTimeMillis();
+        Long until = cooldownUntil.get(peerName);
+        if (until != null && until > now) {
+            System.out.println("Recovery for " + peerName + " already ran recently; skipping");
+            return;
+        }
+        cooldownUntil.put(peerName, now + RECOVERY_COOLDOWN_MS);
+        failedPeers.add(peerName);
+    }
+
+    public boolean isRecovering(String peerName) {
+        Long until = cooldownUntil.get(peerName);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    /** Called when a source peer reports REPLICATE_DONE. */
+    public void onReplicateDone(String fileName, int chunkId, String targetPeer) {
+        completions.add(new String[] { fileName, String.valueOf(chunkId), targetPeer });
+    }
+
+    public String status() {
+        return String.format("queued=%d outstanding=%d completed=%d failed=%d retried=%d rate=%.1f/min%s",
+                queueDepth.get(), outstandingCount.get(), completed.get(), failed.get(), retried.get(),
+                completedPerMinute, System.currentTimeMillis() < fleetLimitUntil ? " warmup" : "");
+    }
+
+    @Override
+    public void run() {
+        long lastReport = 0;
+        while (true) {
+            try {
+                long now = System.currentTimeMillis();
+
+                String failedPeer;
+                while ((failedPeer = failedPeers.poll()) != null) {
+                    expandFailedPeer(failedPeer);
+                }
+
+                String[] done;
+                while ((done = completions.poll()) != null) {
+                    complete(done[0], Integer.parseInt(done[1]), done[2], now);
+                }
+
+                expireOutstanding(now);
+                dispatch(now);
+                updateRate(now);
+
+                queueDepth.set(queue.size());
+                outstandingCount.set(outstanding.size());
+                if ((!queue.isEmpty() || !outstanding.isEmpty()) && now - lastReport > 5000) {
+                    System.out.println("Repair status: " + status());
+                    lastReport = now;
+                }
+
+                Thread.sleep(LOOP_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                System.err.println("Repair scheduler error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void expandFailedPeer(String failedPeerName) {
+        System.out.println("Triggering recovery for failed peer: " + failedPeerName);
+
+        // Remove the failed peer's chunk locations
+        registry.removeChunkLocationsForPeer(failedPeerName);
+
+        // Probe every candidate source/target in parallel up front
+        prober.probeAll(registry.listPeers());
+
+        int total = 0;
+        for (BackupManager.Plan plan : BackupManager.getInstance().getPlans().values()) {
+            for (Map.Entry<Integer, PeerNode> entry : plan.placement.entrySet()) {
+                if (!entry.getValue().getName().equals(failedPeerName)) {
+                    continue;
+                }
+                RepairTask task = new RepairTask(plan.owner, plan.fileName, entry.getKey(), plan.chunkSize,
+                        failedPeerName);
+                task.liveReplicas = countLiveReplicas(task);
+                task.seq = nextSeq++;
+                queue.add(task);
+                total++;
+            }
+        }
+        System.out.println("Queued " + total + " chunk repairs for failed peer " + failedPeerName);
+    }
+
+    private void complete(String fileName, int chunkId, String targetPeer, long now) {
+        Outstanding o = outstanding.remove(fileName + ":" + chunkId);
+        if (o == null) {
+            return; // manual REPLICATE_REQ or already timed out
+        }
+        release(o);
+        completed.incrementAndGet();
+        completionTimes.addLast(now);
+        System.out.println("Repair completed: " + fileName + " chunk " + chunkId + " -> " + targetPeer + " in "
+                + (now - o.sentAt) + " ms");
+    }
+
+    private void expireOutstanding(long now) {
+        Iterator<Map.Entry<String, Outstanding>> it = outstanding.entrySet().iterator();
+        while (it.hasNext()) {
+            Outstanding o = it.next().getValue();
+            if (now - o.sentAt < REPAIR_TIMEOUT_MS) {
+                continue;
+            }
+            it.remove();
+            release(o);
+            RepairTask task = o.task;
+            System.err.println("Repair timed out: " + task.fileName + " chunk " + task.chunkId + " " + o.source + " -> "
+                    + o.target);
+            if (task.attempts >= MAX_ATTEMPTS) {
+                failed.incrementAndGet();
+                System.err.println("Giving up on " + task.fileName + " chunk " + task.chunkId + " after "
+                        + task.attempts + " attempts");
+            } else {
+                // Retry elsewhere: the timed-out target is excluded from now on
+                retried.incrementAndGet();
+                task.liveReplicas = countLiveReplicas(task);
+                queue.add(task);
+            }
+        }
+    }
+
+    private void dispatch(long now) {
+        List<RepairTask> deferred = new ArrayList<>();
+        int scanned = 0;
+
+        while (!queue.isEmpty() && scanned < SCAN_LIMIT) {
+            RepairTask task = queue.poll();
+            scanned++;
+
+            if (outstanding.containsKey(task.key())) {
+                continue; // duplicate of a repair already in flight
+            }
+
+            SourceLookup lookup = findPeerWithChunk(task);
+            if (lookup.kind == SourceLookup.Kind.NONE) {
+                failed.incrementAndGet();
+                System.err.println("Recovery impossible: No available source for " + task.fileName + " chunk "
+                        + task.chunkId);
+                System.err.println("   Chunk is permanently lost (only copy was on failed peer)");
+                continue;
+            }
+            if (lookup.kind == SourceLookup.Kind.PENDING) {
+                deferred.add(task);
+                continue;
+            }
+            String source = lookup.peer;
+
+            String target = selectNewStoragePeer(task, source);
+            if (target == null) {
+                if (!hasAnyTargetCandidate(task, source)) {
+                    failed.incrementAndGet();
+                    System.err.println("No available peer to store chunk " + task.chunkId + " of " + task.fileName);
+                } else {
+                    deferred.add(task); // everyone is at their limit right now
+                }
+                continue;
+            }
+
+            TokenBucket sourceBw = bandwidth(source);
+            TokenBucket targetBw = bandwidth(target);
+            if (inFlight(inFlightBySource, source) >= MAX_PER_SOURCE || !sourceBw.canAcquire(task.chunkSize)
+                    || !targetBw.canAcquire(task.chunkSize)) {
+                deferred.add(task);
+                continue;
+            }
+            if (now < fleetLimitUntil && !fleetRate.tryAcquire(1)) {
+                deferred.add(task);
+                break; // fleet budget for this round is spent
+            }
+            sourceBw.tryAcquire(task.chunkSize);
+            targetBw.tryAcquire(task.chunkSize);
+
+            if (!sendReplicateRequest(source, task.fileName, task.chunkId, target)) {
+                deferred.add(task);
+                continue;
+            }
+            task.attempts++;
+            task.triedTargets.add(target);
+            outstanding.put(task.key(), new Outstanding(task, source, target, now));
+            inFlightBySource.merge(source, 1, Integer::sum);
+            inFlightByTarget.merge(target, 1, Integer::sum);
+            System.out.println("Recovery scheduled: " + task.fileName + " chunk " + task.chunkId + " from " + source
+                    + " to " + target + " (live replicas " + task.liveReplicas + ", attempt " + task.attempts + ")");
+        }
+
+        queue.addAll(deferred);
+    }
+
+    private void release(Outstanding o) {
+        inFlightBySource.computeIfPresent(o.source, (k, v) -> v > 1 ? v - 1 : null);
+        inFlightByTarget.computeIfPresent(o.target, (k, v) -> v > 1 ? v - 1 : null);
+    }
+
+    private void updateRate(long now) {
+        while (!completionTimes.isEmpty() && now - completionTimes.peekFirst() > 60_000) {
+            completionTimes.pollFirst();
+        }
+        completedPerMinute = completionTimes.size();
+    }
+
+    private static int inFlight(Map<String, Integer> counts, String peer) {
+        return counts.getOrDefault(peer, 0);
+    }
+
+    private TokenBucket bandwidth(String peer) {
+        return peerBandwidth.computeIfAbsent(peer, k -> new TokenBucket(PEER_BYTES_PER_SEC, PEER_BYTES_PER_SEC));
+    }
+
+    /** TRUE/FALSE if known; null if a probe was started and the answer isn't in yet. */
+    private Boolean alive(PeerNode peer) {
+        Optional<Boolean> cached = prober.cached(peer);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        prober.probe(peer);
+        return null;
+    }
+
+    private int countLiveReplicas(RepairTask task) {
+        int live = 0;
+        for (String peerName : findAllPeersWithChunk(task.fileName, task.chunkId, task.failedPeer)) {
+            Optional<PeerNode> peer = registry.getPeer(peerName);
+            if (peer.isPresent() && !Boolean.FALSE.equals(alive(peer.get()))) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    private SourceLookup findPeerWithChunk(RepairTask task) {
+        // FIRST: Try to find the chunk using RegistryManager's chunk tracking
+        String chunkPeer = registry.findPeerWithChunk(task.fileName, task.chunkId);
+        if (chunkPeer != null && !chunkPeer.equals(task.failedPeer)) {
+            Optional<PeerNode> peerNode = registry.getPeer(chunkPeer);
+            if (peerNode.isPresent()) {
+                Boolean alive = alive(peerNode.get());
+                if (alive == null) {
+                    return SourceLookup.PENDING;
+                }
+                if (alive) {
+                    return SourceLookup.found(chunkPeer);
+                }
+            }
+        }
+
+        // FALLBACK: Use backup plans
+        for (BackupManager.Plan plan : BackupManager.getInstance().getPlans().values()) {
+            if (plan.fileName.equals(task.fileName)) {
+                PeerNode storagePeer = plan.placement.get(task.chunkId);
+                if (storagePeer != null) {
+                    Boolean alive = storagePeer.getName().equals(task.failedPeer) ? Boolean.FALSE : alive(storagePeer);
+                    if (alive == null) {
+                        return SourceLookup.PENDING;
+                    }
+                    if (alive) {
+                        return SourceLookup.found(storagePeer.getName());
+                    }
+                    return findAlternativeStoragePeer(task, storagePeer.getName());
+                }
+            }
+        }
+
+        System.out.println("Could not find source peer for " + task.fileName + " chunk " + task.chunkId);
+        return SourceLookup.NONE;
+    }
+
+    private SourceLookup findAlternativeStoragePeer(RepairTask task, String excludePeer) {
+        // First, try to find which peers actually have this chunk
+        for (String peerName : findAllPeersWithChunk(task.fileName, task.chunkId, excludePeer)) {
+            Optional<PeerNode> peer = registry.getPeer(peerName);
+            if (peer.isPresent()) {
+                Boolean alive = alive(peer.get());
+                if (alive == null) {
+                    return SourceLookup.PENDING;
+                }
+                if (alive) {
+                    return SourceLookup.found(peerName);
+                }
+            }
+        }
+
+        // Nobody live holds it; a peer without the chunk can only answer "Chunk not found"
+        return SourceLookup.NONE;
+    }
+
+    private Set<String> findAllPeersWithChunk(String fileName, int chunkId, String excludePeer) {
+        Set<String> peersWithChunk = new HashSet<>();
+        for (BackupManager.Plan plan : BackupManager.getInstance().getPlans().values()) {
+            if (plan.fileName.equals(fileName)) {
+                PeerNode p = plan.placement.get(chunkId);
+                if (p != null && !p.getName().equals(excludePeer)) {
+                    peersWithChunk.add(p.getName());
+                }
+            }
+        }
+        String tracked = registry.findPeerWithChunk(fileName, chunkId);
+        if (tracked != null && !tracked.equals(excludePeer)) {
+            peersWithChunk.add(tracked);
+        }
+        return peersWithChunk;
+    }
+
+    private List<PeerNode> targetCandidates(RepairTask task, String source) {
+        List<PeerNode> candidates = new ArrayList<>();
+        for (PeerNode peer : registry.listPeers()) {
+            if (!peer.getName().equals(task.owner) &&
+                !peer.getName().equals(task.failedPeer) &&
+                !peer.getName().equals(source) &&
+                ("STORAGE".equals(peer.getRole()) || "BOTH".equals(peer.getRole())) &&
+                HeartbeatHandler.getState(peer.getName()) == HeartbeatHandler.PeerState.ALIVE &&
+                peer.getStorageCapacity() > 0) {
+                candidates.add(peer);
+            }
+        }
+        return candidates;
+    }
+
+    private boolean hasAnyTargetCandidate(RepairTask task, String source) {
+        return !targetCandidates(task, source).isEmpty();
+    }
+
+    private String selectNewStoragePeer(RepairTask task, String source) {
+        List<PeerNode> candidates = targetCandidates(task, source);
+        candidates.removeIf(p -> task.triedTargets.contains(p.getName())
+                || inFlight(inFlightByTarget, p.getName()) >= MAX_PER_TARGET);
+        if (candidates.isEmpty() && !task.triedTargets.isEmpty()) {
+            // Every other target was tried; allow earlier ones again rather than giving up
+            candidates = targetCandidates(task, source);
+            candidates.removeIf(p -> inFlight(inFlightByTarget, p.getName()) >= MAX_PER_TARGET);
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        // Select peer with most available capacity
+        candidates.sort((a, b) -> Integer.compare(b.getStorageCapacity(), a.getStorageCapacity()));
+        return candidates.get(0).getName();
+    }
+
+    private boolean sendReplicateRequest(String sourcePeer, String fileName, int chunkId, String targetPeer) {
+        Optional<PeerNode> sourcePeerNode = registry.getPeer(sourcePeer);
+        if (sourcePeerNode.isEmpty()) {
+            System.err.println("Source peer not found: " + sourcePeer);
+            return false;
+        }
+        PeerNode peer = sourcePeerNode.get();
+        try {
+            String message = String.format("REPLICATE_REQ %d %s %d %s", requestIds.incrementAndGet(), fileName,
+                    chunkId, targetPeer);
+            byte[] data = message.getBytes();
+            socket.send(new DatagramPacket(data, data.length, InetAddress.getByName(peer.getIpAddress()),
+                    peer.getUdpPort()));
+            System.out.println("Sent REPLICATE_REQ to " + sourcePeer + " for " + fileName + " chunk " + chunkId);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to send REPLICATE_REQ to " + sourcePeer + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -1,18 +1,25 @@
 package com.P2PBRS.server;
 
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
 import com.P2PBRS.server.UDPServer;
 
 public class ServerMain {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws SocketException {
         System.out.println("P2PBRS Server Starting...");
 
         UDPServer server = new UDPServer(5000);
+        DatagramSocket udpSocket = server.bind();
         
        //Needed to use the HeartbeatHandler
         Thread serverThread = new Thread(()-> server.start());
         serverThread.start();
         
-        new HeartbeatHandler().start();
+        // TCP side channel (same port number) for responses too large for one datagram
+        ControlStreamServer.getInstance().start(5000, udpSocket);
+
+        new HeartbeatHandler(udpSocket).start();
     }
 
     public static void help() {
@@ -22,6 +29,12 @@ public class ServerMain {
         sb.append("Examples:\n");
         sb.append("  # run server\n");
         sb.append("  5000\n");
+        sb.append("Failure detector (JVM system properties):\n");
+        sb.append("  -Dp2pbrs.phi.suspect=3.0   phi at which a peer is reported SUSPECT\n");
+        sb.append("  -Dp2pbrs.phi.down=8.0      phi at which a peer is declared DOWN and recovered\n");
+        sb.append("  -Dp2pbrs.phi.acceptablePauseMs=1000  pause tolerated on top of the mean interval\n");
+        sb.append("  -Dp2pbrs.heartbeat.warmupIntervals=3  intervals after startup before anyone is declared DOWN\n");
+        sb.append("  -Dp2pbrs.repair.warmupRatePerSec=2    fleet-wide repair rate right after startup\n");
         System.out.println(sb.toString());
     }
 }
@@ -4,6 +4,9 @@ import java.net.DatagramSocket;
 import java.net.SocketException;
 import java.net.DatagramPacket;
 import java.io.IOException;
+import java.util.Arrays;
+
+import com.P2PBRS.network.NetworkUtils;
 
 public class UDPServer {
     private int port;
@@ -13,18 +16,28 @@ public class UDPServer {
         this.port = port;
     }
 
+    /** Binds the port up front so the TCP control channel can send from the same socket. */
+    public DatagramSocket bind() throws SocketException {
+        if (socket == null)
+            socket = new DatagramSocket(port);
+        return socket;
+    }
+
     public void start() {
         try {
-            socket = new DatagramSocket(port);
+            bind();
             System.out.println("UDP Server is running on port " + port);
             System.out.println("Waiting for incoming packets...");
 
+            // One receive buffer; each handler gets a copy of just its datagram
+            byte[] buffer = new byte[NetworkUtils.MAX_UDP_RECEIVE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             while (true) {
-                byte[] buffer = new byte[1024];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                packet.setLength(buffer.length);
                 socket.receive(packet);
 
-                new ClientHandler(packet, socket).start();
+                byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+                new ClientHandler(new DatagramPacket(data, data.length, packet.getSocketAddress()), socket).start();
             }
 
         } catch (Exception e) {
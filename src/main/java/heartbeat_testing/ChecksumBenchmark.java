@@ -0,0 +1,80 @@
+package heartbeat_testing;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.P2PBRS.common.ChecksumAlgorithm;
+
+/**
+ * Chunk checksum throughput per algorithm and chunk size, 4 KB to 1 MB, over heap
+ * arrays (chunks received or encoded) and direct buffers (standing in for the mapped
+ * file regions the uploader checksums).
+ *
+ * Each cell hashes the same 64 MB worth of chunks; the first rounds are warm-up and
+ * the best of the rest is reported in MB/s. One untimed pass over every cell comes
+ * first, so the shared call site is already megamorphic and compiled as such; without
+ * it the first cell after each switch of algorithm measures a deoptimization.
+ *
+ * Not JMH, but steady enough to rank the algorithms: CRC-32C and CRC-32 are
+ * intrinsics and lead by a wide margin, xxh64 (plain Java) follows, SHA-256 trails.
+ */
+public class ChecksumBenchmark {
+
+	private static final int[] CHUNK_SIZES = { 4 << 10, 16 << 10, 64 << 10, 256 << 10, 1 << 20 };
+	private static final long BYTES_PER_ROUND = 64L << 20;
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+
+	private static long sink; // keeps the JIT from dropping the work
+
+	public static void main(String[] args) {
+		byte[] data = new byte[1 << 20];
+		new Random(11).nextBytes(data);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).flip();
+
+		for (ChecksumAlgorithm alg : ChecksumAlgorithm.values())
+			for (int size : CHUNK_SIZES) {
+				run(alg, ByteBuffer.wrap(data), size);
+				run(alg, direct, size);
+			}
+
+		System.out.print(String.format("%-8s %-7s", "alg", "memory"));
+		for (int size : CHUNK_SIZES)
+			System.out.print(String.format(" %10s", (size >> 10) + " KB"));
+		System.out.println("   (MB/s)");
+
+		for (ChecksumAlgorithm alg : ChecksumAlgorithm.values()) {
+			for (boolean heap : new boolean[] { true, false }) {
+				System.out.print(String.format("%-8s %-7s", alg.id, heap ? "heap" : "direct"));
+				for (int size : CHUNK_SIZES)
+					System.out.print(String.format(" %10.0f", run(alg, heap ? ByteBuffer.wrap(data) : direct, size)));
+				System.out.println();
+			}
+		}
+		if (sink == 42)
+			System.out.println();
+	}
+
+	private static double run(ChecksumAlgorithm alg, ByteBuffer data, int size) {
+		int perBuffer = data.capacity() / size;
+		long chunks = BYTES_PER_ROUND / size;
+		ByteBuffer[] slices = new ByteBuffer[perBuffer];
+		for (int i = 0; i < perBuffer; i++) {
+			ByteBuffer b = data.duplicate();
+			b.position(i * size).limit((i + 1) * size);
+			slices[i] = b.slice();
+		}
+
+		double best = 0;
+		for (int r = 0; r < WARMUP_ROUNDS + ROUNDS; r++) {
+			long t0 = System.nanoTime();
+			for (long c = 0; c < chunks; c++)
+				sink += alg.value(slices[(int) (c % perBuffer)]);
+			long t1 = System.nanoTime();
+			if (r >= WARMUP_ROUNDS)
+				best = Math.max(best, BYTES_PER_ROUND / 1048576.0 / ((t1 - t0) / 1e9));
+		}
+		return best;
+	}
+}
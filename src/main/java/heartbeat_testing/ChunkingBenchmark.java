@@ -0,0 +1,139 @@
+package heartbeat_testing;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.P2PBRS.peer.FastCdcChunker;
+
+/**
+ * Fixed-size vs content-defined (FastCDC) chunking:
+ *  - throughput: boundary detection alone, and with the SHA-256 of every chunk
+ *  - dedup: share of a new version's bytes already stored from the old version,
+ *    for a one-byte insert near the start, scattered edits and an in-place overwrite
+ *
+ * Data is random with repeated blocks, so both chunkers see some natural duplication.
+ */
+public class ChunkingBenchmark {
+
+	private static final int SIZE = 64 << 20;
+	private static final int AVG = 64 * 1024;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		byte[] data = sample(SIZE, 1);
+		FastCdcChunker cdc = new FastCdcChunker(AVG);
+
+		System.out.println("Throughput over " + (SIZE >> 20) + " MB, avg chunk " + AVG + " bytes");
+		System.out.println(String.format("%-24s %12s %12s", "", "MB/s", "chunks"));
+		throughput("fixed", data, null, false);
+		throughput("fastcdc", data, cdc, false);
+		throughput("fixed + sha256", data, null, true);
+		throughput("fastcdc + sha256", data, cdc, true);
+
+		byte[] base = sample(16 << 20, 2);
+		Random rnd = new Random(3);
+		System.out.println();
+		System.out.println("Bytes of the new version already stored (higher is better)");
+		System.out.println(String.format("%-24s %12s %12s", "edit", "fixed", "fastcdc"));
+		dedup("insert 1 byte at 100", base, insert(base, 100, new byte[] { 42 }), cdc);
+		byte[] edited = base;
+		for (int i = 0; i < 20; i++) {
+			int at = rnd.nextInt(edited.length - 100);
+			edited = i % 2 == 0 ? insert(edited, at, sample(1 + rnd.nextInt(100), 10 + i)) : delete(edited, at, 1 + rnd.nextInt(100));
+		}
+		dedup("20 inserts/deletes", base, edited, cdc);
+		byte[] overwritten = base.clone();
+		System.arraycopy(sample(4096, 99), 0, overwritten, 8 << 20, 4096);
+		dedup("overwrite 4 KB", base, overwritten, cdc);
+	}
+
+	private static void throughput(String label, byte[] data, FastCdcChunker cdc, boolean hash) throws Exception {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		double best = 0;
+		int chunks = 0;
+		for (int r = 0; r < ROUNDS; r++) {
+			long t0 = System.nanoTime();
+			List<int[]> spans = spans(buf, cdc);
+			if (hash) {
+				for (int[] s : spans)
+					sha.update(data, s[0], s[1]);
+				sha.digest();
+			}
+			double secs = (System.nanoTime() - t0) / 1e9;
+			best = Math.max(best, data.length / secs / (1 << 20));
+			chunks = spans.size();
+		}
+		System.out.println(String.format("%-24s %12.0f %12d", label, best, chunks));
+	}
+
+	private static void dedup(String label, byte[] oldVersion, byte[] newVersion, FastCdcChunker cdc) throws Exception {
+		System.out.println(String.format("%-24s %11.1f%% %11.1f%%", label, reused(oldVersion, newVersion, null),
+				reused(oldVersion, newVersion, cdc)));
+	}
+
+	private static double reused(byte[] oldVersion, byte[] newVersion, FastCdcChunker cdc) throws Exception {
+		Set<String> stored = new HashSet<>();
+		for (int[] s : spans(ByteBuffer.wrap(oldVersion), cdc))
+			stored.add(hash(oldVersion, s));
+		long hit = 0;
+		for (int[] s : spans(ByteBuffer.wrap(newVersion), cdc)) {
+			if (stored.contains(hash(newVersion, s)))
+				hit += s[1];
+		}
+		return 100.0 * hit / newVersion.length;
+	}
+
+	// {offset, length} of each chunk; cdc == null means fixed-size chunks of AVG bytes
+	private static List<int[]> spans(ByteBuffer buf, FastCdcChunker cdc) {
+		List<int[]> spans = new ArrayList<>();
+		int n = buf.limit();
+		if (cdc == null) {
+			for (int off = 0; off < n; off += AVG)
+				spans.add(new int[] { off, Math.min(AVG, n - off) });
+		} else {
+			for (FastCdcChunker.Span s : cdc.split(buf))
+				spans.add(new int[] { (int) s.offset, s.length });
+		}
+		return spans;
+	}
+
+	private static String hash(byte[] data, int[] span) throws Exception {
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		sha.update(data, span[0], span[1]);
+		return new BigInteger(1, sha.digest()).toString(16);
+	}
+
+	// Random data in which about a quarter of the 4 KB blocks repeat an earlier block
+	private static byte[] sample(int size, long seed) {
+		Random rnd = new Random(seed);
+		byte[] data = new byte[size];
+		rnd.nextBytes(data);
+		for (int off = 8192; off + 4096 <= size; off += 4096) {
+			if (rnd.nextInt(4) == 0)
+				System.arraycopy(data, rnd.nextInt(off / 4096) * 4096, data, off, 4096);
+		}
+		return data;
+	}
+
+	private static byte[] insert(byte[] data, int at, byte[] bytes) {
+		byte[] out = new byte[data.length + bytes.length];
+		System.arraycopy(data, 0, out, 0, at);
+		System.arraycopy(bytes, 0, out, at, bytes.length);
+		System.arraycopy(data, at, out, at + bytes.length, data.length - at);
+		return out;
+	}
+
+	private static byte[] delete(byte[] data, int at, int length) {
+		byte[] out = new byte[data.length - length];
+		System.arraycopy(data, 0, out, 0, at);
+		System.arraycopy(data, at + length, out, at, data.length - at - length);
+		return out;
+	}
+}
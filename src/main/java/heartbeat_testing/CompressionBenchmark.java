@@ -0,0 +1,94 @@
+package heartbeat_testing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.P2PBRS.peer.ChunkCodec;
+
+/**
+ * Per-chunk codecs on 64 KB chunks of three kinds of data:
+ *  - text: words from a small vocabulary (logs, source, CSV)
+ *  - random: incompressible (media, archives, encrypted files)
+ *  - mixed: alternating text and random chunks
+ *
+ * For each codec: encode and decode MB/s (of raw data) and stored size as a share of
+ * the raw size. Every chunk is decoded and compared, so this doubles as a round-trip
+ * check. On random data the sample check should keep encode close to memcpy speed.
+ */
+public class CompressionBenchmark {
+
+	private static final int CHUNK = 64 * 1024;
+	private static final int CHUNKS = 512; // 32 MB per data set
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		byte[][] text = new byte[CHUNKS][];
+		byte[][] random = new byte[CHUNKS][];
+		byte[][] mixed = new byte[CHUNKS][];
+		Random rnd = new Random(7);
+		for (int i = 0; i < CHUNKS; i++) {
+			text[i] = text(rnd, CHUNK);
+			random[i] = new byte[CHUNK];
+			rnd.nextBytes(random[i]);
+			mixed[i] = i % 2 == 0 ? text[i] : random[i];
+		}
+
+		System.out.println(String.format("%-8s %-8s %12s %12s %10s", "data", "codec", "enc MB/s", "dec MB/s", "stored"));
+		for (String codec : new String[] { "none", "lz4", "deflate" }) {
+			run("text", codec, text);
+			run("random", codec, random);
+			run("mixed", codec, mixed);
+		}
+	}
+
+	private static void run(String label, String name, byte[][] chunks) throws Exception {
+		ChunkCodec codec = ChunkCodec.forName(name);
+		long[] crcs = new long[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			CRC32 crc = new CRC32();
+			crc.update(chunks[i]);
+			crcs[i] = crc.getValue();
+		}
+
+		double bestEnc = 0, bestDec = 0;
+		long stored = 0;
+		for (int r = 0; r < ROUNDS; r++) {
+			byte[][] encoded = new byte[chunks.length][];
+			long t0 = System.nanoTime();
+			for (int i = 0; i < chunks.length; i++)
+				encoded[i] = codec.encode(ByteBuffer.wrap(chunks[i]), crcs[i]);
+			long t1 = System.nanoTime();
+			stored = 0;
+			for (int i = 0; i < chunks.length; i++) {
+				byte[] s = encoded[i] != null ? encoded[i] : chunks[i];
+				stored += s.length;
+				if (!Arrays.equals(ChunkCodec.decode(s), chunks[i]))
+					throw new IllegalStateException(name + " round trip failed on chunk " + i);
+			}
+			long t2 = System.nanoTime();
+
+			double mb = (double) chunks.length * CHUNK / (1 << 20);
+			bestEnc = Math.max(bestEnc, mb / ((t1 - t0) / 1e9));
+			bestDec = Math.max(bestDec, mb / ((t2 - t1) / 1e9));
+		}
+		System.out.println(String.format("%-8s %-8s %12.0f %12.0f %9.1f%%", label, name, bestEnc, bestDec,
+				100.0 * stored / ((long) chunks.length * CHUNK)));
+	}
+
+	private static final String[] WORDS = { "backup", "peer", "chunk", "server", "restore", "the", "a", "of",
+			"replica", "storage", "heartbeat", "INFO", "WARN", "2025-01-01", "timeout", "ok", "failed", "file",
+			"size", "crc", "=", ":", "127.0.0.1", "request", "plan" };
+
+	private static byte[] text(Random rnd, int size) {
+		StringBuilder sb = new StringBuilder(size + 32);
+		while (sb.length() < size) {
+			sb.append(WORDS[rnd.nextInt(WORDS.length)]);
+			sb.append(rnd.nextInt(12) == 0 ? '\n' : ' ');
+			if (rnd.nextInt(8) == 0)
+				sb.append(rnd.nextInt(100000));
+		}
+		return Arrays.copyOf(sb.toString().getBytes(), size);
+	}
+}
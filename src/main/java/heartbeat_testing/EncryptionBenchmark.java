@@ -0,0 +1,108 @@
+package heartbeat_testing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+import com.P2PBRS.peer.ChunkCipher;
+import com.P2PBRS.peer.ChunkCodec;
+
+/**
+ * Backup prepare-stage throughput with and without encryption: per 64 KB chunk the
+ * CRC-32 and SHA-256 the manifest needs, the codec (none or lz4) and then, for
+ * "aes-gcm", sealing with the file's key. The restore column opens and decodes every
+ * chunk and compares it with the original, so this doubles as a round-trip check.
+ *
+ * Each row runs on one thread and on one thread per core, as the uploader's prepare
+ * pool does. Data is half text, half random, 64 MB per round, best of ROUNDS. The
+ * master key goes to a temporary file.
+ */
+public class EncryptionBenchmark {
+
+	private static final int CHUNK = 64 * 1024;
+	private static final int CHUNKS = 1024;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		Path keyFile = Files.createTempDirectory("p2pbrs-bench").resolve("master.key");
+		System.setProperty("p2pbrs.encrypt.keyFile", keyFile.toString());
+		ChunkCipher cipher = ChunkCipher.forFile("bench.bin");
+
+		byte[][] chunks = new byte[CHUNKS][];
+		Random rnd = new Random(5);
+		for (int i = 0; i < CHUNKS; i++) {
+			chunks[i] = new byte[CHUNK];
+			if (i % 2 == 0) {
+				for (int j = 0; j < CHUNK; j++)
+					chunks[i][j] = (byte) ('a' + rnd.nextInt(8)); // compresses about 2:1
+			} else {
+				rnd.nextBytes(chunks[i]);
+			}
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println(String.format("%-8s %-8s %8s %14s %14s", "codec", "cipher", "threads", "backup MB/s",
+				"restore MB/s"));
+		for (String codec : new String[] { "none", "lz4" }) {
+			for (ChunkCipher c : new ChunkCipher[] { null, cipher }) {
+				for (int threads : cores > 1 ? new int[] { 1, cores } : new int[] { 1 })
+					run(ChunkCodec.forName(codec), c, threads, chunks);
+			}
+		}
+		Files.deleteIfExists(keyFile);
+		Files.deleteIfExists(keyFile.getParent());
+	}
+
+	private static void run(ChunkCodec codec, ChunkCipher cipher, int threads, byte[][] chunks) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		byte[][] stored = new byte[chunks.length][];
+		double bestBackup = 0, bestRestore = 0;
+		double mb = (double) chunks.length * CHUNK / (1 << 20);
+		try {
+			for (int r = 0; r < ROUNDS; r++) {
+				long t0 = System.nanoTime();
+				pool.submit(() -> IntStream.range(0, chunks.length).parallel()
+						.forEach(i -> stored[i] = prepare(codec, cipher, i, chunks[i]))).get();
+				long t1 = System.nanoTime();
+				pool.submit(() -> IntStream.range(0, chunks.length).parallel().forEach(i -> {
+					try {
+						byte[] raw = ChunkCodec.decode(ChunkCipher.open("bench.bin", i, stored[i]));
+						if (!Arrays.equals(raw, chunks[i]))
+							throw new IllegalStateException("Round trip failed on chunk " + i);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				})).get();
+				long t2 = System.nanoTime();
+				bestBackup = Math.max(bestBackup, mb / ((t1 - t0) / 1e9));
+				bestRestore = Math.max(bestRestore, mb / ((t2 - t1) / 1e9));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		System.out.println(String.format("%-8s %-8s %8d %14.0f %14.0f", codec.codec() == ChunkCodec.NONE ? "none" : "lz4",
+				cipher == null ? "none" : "aes-gcm", threads, bestBackup, bestRestore));
+	}
+
+	// What the uploader's prepare stage does for one chunk
+	private static byte[] prepare(ChunkCodec codec, ChunkCipher cipher, int chunkId, byte[] raw) {
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+		try {
+			MessageDigest.getInstance("SHA-256").digest(raw);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] data = codec.encode(ByteBuffer.wrap(raw), crc.getValue());
+		if (cipher != null)
+			return cipher.seal(chunkId, ByteBuffer.wrap(data != null ? data : raw));
+		return data != null ? data : raw;
+	}
+}
@@ -0,0 +1,117 @@
+package heartbeat_testing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.P2PBRS.peer.PeerNode;
+import com.P2PBRS.server.HashedTimingWheel;
+import com.P2PBRS.server.LivenessTable;
+
+/**
+ * Compares the CPU cost of one failure-detector pass:
+ *  - scan: copy the registry and compute Duration.between for every peer (old HeartbeatHandler)
+ *  - wheel: the server's tick; drain the IDs the liveness table queued since the last
+ *    tick, reschedule those peers, then advance the timing wheel (only peers that
+ *    checked in or expired are visited)
+ *
+ * Time is simulated, so the run takes seconds rather than minutes. Every peer heartbeats
+ * every 5 seconds and the detector ticks every 500 ms, like the server.
+ */
+public class TimingWheelBenchmark {
+
+	private static final long TICK_MS = 500;
+	private static final long HEARTBEAT_MS = 5000;
+	private static final long TIMEOUT_MS = 10_000;
+	private static final int TICKS = 200;
+
+	private static final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) {
+		int[] fleetSizes = { 1_000, 10_000, 100_000 };
+
+		// Warm up the JIT on the biggest fleet first
+		runScan(100_000, 20);
+		runWheel(100_000, 20);
+
+		System.out.println(String.format("%10s %18s %18s %22s", "peers", "scan us/tick", "wheel us/tick",
+				"table ns/heartbeat"));
+		for (int n : fleetSizes) {
+			double scan = runScan(n, TICKS);
+			double[] wheel = runWheel(n, TICKS);
+			System.out.println(String.format("%10d %18.1f %18.1f %22.1f", n, scan, wheel[0], wheel[1]));
+		}
+	}
+
+	// Old detector: full registry copy + Duration.between per peer, every pass
+	private static double runScan(int n, int ticks) {
+		List<PeerNode> registry = new ArrayList<>(n);
+		Instant start = Instant.now();
+		for (int i = 0; i < n; i++) {
+			PeerNode p = new PeerNode("peer" + i, "STORAGE", "127.0.0.1", 10000 + i, 20000 + i, 1000);
+			p.setLastTimestamp(start);
+			registry.add(p);
+		}
+
+		long down = 0;
+		long begin = cpu.getCurrentThreadCpuTime();
+		for (int t = 0; t < ticks; t++) {
+			List<PeerNode> list = new ArrayList<>(registry);
+			Instant now = Instant.now();
+			for (PeerNode p : list) {
+				if (Duration.between(p.getLastTimestamp(), now).getSeconds() > TIMEOUT_MS / 1000)
+					down++;
+			}
+		}
+		long elapsed = cpu.getCurrentThreadCpuTime() - begin;
+		if (down < 0)
+			System.out.println(down); // keep the loop alive
+		return elapsed / 1000.0 / ticks;
+	}
+
+	// New detector: heartbeats are recorded in the liveness table, the tick drains the
+	// changed IDs, reschedules those peers in O(1) each and only visits expired buckets
+	private static double[] runWheel(int n, int ticks) {
+		long now = 0;
+		HashedTimingWheel wheel = new HashedTimingWheel(TICK_MS, 128, now);
+		LivenessTable table = new LivenessTable(n);
+		String[] names = new String[n];
+		for (int i = 0; i < n; i++) {
+			names[i] = "peer" + i;
+			table.allocate(names[i]);
+			wheel.schedule(names[i], now + TIMEOUT_MS);
+		}
+
+		long tickNs = 0;
+		long heartbeatNs = 0;
+		long heartbeats = 0;
+		long expired = 0;
+		int beatsPerTick = (int) (n * TICK_MS / HEARTBEAT_MS);
+		int next = 0;
+
+		for (int t = 0; t < ticks; t++) {
+			now += TICK_MS;
+
+			long begin = cpu.getCurrentThreadCpuTime();
+			for (int i = 0; i < beatsPerTick; i++) {
+				table.heartbeat(next, names[next], 0, now * 1_000_000);
+				next = (next + 1) % n;
+			}
+			long mid = cpu.getCurrentThreadCpuTime();
+			long deadline = now + TIMEOUT_MS;
+			table.drainChanged(id -> wheel.schedule(names[id], deadline));
+			expired += wheel.advance(now).size();
+			long end = cpu.getCurrentThreadCpuTime();
+
+			heartbeatNs += mid - begin;
+			tickNs += end - mid;
+			heartbeats += beatsPerTick;
+		}
+		if (expired > 0)
+			System.out.println("Unexpected expirations: " + expired);
+		return new double[] { tickNs / 1000.0 / ticks, heartbeats == 0 ? 0 : (double) heartbeatNs / heartbeats };
+	}
+}